@@ -0,0 +1,87 @@
+package bench;
+
+/**
+ * Encoding and decoding of an ACCEPT frame, the message every acceptor gets for every slot.
+ * legacyParse is the baseline: what the coordinator used to do per message before the binary protocol, splitting a
+ * text line like "ACCEPT 123 [put,1,3.5]" with regexes and parsing each field back out of the pieces.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    // Commands in the batch carried by the ACCEPT
+    @Param({"1", "64"})
+    int batchSize;
+
+    private Object message;
+    private ByteBuffer out;
+    private ByteBuffer frame;
+    private String[] legacyLines;
+
+    @Setup
+    public void setup() throws Throwable {
+        byte[] ops = new byte[batchSize];
+        int[] keys = new int[batchSize];
+        float[] vals = new float[batchSize];
+        legacyLines = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            ops[i] = Project4.PUT;
+            keys[i] = 1000000 + i;
+            vals[i] = 3.5f;
+            legacyLines[i] = "ACCEPT " + (System.nanoTime() + i) + " [put," + keys[i] + "," + vals[i] + "]";
+        }
+        Object batch = (Object) Project4.NEW_BATCH.invokeExact(ops, keys, vals);
+        message = (Object) Project4.NEW_MESSAGE.invokeExact(Project4.ACCEPT, 7L, 123456L, System.nanoTime(), batch);
+        frame = (ByteBuffer) Project4.ENCODE.invokeExact(message);
+        out = ByteBuffer.allocate(frame.remaining());
+    }
+
+    @Benchmark
+    public int encode() throws Throwable {
+        out.clear();
+        Project4.ENCODE_INTO.invokeExact(message, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public Object decode() throws Throwable {
+        ByteBuffer body = frame.duplicate();
+        body.position(Integer.BYTES);
+        return (Object) Project4.DECODE.invokeExact(body);
+    }
+
+    @Benchmark
+    public void legacyParse(Blackhole blackhole) {
+        // The old protocol sent one line per command, so a batch costs one line each
+        for (String line : legacyLines) {
+            String[] params = line.split(" ");
+            String[] command = params[2].split("[\\[\\]( ),]+");
+            blackhole.consume(Long.parseLong(params[1]));
+            blackhole.consume(command[1]);
+            blackhole.consume(Integer.parseInt(command[2]));
+            blackhole.consume(Float.parseFloat(command[3]));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+/**
+ * End-to-end commit of a put through a LocalCluster: a coordinator and three replicas in the benchmark JVM, talking
+ * over loopback TCP. Each put goes through the replica's batcher, the REQUEST, ACCEPT and ACCEPTED round, the
+ * acceptors' write-ahead logs and the DONE broadcast before it returns, so this is the latency a client would see
+ * less the RMI call. Run it with more threads (-t) to see batching and group commit share the cost between puts.
+ * fsync makes up most of the time with the default settings. Pass -jvmArgsAppend -Dgpa.wal.sync=false to take the
+ * disk out and measure the rest of the path.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitBenchmark {
+    private static final int REPLICAS = 3;
+
+    /**
+     * One cluster shared by every benchmark thread
+     */
+    @State(Scope.Benchmark)
+    public static class Cluster {
+        Object replica;
+        private Path dir;
+        private PrintStream out;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            // The replicas and coordinator log every message. Drop the lines so they aren't part of the measurement
+            out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            dir = Files.createTempDirectory("gpa-commit-bench");
+            Object cluster = (Object) Project4.NEW_LOCAL_CLUSTER.invokeExact(REPLICAS, dir);
+            replica = (Object) Project4.CLUSTER_REPLICA.invokeExact(cluster, 0);
+            // The first put waits for every replica to connect and the leader to be elected
+            String ready = (String) Project4.SERVER_PUT.invokeExact(replica, 0, 0f);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            System.setOut(out);
+            // The cluster threads are daemons and stop with the fork. Only the logs are cleaned up
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public String put(Cluster cluster) throws Throwable {
+        int key = ThreadLocalRandom.current().nextInt(1, 1 << 20);
+        return (String) Project4.SERVER_PUT.invokeExact(cluster.replica, key, 3.5f);
+    }
+}
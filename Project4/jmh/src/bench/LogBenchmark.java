@@ -0,0 +1,84 @@
+package bench;
+
+/**
+ * Cost of a log line to the thread that logs it. info() is an enabled line: its message is formatted and the line is
+ * handed to Log's ring buffer, and the writer thread prints it later. debug() is a line below the default INFO
+ * level, which should cost no more than the level check. format() is the {} placeholder filling info() does on the
+ * caller's thread. The writer prints to a stream that discards the lines, so it keeps up with the loggers and the
+ * buffer rarely fills. Run it with more threads (-t) to see loggers contend for buffer slots.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+    private static final String MESSAGE = "Slot {} chosen with ballot {} for request {}";
+
+    /**
+     * One logger shared by every benchmark thread, as a class's LOG is
+     */
+    @State(Scope.Benchmark)
+    public static class Logger {
+        Object log;
+        private PrintStream out;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            log = (Object) Project4.LOG_GET.invokeExact("Coordinator");
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Throwable {
+            Project4.LOG_FLUSH.invokeExact();
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Slot, ballot and request ID of the next line, per thread
+     */
+    @State(Scope.Thread)
+    public static class Args {
+        long slot = 0;
+        long ballot = 7;
+        long id = 1L << 32;
+    }
+
+    @Benchmark
+    public void info(Logger logger, Args args) throws Throwable {
+        Project4.LOG_INFO.invokeExact(logger.log, MESSAGE, new Object[] {args.slot++, args.ballot, args.id++});
+    }
+
+    @Benchmark
+    public void debug(Logger logger, Args args) throws Throwable {
+        Project4.LOG_DEBUG.invokeExact(logger.log, MESSAGE, new Object[] {args.slot++, args.ballot, args.id++});
+    }
+
+    @Benchmark
+    public String format(Args args) throws Throwable {
+        return (String) Project4.LOG_FORMAT.invokeExact(MESSAGE, new Object[] {args.slot++, args.ballot, args.id++});
+    }
+}
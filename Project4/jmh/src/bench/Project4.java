@@ -0,0 +1,162 @@
+package bench;
+
+/**
+ * Bridge from the benchmarks to the Project4 classes.
+ * JMH won't run benchmarks in the default package, and a class in a package can't name the default package classes
+ * of Project4/src. So each method the benchmarks call is looked up once here as a MethodHandle, with every Project4
+ * type in its signature widened to Object. Held in static final fields and called with invokeExact, the handles are
+ * inlined by the JIT like ordinary calls, so they don't show up in the measurements.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+final class Project4 {
+    static final Class<?> BATCH = type("Batch");
+    static final Class<?> PAXOS_MESSAGE = type("PaxosMessage");
+    static final Class<?> PAXOS_CODEC = type("PaxosCodec");
+    static final Class<?> GPA_STORE = type("GPAStore");
+    static final Class<?> COORDINATOR = type("Coordinator");
+    static final Class<?> MEMBERSHIP = type("Membership");
+    static final Class<?> LOCAL_CLUSTER = type("LocalCluster");
+    static final Class<?> SERVER = type("PAXOSGPAServer");
+    static final Class<?> LOG = type("Log");
+
+    // Message types and batch op codes
+    static final byte REQUEST = constant(PAXOS_MESSAGE, "REQUEST");
+    static final byte ACCEPT = constant(PAXOS_MESSAGE, "ACCEPT");
+    static final byte ACCEPTED = constant(PAXOS_MESSAGE, "ACCEPTED");
+    static final byte PUT = constant(BATCH, "PUT");
+
+    // Batch(byte[] ops, int[] keys, float[] vals)
+    static final MethodHandle NEW_BATCH = constructor(BATCH, byte[].class, int[].class, float[].class);
+    // PaxosMessage(byte type, long ballot, long slot, long id, Batch batch)
+    static final MethodHandle NEW_MESSAGE = constructor(PAXOS_MESSAGE, byte.class, long.class, long.class,
+            long.class, BATCH);
+    // PaxosCodec.encode(PaxosMessage message, ByteBuffer buf)
+    static final MethodHandle ENCODE_INTO = staticMethod(PAXOS_CODEC, "encode", void.class, PAXOS_MESSAGE,
+            ByteBuffer.class);
+    // PaxosCodec.encode(PaxosMessage message)
+    static final MethodHandle ENCODE = staticMethod(PAXOS_CODEC, "encode", ByteBuffer.class, PAXOS_MESSAGE);
+    // PaxosCodec.decode(ByteBuffer buf)
+    static final MethodHandle DECODE = staticMethod(PAXOS_CODEC, "decode", PAXOS_MESSAGE, ByteBuffer.class);
+
+    // GPAStore(int expected, boolean offHeap) and its put, find and valueAt
+    static final MethodHandle NEW_STORE = constructor(GPA_STORE, int.class, boolean.class);
+    static final MethodHandle STORE_PUT = method(GPA_STORE, "put", boolean.class, int.class, float.class);
+    static final MethodHandle STORE_FIND = method(GPA_STORE, "find", int.class, int.class);
+    static final MethodHandle STORE_VALUE_AT = method(GPA_STORE, "valueAt", float.class, int.class);
+
+    // Membership(long slot, int[] acceptors)
+    static final MethodHandle NEW_MEMBERSHIP = constructor(MEMBERSHIP, long.class, int[].class);
+
+    // Coordinator(), its request and accepted handlers and the configuration and leader state they need
+    static final MethodHandle NEW_COORDINATOR = constructor(COORDINATOR);
+    static final MethodHandle COORDINATOR_REQUEST = method(COORDINATOR, "request", void.class, PAXOS_MESSAGE);
+    static final MethodHandle COORDINATOR_ACCEPTED = method(COORDINATOR, "accepted", void.class, int.class,
+            PAXOS_MESSAGE);
+    static final MethodHandle COORDINATOR_ADOPT = method(COORDINATOR, "adopt", void.class, MEMBERSHIP, MEMBERSHIP);
+    static final MethodHandle SET_LEADER_PREPARED = setter(COORDINATOR, "leaderPrepared", boolean.class);
+    static final MethodHandle SET_LEADER_BALLOT = setter(COORDINATOR, "leaderBallot", long.class);
+    static final MethodHandle GET_NEXT_SLOT = getter(COORDINATOR, "nextSlot", long.class);
+
+    // LocalCluster(int numReplicas, Path dir), its replicas and their put
+    static final MethodHandle NEW_LOCAL_CLUSTER = constructor(LOCAL_CLUSTER, int.class, Path.class);
+    static final MethodHandle CLUSTER_REPLICA = method(LOCAL_CLUSTER, "replica", SERVER, int.class);
+    static final MethodHandle SERVER_PUT = method(SERVER, "put", String.class, int.class, float.class);
+
+    // Log.get(String component), its info and debug, Log.format(String message, Object[] args) and Log.flush()
+    static final MethodHandle LOG_GET = staticMethod(LOG, "get", LOG, String.class);
+    static final MethodHandle LOG_INFO = method(LOG, "info", void.class, String.class, Object[].class);
+    static final MethodHandle LOG_DEBUG = method(LOG, "debug", void.class, String.class, Object[].class);
+    static final MethodHandle LOG_FORMAT = staticMethod(LOG, "format", String.class, String.class, Object[].class);
+    static final MethodHandle LOG_FLUSH = staticMethod(LOG, "flush", void.class);
+
+    private Project4() {
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError("Project4 class " + name + " isn't on the classpath");
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> owner) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    private static byte constant(Class<?> owner, String name) {
+        try {
+            return (byte) lookup(owner).findStaticVarHandle(owner, name, byte.class).get();
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            return widen(lookup(owner).findConstructor(owner, MethodType.methodType(void.class, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returns, Class<?>... params) {
+        try {
+            return widen(lookup(owner).findVirtual(owner, name, MethodType.methodType(returns, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> owner, String name, Class<?> returns, Class<?>... params) {
+        try {
+            return widen(lookup(owner).findStatic(owner, name, MethodType.methodType(returns, params)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> owner, String name, Class<?> type) {
+        try {
+            return widen(lookup(owner).findSetter(owner, name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> owner, String name, Class<?> type) {
+        try {
+            return widen(lookup(owner).findGetter(owner, name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Widens every Project4 type in a handle's signature to Object, so callers can invokeExact it without naming them
+     */
+    private static MethodHandle widen(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isProject4(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isProject4(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isProject4(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
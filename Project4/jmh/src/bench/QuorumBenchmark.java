@@ -0,0 +1,67 @@
+package bench;
+
+/**
+ * The coordinator's work for one slot under a prepared leader: the REQUEST is proposed to a new slot, then ACCEPTEDs
+ * are tallied until a majority chooses it. No servers are connected, so the frames are encoded but go nowhere.
+ * What's left is the proposal and quorum bookkeeping itself.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuorumBenchmark {
+    private static final long BALLOT = 1;
+
+    @Param({"3", "5", "7"})
+    int acceptors;
+
+    private Object coordinator;
+    private Object batch;
+    private long requestID = 0;
+
+    @Setup
+    public void setup() throws Throwable {
+        coordinator = (Object) Project4.NEW_COORDINATOR.invokeExact();
+        // The bootstrap configuration a new cluster starts with: acceptors 0 to n - 1, counting from slot 1
+        Object membership = (Object) Project4.NEW_MEMBERSHIP.invokeExact(0L, IntStream.range(0, acceptors).toArray());
+        Project4.COORDINATOR_ADOPT.invokeExact(coordinator, membership, (Object) null);
+        Project4.SET_LEADER_BALLOT.invokeExact(coordinator, BALLOT);
+        Project4.SET_LEADER_PREPARED.invokeExact(coordinator, true);
+        batch = (Object) Project4.NEW_BATCH.invokeExact(new byte[] {Project4.PUT}, new int[] {1234567},
+                new float[] {3.5f});
+    }
+
+    @Benchmark
+    public long chooseSlot() throws Throwable {
+        requestID += 1;
+        Project4.COORDINATOR_REQUEST.invokeExact(coordinator,
+                (Object) Project4.NEW_MESSAGE.invokeExact(Project4.REQUEST, 0L, 0L, requestID, batch));
+        long slot = (long) Project4.GET_NEXT_SLOT.invokeExact(coordinator) - 1;
+        Object accepted = (Object) Project4.NEW_MESSAGE.invokeExact(Project4.ACCEPTED, BALLOT, slot, requestID,
+                batch);
+        for (int i = 0; i < acceptors / 2 + 1; i++) {
+            Project4.COORDINATOR_ACCEPTED.invokeExact(coordinator, i, accepted);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,83 @@
+package bench;
+
+/**
+ * Random put and get on the GPAStore against a HashMap of boxed Integers and Floats, the map the server used before.
+ * Keys are Student ID-like ints in a random order, so lookups miss the CPU cache the way real traffic does.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class StoreBenchmark {
+    // Records in the map. Rounded up to a power of two so the key index can be masked
+    @Param({"1024", "1048576"})
+    int size;
+
+    @Param({"false", "true"})
+    boolean offHeap;
+
+    private Object store;
+    private HashMap<Integer, Float> boxed;
+    private int[] keys;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Throwable {
+        size = Integer.highestOneBit(size - 1) << 1;
+        Random random = new Random(42);
+        keys = new int[size];
+        store = (Object) Project4.NEW_STORE.invokeExact(size, offHeap);
+        boxed = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            keys[i] = random.nextInt(1 << 30);
+            boolean added = (boolean) Project4.STORE_PUT.invokeExact(store, keys[i], (float) i);
+            boxed.put(keys[i], (float) i);
+        }
+    }
+
+    @Benchmark
+    public float storeGet() throws Throwable {
+        int index = (int) Project4.STORE_FIND.invokeExact(store, nextKey());
+        return (float) Project4.STORE_VALUE_AT.invokeExact(store, index);
+    }
+
+    @Benchmark
+    public boolean storePut() throws Throwable {
+        return (boolean) Project4.STORE_PUT.invokeExact(store, nextKey(), 3.5f);
+    }
+
+    @Benchmark
+    public Float hashMapGet() {
+        return boxed.get(nextKey());
+    }
+
+    @Benchmark
+    public Float hashMapPut() {
+        return boxed.put(nextKey(), 3.5f);
+    }
+
+    private int nextKey() {
+        return keys[next++ & (size - 1)];
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Paxos ballots packed into a long: a round number in the high bits and the ID of the node that proposed it in the
+ * low NODE_BITS. Comparing two ballots as longs compares rounds first, so every ballot is unique across nodes as long
+ * as each proposer has its own node ID, and a proposer that was preempted can always pick a ballot above the one
+ * that beat it.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+public final class Ballot {
+    public static final int NODE_BITS = 16;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private Ballot() {
+    }
+
+    /**
+     * @param round long round number, at least 0
+     * @param node int proposer node ID from 0 to MAX_NODE
+     * @return long ballot
+     */
+    public static long of(long round, int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be from 0 to " + MAX_NODE + ": " + node);
+        }
+        return (round << NODE_BITS) | node;
+    }
+
+    /**
+     * @param ballot long ballot
+     * @return long round number of the ballot
+     */
+    public static long round(long ballot) {
+        return ballot >>> NODE_BITS;
+    }
+
+    /**
+     * @param ballot long ballot
+     * @return int ID of the node that proposed the ballot
+     */
+    public static int node(long ballot) {
+        return (int) (ballot & MAX_NODE);
+    }
+
+    /**
+     * @param ballot long highest ballot seen, from this node or any other
+     * @param node int this node's ID
+     * @return long this node's ballot for the round after the one seen
+     */
+    public static long above(long ballot, int node) {
+        return of(round(ballot) + 1, node);
+    }
+
+    /**
+     * @param ballot long ballot
+     * @return String round.node form of the ballot for logging
+     */
+    public static String toString(long ballot) {
+        return round(ballot) + "." + node(ballot);
+    }
+}
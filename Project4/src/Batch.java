@@ -0,0 +1,101 @@
+
+/**
+ * Batch of GPA commands chosen together in a single Paxos slot.
+ * Commands are kept as parallel primitive arrays, so a batch is encoded and applied without boxing or parsing.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+public class Batch {
+    // Command op codes, as written on the wire
+    public static final byte NOOP = 0;
+    public static final byte PUT = 1;
+    public static final byte GET = 2;
+    public static final byte DELETE = 3;
+    // A configuration entry has one CONFIG command per acceptor, keyed by member ID. See Membership. ADD_ACCEPTOR
+    // and REMOVE_ACCEPTOR only travel in a REQUEST, which the leader turns into the whole new configuration
+    public static final byte CONFIG = 4;
+    public static final byte ADD_ACCEPTOR = 5;
+    public static final byte REMOVE_ACCEPTOR = 6;
+
+    private static final int LOGGED_COMMANDS = 8;
+
+    private final byte[] ops;
+    private final int[] keys;
+    private final float[] vals;
+
+    /**
+     * Constructor for a batch of the given commands. The arrays are used as they are, not copied
+     * @param ops byte[] op code of each command
+     * @param keys int[] Student ID of each command
+     * @param vals float[] GPA of each command. Ignored for anything but PUT
+     */
+    public Batch(byte[] ops, int[] keys, float[] vals) {
+        this.ops = ops;
+        this.keys = keys;
+        this.vals = vals;
+    }
+
+    /**
+     * @return Batch holding a single no-op, used to fill a slot a previous leader left empty
+     */
+    public static Batch noop() {
+        return new Batch(new byte[] {NOOP}, new int[1], new float[1]);
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public byte op(int i) {
+        return ops[i];
+    }
+
+    public int key(int i) {
+        return keys[i];
+    }
+
+    public float val(int i) {
+        return vals[i];
+    }
+
+    /**
+     * @return String version of the batch in the "[put,k,v];[delete,k]" format used in the log lines. Bulk batches
+     *         only show their first few commands
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < Math.min(ops.length, LOGGED_COMMANDS); i++) {
+            if (i > 0) {
+                text.append(';');
+            }
+            switch (ops[i]) {
+                case PUT:
+                    text.append("[put,").append(keys[i]).append(',').append(vals[i]).append(']');
+                    break;
+                case GET:
+                    text.append("[get,").append(keys[i]).append(']');
+                    break;
+                case DELETE:
+                    text.append("[delete,").append(keys[i]).append(']');
+                    break;
+                case CONFIG:
+                    text.append("[acceptor,").append(keys[i]).append(']');
+                    break;
+                case ADD_ACCEPTOR:
+                    text.append("[add acceptor,").append(keys[i]).append(']');
+                    break;
+                case REMOVE_ACCEPTOR:
+                    text.append("[remove acceptor,").append(keys[i]).append(']');
+                    break;
+                default:
+                    text.append("[noop]");
+            }
+        }
+        if (ops.length > LOGGED_COMMANDS) {
+            text.append(";... ").append(ops.length).append(" commands");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,132 @@
+
+/**
+ * Adaptive command batcher for the PAXOSGPAServer.
+ * Client commands waiting on this server are gathered into one batch value so a single Paxos slot carries the whole
+ * batch. A batch closes when it reaches the batch limit or the delay runs out. The limit doubles while commands keep
+ * queueing up behind full batches and halves back down to 1 when traffic is quiet, so a lone request is never held
+ * back.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class CommandBatcher implements Runnable {
+    private static final Log LOG = Log.get("CommandBatcher");
+
+    // Upper bound on commands per batch and on how long a batch waits to fill up
+    static final int MAX_BATCH = Integer.getInteger("gpa.batch.max", 64);
+    static final long MAX_DELAY_MICROS = Long.getLong("gpa.batch.delayMicros", 500);
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Flush flush;
+    private int batchLimit = 1;
+
+    /**
+     * Sends a closed batch on its way
+     */
+    interface Flush {
+        /**
+         * @param batch Batch of the gathered commands
+         * @param callers List of futures to complete with each command's result, in the same order
+         * @throws IOException if the batch couldn't be sent
+         */
+        void flush(Batch batch, List<CompletableFuture<String>> callers) throws IOException;
+    }
+
+    /**
+     * Constructor for a batcher that hands each batch to flush
+     * @param flush Flush called from the batcher thread for every closed batch
+     */
+    public CommandBatcher(Flush flush) {
+        this.flush = flush;
+    }
+
+    /**
+     * Queues a command for the next batch
+     * @param op byte Batch op code
+     * @param key int Student ID
+     * @param val float GPA. Ignored for anything but PUT
+     * @return CompletableFuture completed with the command's result once its batch has been chosen and applied
+     */
+    public CompletableFuture<String> submit(byte op, int key, float val) {
+        Pending pending = new Pending(op, key, val);
+        queue.add(pending);
+        return pending.result;
+    }
+
+    /**
+     * Batcher thread run method. Blocks for the first command, then fills the batch from whatever is already queued
+     * and waits out the delay only if the batch limit says more commands are likely to arrive.
+     */
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchLimit - 1);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(MAX_DELAY_MICROS);
+                while (batch.size() < batchLimit) {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Batcher thread interrupted");
+                return;
+            }
+
+            // Grow while commands are still queued behind a full batch, shrink back towards 1 when batches don't fill
+            if (batch.size() >= batchLimit && !queue.isEmpty()) {
+                batchLimit = Math.min(batchLimit * 2, MAX_BATCH);
+            } else if (batch.size() <= batchLimit / 2) {
+                batchLimit = Math.max(batchLimit / 2, 1);
+            }
+
+            byte[] ops = new byte[batch.size()];
+            int[] keys = new int[batch.size()];
+            float[] vals = new float[batch.size()];
+            List<CompletableFuture<String>> callers = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Pending pending = batch.get(i);
+                ops[i] = pending.op;
+                keys[i] = pending.key;
+                vals[i] = pending.val;
+                callers.add(pending.result);
+            }
+            try {
+                flush.flush(new Batch(ops, keys, vals), callers);
+            } catch (IOException e) {
+                LOG.warn("IOException while sending batch to coordinator");
+                for (CompletableFuture<String> caller : callers) {
+                    caller.complete("Coordinator unavailable");
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * A command waiting to be batched and the future its caller is waiting on
+     */
+    private static class Pending {
+        final byte op;
+        final int key;
+        final float val;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Pending(byte op, int key, float val) {
+            this.op = op;
+            this.key = key;
+            this.val = val;
+        }
+    }
+}
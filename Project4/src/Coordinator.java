@@ -1,7 +1,8 @@
 
 /**
- * Multithreaded coordinator for the RMIGPAServer 2 phase commit.
- * Binds to each instance of the server and communicates with TCP sockets to handle 2 phase commit message passing.
+ * Multithreaded coordinator for the PAXOSGPAServer Multi-Paxos.
+ * Binds to each instance of the server and communicates with non-blocking TCP channels, served by a small fixed set
+ * of Selector event loops, to handle Paxos message passing.
  * CS 6650 Scalable Distributed Systems
  * Spring 2020 Project 3
  * 3/25/20
@@ -9,281 +10,1450 @@
  */
 
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
- * Coordinator class that connects to RMIGPAServers and handles 2 phase commit
+ * Coordinator class that connects to PAXOSGPAServers and runs Multi-Paxos on their behalf.
+ * A leader ballot is prepared once with a full PREPARE/PROMISE round that covers every future slot. After that each
+ * new command is given the next free slot of the replicated log and only needs the ACCEPT round, so many slots can
+ * be in flight at once until the leader is preempted by a higher ballot.
  */
 public class Coordinator {
+    private static final Log LOG = Log.get("Coordinator");
+
     boolean closed = false;
     boolean inputFromAll = false;
-    List<ServerThread> serverThreads;
-    List<String> roles;
+    // Server connections. Only changed while holding the Coordinator lock. A connection is dropped once it closes
+    List<ServerConnection> servers;
     int numAcceptors;
-    int numPromised;
-    int numAccepted;
-    String[] requestArgs;
-    boolean paxosDone = false;
+    // Servers in the cluster before any configuration is in the log, e.g. in peer mode: members 0 to clusterSize - 1
+    // are then the first acceptors. With 0 they come from gpa.members, or for a brand new cluster are the servers
+    // connected when it first elects a leader
+    int clusterSize = 0;
+    static final int[] START_MEMBERS = parseMembers(System.getProperty("gpa.members"));
+
+    // Membership. Quorums are counted by member ID out of the configuration of each slot: membership, the newest
+    // configuration known to be chosen, or previous for slots below membership.effectiveSlot(). configInFlight is a
+    // configuration proposed and not chosen yet, and no slot ALPHA or more past it is proposed until it is. Changes
+    // asked for wait in memberChanges and are proposed one at a time, once the last one counts every slot in flight
+    Membership membership = null;
+    Membership previous = null;
+    PaxosInstance configInFlight = null;
+    Membership next = null;
+    PaxosMessage changeInFlight = null;
+    Deque<PaxosMessage> memberChanges;
+    // Set when Phase 1 left out recovered slots counted by a configuration it didn't cover. They are recovered by
+    // another Phase 1 once that configuration is chosen
+    boolean recoveryCut = false;
+
+    // Multi-Paxos leader state. Phase 1 for leaderBallot covers every slot from prepareSlot onwards. Rounds start from
+    // the wall clock in milliseconds, so a restarted coordinator, which keeps no state, never reuses an old ballot
+    long leaderBallot = Ballot.of(System.currentTimeMillis(), 0);
+    // Node ID in the low bits of this coordinator's ballots. Coordinators that can compete need different IDs
+    int nodeID = Integer.getInteger("gpa.coordinator.id", 0);
+    boolean leaderPrepared = false;
+    boolean preparing = false;
+    long prepareSlot = 1;
+    long nextSlot = 1;
+
+    // Slots proposed by the leader that haven't been chosen yet. Read without the lock when ACCEPTEDs are counted
+    final ConcurrentHashMap<Long, PaxosInstance> instances = new ConcurrentHashMap<>();
+    // The last CHOSEN_HISTORY chosen slots, and every one past the first unchosen slot. A server that reconnects is
+    // sent the DONEs it missed from here, and only needs a snapshot if it was away for longer
+    static final int CHOSEN_HISTORY = Integer.getInteger("gpa.chosenHistory", 4096);
+    final TreeMap<Long, PaxosInstance> recentlyChosen = new TreeMap<>();
+    // Members that PROMISEd the leader ballot. Phase 1 ends once they hold a majority of every configuration in use
+    HashSet<Integer> promisers;
+    // Highest ballot accepted value reported back in the PROMISEs for each slot, re-proposed by the new leader
+    TreeMap<Long, PaxosInstance> recovered;
+    // REQUEST messages waiting for the leader to be prepared
+    Deque<PaxosMessage> waitingRequests;
+
+    // Read index state. Reads are answered with the highest chosen slot once a quorum has confirmed the leader
+    // ballot after the read arrived, or right away while the leader holds a lease from a quorum of acceptors
+    static final long LEASE_MILLIS = Long.getLong("gpa.leaseMillis", 5000);
+    long maxChosenSlot = 0;
+    long leaseExpiry = 0;
+    List<ReadIndexRequest> readsWaiting;
+    List<ReadIndexRequest> readsInRound;
+    long heartbeatRound = 0;
+    long heartbeatSentAt = 0;
+    HashSet<Integer> heartbeats;
+    ScheduledExecutorService timer;
+
+    // Catch-up transfers in progress. Snapshot chunks from the donor are forwarded to the server by transfer ID
+    HashMap<Long, CatchupTransfer> transfers;
+    // Catch-ups waiting for a server that is free to be the donor
+    List<CatchupTransfer> catchupsWaiting;
+    long nextTransfer = 0;
+
+    // Per-phase latencies and protocol counters, read through JMX and the metrics endpoint. The gauges read the
+    // leader state without the Coordinator lock, so they can lag a message behind
+    final Metrics metrics = new Metrics("gpa_coordinator");
+    final LatencyHistogram prepareNanos = metrics.histogram("prepare_nanos",
+            "PREPARE sent until a majority PROMISEd, in nanoseconds");
+    final LatencyHistogram acceptNanos = metrics.histogram("accept_nanos",
+            "Last ACCEPT sent for a slot until a majority ACCEPTED it, in nanoseconds");
+    final LatencyHistogram commitNanos = metrics.histogram("commit_nanos",
+            "Slot first proposed until chosen, across every ACCEPT round, in nanoseconds");
+    final LatencyHistogram readIndexNanos = metrics.histogram("read_index_nanos",
+            "READINDEX received until the read index was sent, in nanoseconds");
+    final LatencyHistogram roundsPerSlot = metrics.histogram("rounds_per_slot",
+            "ACCEPT rounds it took to choose a slot");
+    final LongAdder requests = metrics.counter("requests_total", "REQUESTs received from servers");
+    final LongAdder elections = metrics.counter("elections_total", "Phase 1 rounds started");
+    final LongAdder promises = metrics.counter("promises_total", "PROMISEs counted for the leader ballot");
+    final LongAdder proposals = metrics.counter("proposals_total", "ACCEPT rounds started, retries included");
+    final LongAdder acceptances = metrics.counter("accepted_total", "ACCEPTEDs counted for a slot in flight");
+    final LongAdder nacks = metrics.counter("ignored_total", "IGNORED replies from acceptors that promised higher");
+    final LongAdder slotsChosen = metrics.counter("slots_chosen_total", "Slots chosen");
+    final LongAdder commandsChosen = metrics.counter("commands_chosen_total", "Commands in the slots chosen");
+    final LongAdder reads = metrics.counter("reads_total", "READINDEX requests");
+    final LongAdder leaseReads = metrics.counter("lease_reads_total", "READINDEX requests answered under the lease");
+    final LongAdder catchups = metrics.counter("catchups_total", "CATCHUP requests from lagging servers");
+    final LongAdder framesIn = metrics.counter("frames_received_total", "Frames read from servers");
+    final LongAdder framesOut = metrics.counter("frames_sent_total", "Frames written to servers");
+    final LongAdder droppedConnections = metrics.counter("dropped_connections_total",
+            "Connections dropped for falling too far behind");
+    final LongAdder outboundBytes = new LongAdder();
+    long prepareSentAt = 0;
+
+    // After a NACK the leader stands down and runs Phase 1 again after a random wait of up to BACKOFF_MILLIS, doubled
+    // for every NACKed attempt in a row up to MAX_BACKOFF_MILLIS, so competing leaders settle instead of preempting
+    // each other forever
+    static final long BACKOFF_MILLIS = Long.getLong("gpa.paxos.backoffMillis", 10);
+    static final long MAX_BACKOFF_MILLIS = Long.getLong("gpa.paxos.maxBackoffMillis", 1000);
+    boolean backingOff = false;
+    int preemptions = 0;
+    long highestSeen = 0;
+    final LongAdder backoffs = metrics.counter("backoffs_total", "Times the leader stood down after a NACK");
+    final LongAdder configChanges = metrics.counter("config_changes_total", "Configuration entries chosen");
 
     /**
      * Constructor that initiates the thread and data lists
      */
     public Coordinator() {
-        serverThreads = new ArrayList<>(5);
-        roles = new ArrayList<>(5);
+        servers = new ArrayList<>(5);
+        recovered = new TreeMap<>();
+        waitingRequests = new ArrayDeque<>();
+        memberChanges = new ArrayDeque<>();
+        promisers = new HashSet<>();
+        heartbeats = new HashSet<>();
+        readsWaiting = new ArrayList<>();
+        readsInRound = new ArrayList<>();
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "CoordinatorTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transfers = new HashMap<>();
+        catchupsWaiting = new ArrayList<>();
         numAcceptors = 0;
-        numPromised = 0;
-        numAccepted = 0;
+        metrics.gauge("in_flight_proposals", "Slots proposed and not chosen yet", () -> instances.size());
+        metrics.gauge("waiting_requests", "REQUESTs waiting for the leader to be prepared",
+                () -> waitingRequests.size());
+        metrics.gauge("waiting_reads", "Reads waiting for a quorum to confirm the leader",
+                () -> readsWaiting.size() + readsInRound.size());
+        metrics.gauge("outbound_bytes", "Bytes queued for servers that aren't reading fast enough",
+                outboundBytes::sum);
+        metrics.gauge("acceptors", "Acceptors in the newest configuration", () -> numAcceptors);
+        metrics.gauge("leader_ballot", "Current leader ballot", () -> leaderBallot);
+        metrics.gauge("max_chosen_slot", "Highest slot known to be chosen", () -> maxChosenSlot);
     }
 
     /**
-     * Coordinator main method that establishes the ServerSocket. Loops to listen for new server connections and
-     * spins off a new thread to handle 2 phase commit
+     * Coordinator main method that opens the ServerSocketChannel. Loops to accept new server connections and hands
+     * each one to an event loop, round robin, to handle Paxos
      * @param args unused
      */
     public static void main(String[] args) {
-        Socket serverSocket;
-        ServerSocket coordinatorSocket = null;
-        int port = 1235;
+        // Each shard of a sharded deployment runs its own coordinator on its own port
+        int port = Integer.getInteger("gpa.coordinator.port", 1235);
+        int numLoops = Integer.getInteger("gpa.coordinator.loops",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
         Coordinator coord = new Coordinator();
+        coord.metrics.register("Coordinator", null);
+        if (Metrics.PORT > 0) {
+            coord.metrics.serve(Metrics.PORT);
+        }
+        ServerSocketChannel coordinatorChannel;
+        EventLoop[] loops = new EventLoop[numLoops];
+        try {
+            coordinatorChannel = ServerSocketChannel.open();
+            coordinatorChannel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < numLoops; i++) {
+                loops[i] = new EventLoop("EventLoop-" + i);
+                loops[i].start();
+            }
+        } catch (IOException e) {
+            LOG.error("Error while starting coordinator serverSocket");
+            return;
+        }
+
+        serve(coord, coordinatorChannel, loops);
         try {
-            coordinatorSocket = new ServerSocket(port);
+            coordinatorChannel.close();
         } catch (IOException e) {
-            System.out.println(timestamp() + "Error while starting coordinator serverSocket");
+            LOG.warn("Error while closing coordinator serverSocket");
         }
 
+    }
+
+    /**
+     * Loops to accept new server connections and hands each one to an event loop, round robin. Returns once the
+     * coordinator or the channel is closed
+     * @param coord Coordinator the servers connect to
+     * @param coordinatorChannel ServerSocketChannel bound to the coordinator port
+     * @param loops EventLoop array of started event loops
+     */
+    static void serve(Coordinator coord, ServerSocketChannel coordinatorChannel, EventLoop[] loops) {
+        int next = 0;
         while(!coord.closed) {
             try {
-                serverSocket = coordinatorSocket.accept();
-                ServerThread thread = new ServerThread(coord, serverSocket);
-                (coord.serverThreads).add(thread);
-                System.out.println("Now Total clients are : "+(coord.serverThreads).size());
-                (coord.roles).add("ACCEPTOR");
-                coord.numAcceptors += 1;
-                thread.start();
+                SocketChannel channel = coordinatorChannel.accept();
+                EventLoop loop = loops[next++ % loops.length];
+                SocketConnection server = new SocketConnection(coord, channel, loop);
+                coord.addServer(server);
+                loop.register(server);
+            } catch (ClosedChannelException e) {
+                return;
             } catch (IOException e) {
-                System.out.println(timestamp() + "Error while accepting Server connection to Coordinator");
+                LOG.warn("Error while accepting Server connection to Coordinator");
             }
         }
-        try {
-            coordinatorSocket.close();
-        } catch (IOException e) {
-            System.out.println(timestamp() + "Error while closing coordinator serverSocket");
-        } catch (NullPointerException f) {
-            System.out.println(timestamp() + "Error while trying to close the coordinator server.");
+    }
+
+    /**
+     * Serves a coordinator in-process from one daemon event loop, e.g. for LocalCluster. Returns once the channel is
+     * closed
+     * @param coord Coordinator the servers connect to
+     * @param coordinatorChannel ServerSocketChannel bound to the coordinator port
+     * @throws IOException if the event loop can't be started
+     */
+    static void serveInProcess(Coordinator coord, ServerSocketChannel coordinatorChannel) throws IOException {
+        EventLoop loop = new EventLoop("InProcess-EventLoop");
+        loop.setDaemon(true);
+        loop.start();
+        serve(coord, coordinatorChannel, new EventLoop[] {loop});
+    }
+
+    /**
+     * Starts a coordinator inside a PAXOSGPAServer running in peer mode, listening on the server's peer port. The
+     * servers connect to the lowest peer that is up, so the coordinator is only busy while its server leads
+     * @param port int peer port to listen on
+     * @param clusterSize int number of servers in the cluster
+     * @param nodeID int this peer's index, used as the node ID of its ballots
+     * @return Coordinator started
+     * @throws IOException if the port can't be bound
+     */
+    static Coordinator startEmbedded(int port, int clusterSize, int nodeID) throws IOException {
+        Coordinator coord = new Coordinator();
+        coord.clusterSize = clusterSize;
+        coord.nodeID = nodeID;
+        coord.metrics.register("Coordinator", Integer.toString(port));
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            try {
+                serveInProcess(coord, channel);
+            } catch (IOException e) {
+                LOG.error("Error while starting peer coordinator event loop");
+            }
+        }, "PeerCoordinator-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Peer coordinator listening on port {} for a cluster of {}", port, clusterSize);
+        return coord;
+    }
+
+    /**
+     * Adds a newly connected server. It is told the first slot it needs to learn, and only votes, once its MEMBERS
+     * hello has said which member it is and how far it has applied
+     * @param server ServerConnection of the new server
+     */
+    synchronized void addServer(ServerConnection server) {
+        servers.add(server);
+        LOG.info("Now Total clients are : {}", servers.size());
+        retryCatchups();
+    }
+
+    /**
+     * Sends a server that just connected the chosen slots it is missing and then the first unchosen slot. If the
+     * slots since the ones it has applied aren't all in recentlyChosen, the JOIN has it ask for a snapshot instead,
+     * and it only gets the slots chosen past the first unchosen one
+     * @param server ServerConnection of the server
+     * @param applied long slot the server has applied up to
+     */
+    private void join(ServerConnection server, long applied) {
+        long first = firstUnchosenSlot();
+        long missing = Math.min(applied + 1, first);
+        long from = missing;
+        while (from < first && recentlyChosen.containsKey(from)) {
+            from++;
+        }
+        for (PaxosInstance done : recentlyChosen.tailMap(from < first ? first : missing).values()) {
+            server.write(new PaxosMessage(PaxosMessage.DONE, 0, done.slot, done.requestID, done.batch));
         }
+        server.write(new PaxosMessage(PaxosMessage.JOIN, 0, first, 0));
+    }
 
+    /**
+     * Drops a connection that closed. The connection can close in the middle of a write that holds its own lock or
+     * the Coordinator's, so it is removed on the timer thread
+     * @param server ServerConnection that closed
+     */
+    void closed(ServerConnection server) {
+        timer.execute(() -> removeServer(server));
+    }
+
+    private synchronized void removeServer(ServerConnection server) {
+        if (!servers.remove(server)) {
+            return;
+        }
+        catchupsWaiting.removeIf(transfer -> transfer.server == server);
+        List<CatchupTransfer> lost = new ArrayList<>();
+        transfers.values().removeIf(transfer -> transfer.server == server ||
+                transfer.donor == server && lost.add(transfer));
+        for (CatchupTransfer transfer : lost) {
+            // The snapshot stopped with the donor, so the server is caught up from another one
+            findDonor(transfer);
+        }
+        readsWaiting.removeIf(read -> read.connection == server);
+        readsInRound.removeIf(read -> read.connection == server);
+        LOG.info("{} left. Now Total clients are : {}", server.name, servers.size());
     }
 
     /**
-     * Timestamp of the current time to print on each line.
-     * @return String version of the timestamp formatted for readability
+     * Handles the MEMBERS hello a server sends when it connects and whenever it applies a configuration entry. The
+     * connection learns its member ID and role, and a configuration newer than this coordinator's is adopted, which
+     * takes a new Phase 1 if this coordinator is leading. A voter that connects is sent the rounds in flight
+     * @param server ServerConnection that sent the hello
+     * @param hello PaxosMessage MEMBERS with the member ID, the applied slot and the server's configurations
      */
-    private static String timestamp() {
-        long currentTime = System.currentTimeMillis();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:ms");
-        //formatted value of current Date
-        String time = "" + df.format(currentTime);
-        return "(System time: " + time + ") ";
+    synchronized void members(ServerConnection server, PaxosMessage hello) {
+        boolean first = server.member < 0;
+        server.member = (int) hello.id;
+        server.learner = (hello.flags & PaxosMessage.FLAG_LEARNER) != 0;
+        server.fresh = hello.slot == 0 && hello.entries.isEmpty();
+        if (first) {
+            join(server, hello.slot);
+        }
+        if (!hello.entries.isEmpty()) {
+            ReplicatedLog.Entry latest = hello.entries.get(hello.entries.size() - 1);
+            if (membership == null || latest.slot > membership.slot) {
+                ReplicatedLog.Entry before = hello.entries.size() > 1 ? hello.entries.get(0) : null;
+                adopt(Membership.of(latest.slot, latest.batch),
+                        before == null ? membership : Membership.of(before.slot, before.batch));
+                if (leaderPrepared || preparing && !backingOff) {
+                    // Phase 1 for this ballot didn't cover the new acceptors
+                    prepare(leaderBallot);
+                    return;
+                }
+            }
+        }
+        refreshVoters();
+        if (leaderPrepared) {
+            if (first && server.acceptor) {
+                resend(server);
+            }
+            retirePrevious();
+            startMemberChange();
+        } else if (preparing) {
+            if (first && server.acceptor && !backingOff) {
+                server.write(new PaxosMessage(PaxosMessage.PREPARE, leaderBallot, prepareSlot, 0));
+            }
+        } else if (!waitingRequests.isEmpty() || !readsWaiting.isEmpty() || !memberChanges.isEmpty()) {
+            // Still waiting for a configuration to elect a leader with
+            prepare(leaderBallot);
+        }
     }
-}
 
-/**
- * Helper thread class that handles 2 phase commit for each new incoming server connection
- */
-class ServerThread extends Thread {
-    DataInputStream dataIn = null;
-    String line;
-    String name;
-    DataOutputStream dataOut = null;
-    Socket serverSocket = null;
-    Coordinator coord;
+    /**
+     * Makes a configuration the membership
+     * @param latest Membership newest configuration known to be chosen
+     * @param before Membership the one before it, or null
+     */
+    private void adopt(Membership latest, Membership before) {
+        previous = before == null || before.sameAcceptors(latest) ? null : before;
+        membership = latest;
+        numAcceptors = latest.size();
+        if (next != null && next.slot <= latest.slot) {
+            configInFlight = null;
+            next = null;
+        }
+        LOG.info("Membership is {}", latest);
+    }
 
     /**
-     * Constructor for the new thread that connects to the specified socket
-     * @param coord Coordinator handling the server pool
-     * @param serverSocket Socket accepted by a new server
+     * Picks the first acceptors when no server has told this coordinator a configuration: gpa.members, else members
+     * 0 to clusterSize - 1, else for a brand new cluster, where no server has applied anything, the acceptors
+     * connected now. A cluster with data and no known configuration waits for a server that has one. Nothing is
+     * picked while a connected server's hello is still on the way, since it may carry the configuration
+     * @return boolean true if there is a membership to elect a leader with
      */
-    ServerThread(Coordinator coord, Socket serverSocket) {
-        this.serverSocket = serverSocket;
-        this.coord = coord;
+    private boolean bootstrap() {
+        for (ServerConnection server : servers) {
+            if (server.member < 0 && !server.isClosed()) {
+                return false;
+            }
+        }
+        int[] acceptors;
+        if (START_MEMBERS != null) {
+            acceptors = START_MEMBERS;
+        } else if (clusterSize > 0) {
+            acceptors = IntStream.range(0, clusterSize).toArray();
+        } else {
+            List<Integer> connected = new ArrayList<>();
+            for (ServerConnection server : servers) {
+                if (server.member < 0) {
+                    continue;
+                }
+                if (!server.fresh) {
+                    LOG.warn("{} has data but no configuration. Waiting for a server that has one, or gpa.members",
+                            server.name);
+                    return false;
+                }
+                if (!server.learner) {
+                    connected.add(server.member);
+                }
+            }
+            acceptors = connected.stream().mapToInt(Integer::intValue).toArray();
+        }
+        if (acceptors.length == 0) {
+            return false;
+        }
+        membership = new Membership(0, acceptors);
+        numAcceptors = membership.size();
+        refreshVoters();
+        LOG.info("Starting with {}", membership);
+        return true;
     }
 
     /**
-     * Thread run method that establishes the socket connection to each server and handles 2 phase commit communication
+     * @param members String comma separated member IDs, or null
+     * @return int[] member IDs, or null if there are none
      */
-    @Override
-    public void run() {
+    private static int[] parseMembers(String members) {
+        if (members == null || members.trim().isEmpty()) {
+            return null;
+        }
         try {
-            dataIn = new DataInputStream(serverSocket.getInputStream());
-            dataOut = new DataOutputStream(serverSocket.getOutputStream());
-            name = "Thread " + Thread.currentThread().getName();
-            System.out.println(timestamp() + name + " New server thread initialized. Listening...");
-        } catch (IOException e) {
-            System.out.println(timestamp() + name + "IOException. Could not establish data streams");
+            return Arrays.stream(members.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+        } catch (NumberFormatException e) {
+            LOG.error("gpa.members must be comma separated member IDs, not {}", members);
+            return null;
         }
+    }
 
-        // Loops to handle PAXOS
-        boolean aborting = false;
-        while (!aborting) {
+    /**
+     * @param member int member ID
+     * @return boolean true if the member is an acceptor of a configuration that counts slots in flight
+     */
+    private boolean isVoter(int member) {
+        return member >= 0 && (membership != null && membership.contains(member) ||
+                previous != null && previous.contains(member) || next != null && next.contains(member));
+    }
 
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException e) {
-                System.out.println("Thread interrupted while sleeping");
-            }
+    /**
+     * Sets which connections are sent the PREPAREs, ACCEPTs and HEARTBEATs after the membership changes
+     */
+    private void refreshVoters() {
+        for (ServerConnection server : servers) {
+            server.acceptor = !server.learner && isVoter(server.member);
+        }
+    }
 
-            try {
-                line = dataIn.readUTF();
-            } catch (EOFException e) {
-                System.out.println(timestamp() + "EOFException while reading line from server " + name +
-                        ". Server has stopped");
-                aborting = true;
-                line = "closed";
-            } catch (IOException e) {
-                System.out.println(timestamp() + name + " IOException while reading line from server " + name);
+    /**
+     * @param voters HashSet of member IDs
+     * @return boolean true if the voters are a majority of the membership, and of the configuration before it while
+     *         it still counts slots in flight
+     */
+    private boolean quorumOfAll(HashSet<Integer> voters) {
+        return isQuorum(membership, voters) && (previous == null || isQuorum(previous, voters));
+    }
+
+    private static boolean isQuorum(Membership config, HashSet<Integer> voters) {
+        int votes = 0;
+        for (int member : voters) {
+            if (config.contains(member)) {
+                votes++;
             }
+        }
+        return votes >= config.majority();
+    }
 
-            try {
-                if (line.equalsIgnoreCase("closed")) {
-                    System.out.println(timestamp() + "Server closed");
+    /**
+     * @param slot long log slot
+     * @return Membership whose acceptors decide the slot
+     */
+    private Membership configFor(long slot) {
+        return previous != null && slot < membership.effectiveSlot() ? previous : membership;
+    }
+
+    /**
+     * @return boolean true if the next free slot is close enough to a configuration in flight to be proposed
+     */
+    private boolean canPropose() {
+        return configInFlight == null || nextSlot < configInFlight.slot + Membership.ALPHA;
+    }
+
+    /**
+     * Sends a voter that just connected the rounds in flight, so they can still reach a quorum with it. It is asked
+     * to promise the leader ballot too if it hasn't
+     * @param server ServerConnection of the voter
+     */
+    private void resend(ServerConnection server) {
+        if (!promisers.contains(server.member)) {
+            server.write(new PaxosMessage(PaxosMessage.PREPARE, leaderBallot, prepareSlot, 0));
+        }
+        for (PaxosInstance instance : instances.values()) {
+            server.write(new PaxosMessage(PaxosMessage.ACCEPT, instance.ballot, instance.slot, instance.requestID,
+                    instance.batch));
+        }
+        if (!readsInRound.isEmpty()) {
+            server.write(new PaxosMessage(PaxosMessage.HEARTBEAT, leaderBallot, 0, heartbeatRound));
+        }
+    }
+
+    /**
+     * Proposes a client request from one of the servers. A prepared leader sends the ACCEPT for it in the next free
+     * slot right away, without waiting for earlier slots. Otherwise it waits for Phase 1 to finish, or for a
+     * configuration in flight to be chosen. A request to add or remove acceptors waits for the changes before it.
+     * @param request PaxosMessage REQUEST carrying the batch of commands the server gathered
+     */
+    synchronized void request(PaxosMessage request) {
+        requests.increment();
+        if (Membership.isChange(request.batch)) {
+            memberChanges.add(request);
+        } else if (leaderPrepared && canPropose() && waitingRequests.isEmpty()) {
+            propose(new PaxosInstance(nextSlot++, request.id, request.batch));
+            return;
+        } else {
+            waitingRequests.add(request);
+        }
+        if (leaderPrepared) {
+            startMemberChange();
+        } else if (!preparing) {
+            prepare(leaderBallot);
+        }
+    }
+
+    /**
+     * Proposes the waiting requests while the configuration in flight allows
+     */
+    private void proposeWaiting() {
+        PaxosMessage waiting;
+        while (canPropose() && (waiting = waitingRequests.poll()) != null) {
+            propose(new PaxosInstance(nextSlot++, waiting.id, waiting.batch));
+        }
+    }
+
+    /**
+     * Sends the ACCEPT for a slot under the leader ballot and tracks it until a majority of the slot's configuration
+     * accepts. A configuration entry becomes the one in flight
+     * @param instance PaxosInstance slot and value to propose
+     */
+    private void propose(PaxosInstance instance) {
+        instance.ballot = leaderBallot;
+        instance.config = configFor(instance.slot);
+        instance.accepts = instance.config.quorum(leaderBallot);
+        instance.sentAt = System.nanoTime();
+        instance.rounds += 1;
+        proposals.increment();
+        instances.put(instance.slot, instance);
+        if (Membership.isConfig(instance.batch) && instance.slot > membership.slot &&
+                (next == null || instance.slot > next.slot)) {
+            configInFlight = instance;
+            next = Membership.of(instance.slot, instance.batch);
+            refreshVoters();
+        }
+        writeToAllAcceptors(new PaxosMessage(PaxosMessage.ACCEPT, leaderBallot, instance.slot, instance.requestID,
+                instance.batch));
+    }
+
+    /**
+     * Proposes the next membership change once the last one counts every slot in flight. A cluster that started
+     * from gpa.members, clusterSize or its first servers logs that configuration first, so every server learns it.
+     * Acceptors that join are asked to promise the leader ballot along with the ACCEPT, so the slots they count
+     * don't need a new Phase 1
+     */
+    private void startMemberChange() {
+        if (!leaderPrepared || configInFlight != null) {
+            return;
+        }
+        if (previous != null) {
+            // Nothing else may be proposed to take the log to the effective slot, so no-ops fill it
+            if (!memberChanges.isEmpty() && waitingRequests.isEmpty()) {
+                while (nextSlot < membership.effectiveSlot()) {
+                    propose(new PaxosInstance(nextSlot++, 0, Batch.noop()));
                 }
-                if (line.equalsIgnoreCase("LEARNER")) {
-                    int index = coord.serverThreads.indexOf(this);
-                    coord.roles.set(index, "LEARNER");
-                    coord.numAcceptors -= 1;
-                    System.out.println(timestamp() + "LEARNER added. Number of ACCEPTORS now: " + coord.numAcceptors);
+            }
+            return;
+        }
+        Membership changed;
+        if (membership.slot == 0) {
+            changed = membership;
+        } else if (!memberChanges.isEmpty()) {
+            changeInFlight = memberChanges.poll();
+            changed = membership.apply(changeInFlight.batch);
+        } else {
+            return;
+        }
+        PaxosInstance instance = new PaxosInstance(nextSlot++, changeInFlight == null ? 0 : changeInFlight.id,
+                changed.toBatch());
+        LOG.info("Proposing {} in slot {}", instance.batch, instance.slot);
+        propose(instance);
+        for (ServerConnection server : servers) {
+            if (server.acceptor && !membership.contains(server.member) && !promisers.contains(server.member)) {
+                server.write(new PaxosMessage(PaxosMessage.PREPARE, leaderBallot, prepareSlot, 0));
+            }
+        }
+    }
+
+    /**
+     * Runs Phase 1 for every slot that isn't known to be chosen, with this coordinator's ballot for the round after
+     * the highest one it has seen, so it never reuses an old ballot or one of another node's. Without a membership
+     * it first tries to bootstrap one, and otherwise waits for a server to report one.
+     * @param seen long highest ballot seen, from this coordinator or a NACK
+     */
+    private void prepare(long seen) {
+        if (membership == null && !bootstrap()) {
+            return;
+        }
+        leaderBallot = Ballot.above(Math.max(seen, leaderBallot), nodeID);
+        leaderPrepared = false;
+        preparing = true;
+        backingOff = false;
+        recovered.clear();
+        leaseExpiry = 0;
+        readsWaiting.addAll(0, readsInRound);
+        readsInRound.clear();
+        heartbeatRound += 1;
+        prepareSlot = firstUnchosenSlot();
+        promisers.clear();
+        elections.increment();
+        prepareSentAt = System.nanoTime();
+        LOG.info("Electing leader with ballot {} from slot {}", Ballot.toString(leaderBallot), prepareSlot);
+        writeToAllAcceptors(new PaxosMessage(PaxosMessage.PREPARE, leaderBallot, prepareSlot, 0));
+    }
+
+    /**
+     * Counts a PROMISE for the leader ballot. Once the promisers are a majority of every configuration in use, the
+     * leader is prepared for all future slots. Every slot a promise reported a value for is finished with the highest
+     * ballot value, slots left empty by a previous leader are filled with a no-op, and then the waiting requests are
+     * proposed. A recovered configuration entry stops the re-proposals ALPHA slots after it, since Phase 1 didn't
+     * cover the acceptors that count those slots.
+     * @param server ServerConnection of the server that sent the promise
+     * @param promise PaxosMessage PROMISE with the acceptor's applied slot and an entry for each value it has accepted
+     *                but not applied
+     */
+    synchronized void promise(ServerConnection server, PaxosMessage promise) {
+        int member = server.member;
+        if (backingOff || promise.ballot != leaderBallot || !server.acceptor || promisers.contains(member)) {
+            return; // Stale or repeated promise
+        }
+        if (leaderPrepared) {
+            latePromise(member, promise);
+            return;
+        }
+        if (!preparing) {
+            return;
+        }
+        promisers.add(member);
+        promises.increment();
+        // Slots any promiser has applied were chosen, so the new leader starts after them
+        prepareSlot = Math.max(prepareSlot, promise.slot + 1);
+        for (ReplicatedLog.Entry entry : promise.entries) {
+            PaxosInstance previous = new PaxosInstance(entry.slot, entry.requestID, entry.batch);
+            previous.ballot = entry.ballot;
+            PaxosInstance known = recovered.get(previous.slot);
+            if (known == null || previous.ballot > known.ballot) {
+                recovered.put(previous.slot, previous);
+            }
+        }
+
+        if (!quorumOfAll(promisers)) {
+            if (LOG.trace()) {
+                LOG.trace("Received PROMISE. Waiting for majority");
+            }
+            return;
+        }
+        LOG.info("{} promised servers. Leader prepared with ballot {} from slot {}", promisers.size(),
+                Ballot.toString(leaderBallot), prepareSlot);
+        preparing = false;
+        leaderPrepared = true;
+        preemptions = 0;
+        prepareNanos.record(System.nanoTime() - prepareSentAt);
+
+        long lastSlot = Math.max(nextSlot, prepareSlot) - 1;
+        if (!recovered.isEmpty()) {
+            lastSlot = Math.max(lastSlot, recovered.lastKey());
+        }
+        recoveryCut = false;
+        for (PaxosInstance entry : recovered.tailMap(prepareSlot).values()) {
+            if (Membership.isConfig(entry.batch) && entry.slot > membership.slot) {
+                if (lastSlot >= entry.slot + Membership.ALPHA) {
+                    lastSlot = entry.slot + Membership.ALPHA - 1;
+                    recoveryCut = true;
                 }
-                // Starting the PAXOS, the server will request a PREPARE message to be sent
-                if (line.startsWith("REQUEST")) {
-                    String[] params = line.split(" ");
-                    System.out.println("REQUEST Params: " + Arrays.toString(params));
-                    // Format will be ["REQUEST", "id", "[put,k,v]"]
-                    coord.requestArgs = params;
-                    System.out.println("Request args length: " + coord.requestArgs.length);
-                    System.out.println(timestamp() + params[0] + " ID: " + params[1] + " request received from server "
-                            + name + ". Initiating Paxos protocol");
-                    int index = coord.serverThreads.indexOf(this);
-                    coord.roles.set(index, "PROPOSER");
-                    coord.numAcceptors -= 1;
-                    writeToAllAcceptors("PREPARE " + params[1]);
-                    continue;
+                break;
+            }
+        }
+        HashMap<Long, PaxosInstance> inFlight = new HashMap<>(instances);
+        instances.clear();
+        configInFlight = null;
+        next = null;
+        for (PaxosInstance own : inFlight.values()) {
+            if (own.slot < prepareSlot) {
+                LOG.debug("Slot {} was already chosen by another leader", own.slot);
+            } else if (own.slot > lastSlot) {
+                requeue(own);
+            }
+        }
+        for (long slot = prepareSlot; slot <= lastSlot; slot++) {
+            PaxosInstance previous = recovered.get(slot);
+            PaxosInstance own = inFlight.get(slot);
+            if (previous != null) {
+                // A previous leader may have had this value chosen. Finish it and give our own value a new slot
+                if (own != null && own.requestID != previous.requestID) {
+                    requeue(own);
                 }
-            } catch (IOException e) {
-                System.out.println(timestamp() + name + " IOException while doing PREPARE phase");
-                line = "ABORT";
-            }
-
-            try {  // After telling each server to prepare, the coordinator threads will listen for promises
-                if (line.startsWith("PROMISE")) {
-                    String[] params = line.split("[\\[\\]( ),]+");
-                    System.out.println("PROMISE Params: " + Arrays.toString(params));
-                    if (params.length < 3) { // If less than 3 params, the acceptor didn't have another acceptance
-                        coord.numPromised += 1;
-
-                        promiseMajorityCheck();  // Sends the accept message if a majority is reached
-                        continue;
-                    } else { // if the promise message is longer than 3, we have to take the previously accepted request
-                        coord.numPromised += 1;
-                        coord.requestArgs[2] = params[4];
-                        System.out.println("Coord saved REQUEST args:  " + Arrays.toString(coord.requestArgs));
-
-                        promiseMajorityCheck();
-                        continue;
-                    }
+                propose(previous);
+            } else if (own != null) {
+                propose(own);
+            } else {
+                propose(new PaxosInstance(slot, 0, Batch.noop()));
+            }
+        }
+        nextSlot = lastSlot + 1;
+        recovered.clear();
+        if (changeInFlight != null && configInFlight == null) {
+            // Our configuration lost its slot, so the change is worked out again from the membership then
+            memberChanges.addFirst(changeInFlight);
+            changeInFlight = null;
+        }
+        refreshVoters();
+        if (clusterSize > 0) {
+            // A server that was behind the promisers when the old leader went away won't get those slots from this
+            // leader, so it is told where the cluster is and catches up from a snapshot
+            writeToAll(new PaxosMessage(PaxosMessage.JOIN, 0, prepareSlot, 0));
+        }
+        // Anything a previous leader got chosen is at or below lastSlot, so reads from now on must wait for it
+        maxChosenSlot = Math.max(maxChosenSlot, lastSlot);
+        if (!readsWaiting.isEmpty()) {
+            startHeartbeat();
+        }
+        proposeWaiting();
+        startMemberChange();
+    }
+
+    /**
+     * Counts a PROMISE that arrives once the leader is prepared, from a voter that connected or joined since. A value
+     * it accepted in a slot this leader hasn't proposed may have been chosen under a configuration Phase 1 didn't
+     * cover, so that takes a new Phase 1
+     * @param member int member ID of the promiser
+     * @param promise PaxosMessage PROMISE for the leader ballot
+     */
+    private void latePromise(int member, PaxosMessage promise) {
+        promisers.add(member);
+        promises.increment();
+        for (ReplicatedLog.Entry entry : promise.entries) {
+            if (entry.slot >= nextSlot) {
+                LOG.info("Member {} accepted slot {} under another leader. Running Phase 1 again", member,
+                        entry.slot);
+                prepare(leaderBallot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives a value of this leader that lost its slot in Phase 1 a new one. A configuration entry is dropped, since
+     * its change is worked out again from the membership when it is proposed
+     * @param own PaxosInstance that lost its slot
+     */
+    private void requeue(PaxosInstance own) {
+        if (!Membership.isConfig(own.batch)) {
+            waitingRequests.addFirst(new PaxosMessage(PaxosMessage.REQUEST, 0, 0, own.requestID, own.batch));
+        }
+    }
+
+    /**
+     * Counts an ACCEPTED for a slot. Votes are counted without the Coordinator lock, and only the one that makes the
+     * majority takes it to send the chosen command to every server, which apply it in slot order.
+     * @param member int member ID of the server that sent the ACCEPTED
+     * @param accepted PaxosMessage ACCEPTED with the ballot and slot
+     */
+    void accepted(int member, PaxosMessage accepted) {
+        PaxosInstance instance = instances.get(accepted.slot);
+        Quorum accepts = instance == null ? null : instance.accepts;
+        if (accepts == null || accepted.ballot != accepts.ballot) {
+            return; // Already chosen, or accepted under an old ballot
+        }
+        // Read after accepts, so it is the quorum's configuration or a newer one whose quorum is checked below
+        int vote = instance.config.indexOf(member);
+        acceptances.increment();
+        if (vote < 0 || !accepts.vote(vote)) {
+            return;
+        }
+        synchronized (this) {
+            if (instances.get(instance.slot) != instance || instance.accepts != accepts) {
+                return; // Proposed again by a new leader ballot while the votes were counted
+            }
+            chosen(instance);
+        }
+    }
+
+    /**
+     * Sends a slot a majority accepted to every server
+     * @param instance PaxosInstance chosen
+     */
+    private void chosen(PaxosInstance instance) {
+        if (LOG.trace()) {
+            LOG.trace("{} accepted servers. Slot {} chosen: {}", instance.accepts.count(), instance.slot,
+                    instance.batch);
+        }
+        instances.remove(instance.slot);
+        long now = System.nanoTime();
+        acceptNanos.record(now - instance.sentAt);
+        commitNanos.record(now - instance.proposedAt);
+        roundsPerSlot.record(instance.rounds);
+        slotsChosen.increment();
+        commandsChosen.add(instance.batch.size());
+        maxChosenSlot = Math.max(maxChosenSlot, instance.slot);
+        renewLease(instance.sentAt);
+        writeToAll(new PaxosMessage(PaxosMessage.DONE, 0, instance.slot, instance.requestID, instance.batch));
+        recentlyChosen.put(instance.slot, instance);
+        while (recentlyChosen.size() > CHOSEN_HISTORY && recentlyChosen.firstKey() < firstUnchosenSlot()) {
+            recentlyChosen.pollFirstEntry();
+        }
+        if (Membership.isConfig(instance.batch)) {
+            configChosen(instance);
+        } else {
+            retirePrevious();
+        }
+    }
+
+    /**
+     * Makes a chosen configuration entry the membership. The one before it still counts the slots up to the new
+     * effective slot. If the new acceptors haven't promised the leader ballot, or Phase 1 left slots out for this
+     * entry, another Phase 1 runs before the slots they count are proposed
+     * @param instance PaxosInstance chosen configuration entry
+     */
+    private void configChosen(PaxosInstance instance) {
+        configChanges.increment();
+        if (configInFlight == instance) {
+            configInFlight = null;
+            next = null;
+            changeInFlight = null;
+        }
+        if (instance.slot > membership.slot) {
+            adopt(Membership.of(instance.slot, instance.batch), membership);
+        }
+        refreshVoters();
+        if (recoveryCut || !quorumOfAll(promisers)) {
+            LOG.info("Acceptors of {} haven't all promised ballot {}. Running Phase 1 again", membership,
+                    Ballot.toString(leaderBallot));
+            prepare(leaderBallot);
+            return;
+        }
+        proposeWaiting();
+        retirePrevious();
+    }
+
+    /**
+     * Stops counting the configuration before the membership once every slot it decided is chosen, and starts the
+     * next membership change
+     */
+    private void retirePrevious() {
+        if (previous == null || firstUnchosenSlot() < membership.effectiveSlot()) {
+            return;
+        }
+        previous = null;
+        refreshVoters();
+        startMemberChange();
+    }
+
+    /**
+     * Handles a READINDEX from a server that wants to serve a get from its own map. The server is sent back the
+     * highest chosen slot once the leader is confirmed, and reads locally once it has applied up to that slot.
+     * @param connection ServerConnection of the server doing the read
+     * @param request PaxosMessage READINDEX with the read ID, flagged FLAG_LEASE for a lease read
+     */
+    synchronized void readIndex(ServerConnection connection, PaxosMessage request) {
+        ReadIndexRequest read = new ReadIndexRequest(connection, request.id);
+        reads.increment();
+        boolean lease = (request.flags & PaxosMessage.FLAG_LEASE) != 0;
+        if (lease && leaderPrepared && System.nanoTime() < leaseExpiry) {
+            leaseReads.increment();
+            connection.write(new PaxosMessage(PaxosMessage.READINDEX, 0, maxChosenSlot, read.readID));
+            readIndexNanos.record(System.nanoTime() - read.receivedAt);
+            return;
+        }
+        readsWaiting.add(read);
+        if (!leaderPrepared) {
+            if (!preparing) {
+                prepare(leaderBallot);
+            }
+        } else if (readsInRound.isEmpty()) {
+            startHeartbeat();
+        }
+    }
+
+    /**
+     * Starts a HEARTBEAT round for every waiting read. One quorum round confirms the leader for all of them at once.
+     */
+    private void startHeartbeat() {
+        readsInRound.addAll(readsWaiting);
+        readsWaiting.clear();
+        heartbeatRound += 1;
+        heartbeatSentAt = System.nanoTime();
+        heartbeats.clear();
+        writeToAllAcceptors(new PaxosMessage(PaxosMessage.HEARTBEAT, leaderBallot, 0, heartbeatRound));
+    }
+
+    /**
+     * Counts a HEARTBEAT reply. Once the repliers are a majority of every configuration in use, the leader ballot is
+     * confirmed, so every read in the round gets the highest chosen slot as its read index and the lease is renewed
+     * @param member int member ID of the server that replied
+     * @param reply PaxosMessage HEARTBEAT with the ballot and round
+     */
+    synchronized void heartbeat(int member, PaxosMessage reply) {
+        if (readsInRound.isEmpty() || reply.ballot != leaderBallot || reply.id != heartbeatRound) {
+            return;
+        }
+        if (!isVoter(member) || !heartbeats.add(member) || !quorumOfAll(heartbeats)) {
+            return;
+        }
+        if (LOG.trace()) {
+            LOG.trace("{} servers confirmed leader ballot {}. Read index is slot {}", heartbeats.size(),
+                    Ballot.toString(leaderBallot), maxChosenSlot);
+        }
+        renewLease(heartbeatSentAt);
+        long now = System.nanoTime();
+        for (ReadIndexRequest read : readsInRound) {
+            read.connection.write(new PaxosMessage(PaxosMessage.READINDEX, 0, maxChosenSlot, read.readID));
+            readIndexNanos.record(now - read.receivedAt);
+        }
+        readsInRound.clear();
+        if (!readsWaiting.isEmpty()) {
+            startHeartbeat();
+        }
+    }
+
+    /**
+     * Extends the leader lease after a majority acknowledged the leader ballot. The acceptors' leases started when
+     * they received the message, so timing the lease from when it was sent keeps the leader's lease inside theirs
+     * @param sentAt long System.nanoTime() the acknowledged message was sent at
+     */
+    private void renewLease(long sentAt) {
+        // Leave a tenth of the lease as a margin for clock drift between the machines
+        leaseExpiry = Math.max(leaseExpiry, sentAt + TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS * 9 / 10));
+    }
+
+    /**
+     * Handles a NACK: an acceptor has promised a higher ballot, or is holding a lease for another leader. The leader
+     * stands down, so new requests and reads wait, and after a randomized exponential backoff runs Phase 1 again
+     * above the highest ballot any NACK reported, recovering whatever was accepted for the slots still in flight. A
+     * PREPARE refused for a lease is retried once the lease has run out.
+     * @param maxID long ballot the acceptor has promised
+     * @param leaseMillis long time left on the acceptor's lease for another leader. 0 if there is none
+     */
+    synchronized void ignored(long maxID, long leaseMillis) {
+        nacks.increment();
+        if (leaseMillis > 0 ? !preparing : maxID < leaderBallot) {
+            return; // NACK of a ballot this coordinator has already moved past
+        }
+        highestSeen = Math.max(highestSeen, maxID);
+        if (backingOff) {
+            return;
+        }
+        backingOff = true;
+        leaderPrepared = false;
+        preparing = true;
+        leaseExpiry = 0;
+        backoffs.increment();
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(preemptions, 20));
+        preemptions += 1;
+        long delay = leaseMillis + ThreadLocalRandom.current().nextLong(backoff + 1);
+        long ballot = leaderBallot;
+        LOG.info("Leader ballot {} {}. Retrying PREPARE in {}ms", Ballot.toString(ballot), leaseMillis > 0 ?
+                "refused, another leader holds a lease" : "preempted by " + Ballot.toString(maxID), delay);
+        timer.schedule(() -> {
+            synchronized (this) {
+                if (backingOff && leaderBallot == ballot) {
+                    prepare(highestSeen);
                 }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-            } catch (IOException e) {
-                System.out.println(timestamp() + name + " IOException during promise phase.");
-            } catch (IndexOutOfBoundsException f) {
-                System.out.println(timestamp() + name + " IndexOutOfBoundsException. A server has been closed. Retrying");
+    /**
+     * @return long lowest slot that hasn't been chosen yet. Every slot before it has had its DONE sent
+     */
+    synchronized long firstUnchosenSlot() {
+        long slot = nextSlot;
+        for (long inFlight : instances.keySet()) {
+            slot = Math.min(slot, inFlight);
+        }
+        return slot;
+    }
+
+    /**
+     * Finds a donor for a server that is missing chosen slots and asks it to stream a snapshot. If every other server
+     * is away or catching up itself, the request waits for one to connect or finish. The server is never started
+     * from an empty map instead, since the servers that have the chosen slots may only be cut off for a moment
+     * @param server ServerConnection of the server catching up
+     * @param request PaxosMessage CATCHUP with the slot the server needs to be caught up to
+     */
+    synchronized void catchup(ServerConnection server, PaxosMessage request) {
+        catchups.increment();
+        catchupsWaiting.removeIf(transfer -> transfer.server == server);
+        List<CatchupTransfer> donating = new ArrayList<>();
+        transfers.values().removeIf(transfer -> transfer.donor == server && donating.add(transfer));
+        findDonor(new CatchupTransfer(server, request.slot));
+        for (CatchupTransfer transfer : donating) {
+            // A donor that is behind itself won't get to the slot it was asked for before its own catch-up
+            findDonor(transfer);
+        }
+    }
+
+    /**
+     * Starts a catch-up from the first connected server that isn't catching up itself, or parks it until one is free
+     * @param transfer CatchupTransfer without a donor
+     */
+    private void findDonor(CatchupTransfer transfer) {
+        ServerConnection server = transfer.server;
+        for (ServerConnection candidate : servers) {
+            if (candidate != server && !candidate.isClosed() && !catchingUp(candidate)) {
+                long transferID = ++nextTransfer;
+                transfer.donor = candidate;
+                transfers.put(transferID, transfer);
+                LOG.info("{} catching {} up to slot {}", candidate.name, server.name, transfer.slot);
+                candidate.write(new PaxosMessage(PaxosMessage.CATCHUP, 0, transfer.slot, transferID));
+                return;
+            }
+        }
+        LOG.warn("No server to catch {} up from yet. Waiting for one", server.name);
+        catchupsWaiting.add(transfer);
+    }
+
+    /**
+     * @param server ServerConnection to check
+     * @return boolean true if the server is being caught up or waiting to be
+     */
+    private boolean catchingUp(ServerConnection server) {
+        for (CatchupTransfer transfer : transfers.values()) {
+            if (transfer.server == server) {
+                return true;
+            }
+        }
+        for (CatchupTransfer transfer : catchupsWaiting) {
+            if (transfer.server == server) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks for donors again for the catch-ups waiting on one, after a server connected or one finished catching up
+     */
+    private void retryCatchups() {
+        List<CatchupTransfer> waiting = new ArrayList<>(catchupsWaiting);
+        catchupsWaiting.clear();
+        waiting.forEach(this::findDonor);
+    }
+
+    /**
+     * Forwards a snapshot chunk from a donor to the server catching up
+     * @param chunk PaxosMessage SNAPSHOT chunk
+     */
+    void snapshotChunk(PaxosMessage chunk) {
+        CatchupTransfer transfer;
+        synchronized (this) {
+            if ((chunk.flags & PaxosMessage.FLAG_LAST) != 0) {
+                transfer = transfers.remove(chunk.id);
+                retryCatchups();
+            } else {
+                transfer = transfers.get(chunk.id);
+            }
+        }
+        if (transfer != null) {
+            transfer.server.write(chunk);
+        }
+    }
+
+    /**
+     * Sends a message to every server in the ACCEPTOR role. The frame is encoded once for all of them
+     * @param message PaxosMessage to send
+     */
+    private void writeToAllAcceptors(PaxosMessage message) {
+        ByteBuffer frame = PaxosCodec.encode(message);
+        for (ServerConnection server : servers) {
+            if (server.acceptor) {
+                server.writeFrame(frame);
             }
+        }
+    }
+
+    /**
+     * Sends a message to every server so acceptors and learners all apply the chosen command
+     * @param message PaxosMessage to send
+     */
+    private void writeToAll(PaxosMessage message) {
+        ByteBuffer frame = PaxosCodec.encode(message);
+        for (ServerConnection server : servers) {
+            server.writeFrame(frame);
+        }
+    }
+}
+
+/**
+ * Event loop thread that runs the non-blocking I/O for a share of the server connections. Each loop has its own
+ * Selector, so a handful of loops serve every replica without a thread per connection.
+ */
+class EventLoop extends Thread {
+    private static final Log LOG = Log.get("EventLoop");
 
+    private final Selector selector;
+    // Connections accepted by the main thread, registered with the selector on the loop thread
+    private final Queue<SocketConnection> registrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor that opens the loop's Selector
+     * @param name String thread name
+     * @throws IOException if the Selector can't be opened
+     */
+    EventLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands a new connection to this loop. Safe to call from any thread
+     * @param connection SocketConnection to serve
+     */
+    void register(SocketConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Wakes the loop so it picks up a change to a connection's interest set
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Loop run method. Waits for ready channels and reads or flushes each of them, never blocking on one server
+     */
+    @Override
+    public void run() {
+        while (true) {
             try {
-                if (line.startsWith("ACCEPT") && coord.numAccepted < coord.numAcceptors) {
-                    // params format: ["ACCEPT", "REQUEST", "[put,k,v]"
-                    coord.numAccepted += 1;
-                    String[] params = line.split(" ");
-                    System.out.println("ACCEPT received from server: " + name + ". Checking for majority");
-                    acceptedMajorityCheck(params[2]); // writes command to proposers and learners.
-                    continue;
-                }
+                selector.select();
             } catch (IOException e) {
-                System.out.println(timestamp() + name + " IOException during accept phase.");
+                LOG.warn("{} IOException while selecting: {}", getName(), e.getMessage());
+                return;
             }
-
-            if (coord.paxosDone) {
-                //reset
+            SocketConnection added;
+            while ((added = registrations.poll()) != null) {
+                added.register(selector);
+            }
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                SocketConnection connection = (SocketConnection) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
             }
         }
+    }
+}
+
+/**
+ * Non-blocking TCP connection to one PAXOSGPAServer. Frames are read into a per-connection buffer and handed to the
+ * Coordinator as soon as they are whole. Writes go straight to the channel when it can take them, and whatever
+ * doesn't fit is queued and flushed by the event loop once the channel is writable again.
+ */
+class SocketConnection extends ServerConnection {
+    // A server this far behind on reading its messages is dropped rather than buffered for without bound
+    static final int MAX_OUTBOUND_BYTES = Integer.getInteger("gpa.coordinator.maxOutboundBytes", 64 * 1024 * 1024);
+
+    final SocketChannel channel;
+    final EventLoop loop;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long outboundBytes = 0;
+    private SelectionKey key;
+    private boolean closed = false;
+
+    /**
+     * Constructor for a newly accepted server connection
+     * @param coord Coordinator handling the server pool
+     * @param channel SocketChannel accepted from the server
+     * @param loop EventLoop that will serve the connection
+     * @throws IOException if the channel can't be made non-blocking
+     */
+    SocketConnection(Coordinator coord, SocketChannel channel, EventLoop loop) throws IOException {
+        super(coord, "Server " + channel.getRemoteAddress());
+        this.channel = channel;
+        this.loop = loop;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Registers the channel with the loop's selector. Called on the loop thread
+     * @param selector Selector of the connection's EventLoop
+     */
+    synchronized void register(Selector selector) {
+        if (closed) {
+            return;
+        }
         try {
-            dataIn.close();
-            dataOut.close();
-            serverSocket.close();
-            Thread.currentThread().interrupt();
+            key = channel.register(selector, outbound.isEmpty() ? SelectionKey.OP_READ :
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            LOG.info("{} registered with {}. Listening...", name, loop.getName());
         } catch (IOException e) {
-            System.out.println(timestamp() + name + "IOException while closing dead server thread");
+            LOG.warn("{} IOException while registering connection", name);
+            close();
         }
     }
 
-    private void writeToAllAcceptors(String message) throws IOException {
-        for (int i = 0; i < (coord.roles).size(); i++) {
-            if ((coord.roles).get(i).equalsIgnoreCase("ACCEPTOR")) {
-                ((coord.serverThreads).get(i)).dataOut.writeUTF(message);
+    /**
+     * Reads whatever the server has sent and hands each whole frame to the Coordinator. Called on the loop thread
+     */
+    void onReadable() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                LOG.info("{} has stopped", name);
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.remaining() >= Integer.BYTES) {
+                int start = readBuffer.position();
+                int length = readBuffer.getInt(start);
+                if (length < 0 || length > PaxosCodec.MAX_FRAME) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                if (readBuffer.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                readBuffer.position(start + Integer.BYTES);
+                ByteBuffer body = readBuffer.slice();
+                body.limit(length);
+                readBuffer.position(start + Integer.BYTES + length);
+                coord.framesIn.increment();
+                dispatch(PaxosCodec.decode(body));
+            }
+            readBuffer.compact();
+            // Grow the buffer if the next frame is bigger than it
+            if (readBuffer.position() >= Integer.BYTES &&
+                    readBuffer.getInt(0) + Integer.BYTES > readBuffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.getInt(0) + Integer.BYTES);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
             }
+        } catch (IOException e) {
+            LOG.warn("{} IOException while reading from server: {}", name, e.getMessage());
+            close();
         }
     }
 
-    private void writeToProposersAndLearners(String message) throws IOException {
-        for (int i = 0; i < (coord.roles).size(); i++) {
-            if ((coord.roles).get(i).equalsIgnoreCase("PROPOSER") ||
-                    (coord.roles).get(i).equalsIgnoreCase("LEARNER")) {
-                System.out.println("Writing to proposer/learner server " + (coord.serverThreads).get(i).name);
-                ((coord.serverThreads).get(i)).dataOut.writeUTF(message);
+    /**
+     * Writes an already encoded frame to this connection's server without blocking. Safe to call from any thread.
+     * The frame buffer isn't changed, so the same frame can be written to many connections
+     * @param frame ByteBuffer holding a whole frame
+     */
+    @Override
+    synchronized void writeFrame(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer pending = frame.duplicate();
+        coord.framesOut.increment();
+        try {
+            if (outbound.isEmpty()) {
+                channel.write(pending);
+                if (!pending.hasRemaining()) {
+                    return;
+                }
+                if (key != null) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    loop.wakeup();
+                }
             }
+        } catch (IOException e) {
+            LOG.warn("{} IOException while writing to server", name);
+            close();
+            return;
+        }
+        outbound.add(pending);
+        outboundBytes += pending.remaining();
+        coord.outboundBytes.add(pending.remaining());
+        if (outboundBytes > MAX_OUTBOUND_BYTES) {
+            LOG.warn("{} is too far behind on reading. Dropping it", name);
+            coord.droppedConnections.increment();
+            close();
         }
     }
 
-    private void promiseMajorityCheck() throws IOException {
-        if (coord.numPromised >= ((coord.numAcceptors / 2) + 1)) { // if we have a majority
-            System.out.println(timestamp() + coord.numPromised + " promised servers. Promise majority reached");
-            writeToAllAcceptors("ACCEPT " + Arrays.toString(coord.requestArgs));
-        } else {
-            System.out.println(timestamp() + "Received PROMISE from server " + name + ". Waiting for majority");
+    /**
+     * Flushes the queued frames once the channel is writable again. Called on the loop thread
+     */
+    synchronized void onWritable() {
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer[] frames = outbound.toArray(new ByteBuffer[0]);
+                long written = channel.write(frames);
+                outboundBytes -= written;
+                coord.outboundBytes.add(-written);
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+                if (written == 0) {
+                    return; // Socket buffer is full again. Wait for the next writable event
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            LOG.warn("{} IOException while writing to server", name);
+            close();
         }
     }
 
-    private void acceptedMajorityCheck(String message) throws IOException {
-        if (coord.numAccepted >= ((coord.numAcceptors / 2) + 1)) { // if we have a majority
-            System.out.println(timestamp() + coord.numAccepted + " accepted servers. Accepted majority reached");
-            System.out.println("Majority accepted. Message sending to proposers and learners: " + message);
-            writeToProposersAndLearners(message);
-            writeToAllAcceptors("DONE");
-            coord.paxosDone = true;
-        } else {
-            System.out.println(timestamp() + "Received ACCEPT from server " + name + ". Waiting for majority");
+    /**
+     * @return boolean true once the connection has been closed
+     */
+    @Override
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the channel. Later writes to the connection are dropped
+     */
+    @Override
+    synchronized void close() {
+        if (closed) {
+            return;
         }
+        closed = true;
+        outbound.clear();
+        coord.outboundBytes.add(-outboundBytes);
+        outboundBytes = 0;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("{} IOException while closing dead server connection", name);
+        }
+        LOG.info("{} closed", name);
+        coord.closed(this);
+    }
+}
+
+/**
+ * Leader state for one slot of the replicated log
+ */
+class PaxosInstance {
+    final long slot;
+    final long requestID;
+    final Batch batch;
+    long ballot;
+    // Configuration that decides the slot and the ACCEPTEDs for the current ACCEPT round, both replaced each time the
+    // slot is proposed. config is written before accepts, so a thread that reads accepts sees its config
+    Membership config;
+    volatile Quorum accepts;
+    long sentAt;
+    // When the slot was first proposed and how many ACCEPT rounds it has had, for the metrics
+    final long proposedAt = System.nanoTime();
+    int rounds = 0;
+
+    /**
+     * Constructor for a value proposed in a slot
+     * @param slot long log slot
+     * @param requestID long ID of the request that proposed the value. 0 for a no-op
+     * @param batch Batch of commands
+     */
+    PaxosInstance(long slot, long requestID, Batch batch) {
+        this.slot = slot;
+        this.requestID = requestID;
+        this.batch = batch;
     }
+}
+
+/**
+ * A server waiting for a read index so it can serve a get from its own map
+ */
+class ReadIndexRequest {
+    final ServerConnection connection;
+    final long readID;
+    final long receivedAt = System.nanoTime();
+
+    /**
+     * Constructor for a read waiting on the leader to be confirmed
+     * @param connection ServerConnection of the server doing the read
+     * @param readID long ID the server matches the reply with
+     */
+    ReadIndexRequest(ServerConnection connection, long readID) {
+        this.connection = connection;
+        this.readID = readID;
+    }
+}
+
+/**
+ * A server being caught up from a snapshot, and the server streaming it
+ */
+class CatchupTransfer {
+    final ServerConnection server;
+    final long slot;
+    // Null while the catch-up waits for a donor
+    ServerConnection donor;
 
     /**
-     * Timestamp of the current time to print on each line.
-     * @return String version of the timestamp formatted for readability
+     * Constructor for a catch-up that has no donor yet
+     * @param server ServerConnection of the server catching up
+     * @param slot long slot it needs to be caught up to
      */
-    private String timestamp() {
-        long currentTime = System.currentTimeMillis();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:ms");
-        //formatted value of current Date
-        String time = "" + df.format(currentTime);
-        return "(System time: " + time + ") ";
+    CatchupTransfer(ServerConnection server, long slot) {
+        this.server = server;
+        this.slot = slot;
     }
 }
@@ -0,0 +1,102 @@
+
+/**
+ * Blocking socket connection that sends and receives PaxosCodec frames.
+ * Frames are encoded into a reused buffer and written with a single write, and received frames are read into a
+ * reused buffer, so the only allocation per message is the decoded message itself.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class FramedConnection implements PaxosLink {
+    private final Socket socket;
+    private final DataInputStream dataIn;
+    private final OutputStream dataOut;
+    // Serializes writers. A socket write can block, and blocking inside a monitor would pin a virtual thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * Constructor that establishes the streams for a connected socket
+     * @param socket Socket connected to the other side
+     * @throws IOException if the streams can't be established
+     */
+    public FramedConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        dataIn = new DataInputStream(socket.getInputStream());
+        dataOut = socket.getOutputStream();
+    }
+
+    /**
+     * Encodes and writes a message. Safe to call from many threads
+     * @param message PaxosMessage to send
+     * @throws IOException if the other side is unavailable
+     */
+    @Override
+    public void send(PaxosMessage message) throws IOException {
+        writeLock.lock();
+        try {
+            int size = PaxosCodec.frameSize(message);
+            if (writeBuffer.capacity() < size) {
+                writeBuffer = ByteBuffer.allocate(Math.max(size, writeBuffer.capacity() * 2));
+            }
+            writeBuffer.clear();
+            PaxosCodec.encode(message, writeBuffer);
+            dataOut.write(writeBuffer.array(), 0, writeBuffer.position());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame that was already encoded with PaxosCodec.encode. The frame buffer isn't changed, so the same
+     * frame can be written to many connections
+     * @param frame ByteBuffer holding a whole frame
+     * @throws IOException if the other side is unavailable
+     */
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        writeLock.lock();
+        try {
+            dataOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the next message arrives. Only one thread may receive on a connection
+     * @return PaxosMessage received
+     * @throws IOException if the other side is unavailable or sent a malformed frame
+     */
+    @Override
+    public PaxosMessage receive() throws IOException {
+        int length = dataIn.readInt();
+        if (length < 0 || length > PaxosCodec.MAX_FRAME) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+        }
+        dataIn.readFully(readBuffer.array(), 0, length);
+        readBuffer.clear().limit(length);
+        return PaxosCodec.decode(readBuffer);
+    }
+
+    /**
+     * Closes the streams and socket
+     * @throws IOException if the socket can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
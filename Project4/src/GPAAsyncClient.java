@@ -0,0 +1,220 @@
+
+/**
+ * Asynchronous client library for the PAXOSGPAServer. Supports int Student ID keys and float GPA values.
+ * Every call returns a CompletableFuture right away. Commands queue up and a few sender threads drain the queues into
+ * bulk putAll/getAll/deleteAll RMI calls, so many commands are in flight per connection without a thread per
+ * outstanding call. A window caps how many commands can be outstanding at once. Once it is full the next call
+ * blocks until a command completes, which keeps a fast caller from queueing without bound.
+ * Each key always goes through the same sender, which makes one call at a time, so commands on one key are applied
+ * in the order they were made. Commands on different keys that are in flight together may be applied in any order.
+ * Wait for a future before sending a command that depends on another key.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+public class GPAAsyncClient implements AutoCloseable {
+    // Defaults for the number of outstanding commands, sender threads and commands per bulk RMI call
+    static final int WINDOW = Integer.getInteger("gpa.client.window", 1024);
+    static final int SENDERS = Integer.getInteger("gpa.client.senders", 4);
+    static final int MAX_BULK = Integer.getInteger("gpa.client.maxBulk", 4096);
+
+    private final src.GPARepo server;
+    private final Semaphore window;
+    // One queue per sender. A command goes to the queue its key picks
+    private final List<LinkedBlockingQueue<Command>> queues = new ArrayList<>();
+    private final List<Thread> senders = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for a client of an already looked up server
+     * @param server src.GPARepo GPA hashmap server
+     * @param window int most commands outstanding at once
+     * @param numSenders int number of threads making RMI calls, at least 1
+     */
+    public GPAAsyncClient(src.GPARepo server, int window, int numSenders) {
+        if (numSenders < 1) {
+            throw new IllegalArgumentException("GPAAsyncClient needs at least one sender. Got: " + numSenders);
+        }
+        this.server = server;
+        this.window = new Semaphore(window);
+        for (int i = 0; i < numSenders; i++) {
+            LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            senders.add(Threads.start("GPAAsyncClient-" + i, () -> send(queue)));
+        }
+    }
+
+    /**
+     * Looks the server up in the RMI registry and connects with the default window and number of senders, through a
+     * GPANearCache if gpa.cache.size is set
+     * @param host String hostname
+     * @param port int registry port
+     * @return GPAAsyncClient connected to the server
+     * @throws RemoteException if the registry can't be reached
+     * @throws NotBoundException if no GPA server is bound there
+     * @throws MalformedURLException if the host isn't valid
+     */
+    public static GPAAsyncClient connect(String host, int port)
+            throws RemoteException, NotBoundException, MalformedURLException {
+        src.GPARepo server = GPANearCache.wrap(
+                (src.GPARepo) Naming.lookup("rmi://" + host + ":" + port + "/GPAService"));
+        return new GPAAsyncClient(server, WINDOW, SENDERS);
+    }
+
+    /**
+     * @param key int Student ID
+     * @param val float GPA
+     * @return CompletableFuture completed with the server's response once the put is applied
+     */
+    public CompletableFuture<String> put(int key, float val) {
+        return submit(Batch.PUT, key, val);
+    }
+
+    /**
+     * @param key int Student ID
+     * @return CompletableFuture completed with the server's response
+     */
+    public CompletableFuture<String> get(int key) {
+        return submit(Batch.GET, key, 0);
+    }
+
+    /**
+     * @param key int Student ID
+     * @return CompletableFuture completed with the server's response once the delete is applied
+     */
+    public CompletableFuture<String> delete(int key) {
+        return submit(Batch.DELETE, key, 0);
+    }
+
+    /**
+     * @return int number of commands that can be sent before the window is full
+     */
+    public int availableWindow() {
+        return window.availablePermits();
+    }
+
+    /**
+     * Stops the sender threads. Commands still queued are completed exceptionally
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+        for (LinkedBlockingQueue<Command> queue : queues) {
+            Command command;
+            while ((command = queue.poll()) != null) {
+                command.result.completeExceptionally(new IllegalStateException("GPAAsyncClient closed"));
+            }
+        }
+    }
+
+    private CompletableFuture<String> submit(byte op, int key, float val) {
+        Command command = new Command(op, key, val);
+        if (closed) {
+            command.result.completeExceptionally(new IllegalStateException("GPAAsyncClient closed"));
+            return command.result;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            command.result.completeExceptionally(e);
+            return command.result;
+        }
+        command.result.whenComplete((response, failure) -> window.release());
+        LinkedBlockingQueue<Command> queue = queues.get(Math.floorMod(key, queues.size()));
+        queue.add(command);
+        // close() may have drained the queues since closed was checked above. If so, nothing will send the command
+        if (closed && queue.remove(command)) {
+            command.result.completeExceptionally(new IllegalStateException("GPAAsyncClient closed"));
+        }
+        return command.result;
+    }
+
+    /**
+     * Sender thread loop. Takes whatever commands are in its queue and sends each run of the same kind as one bulk
+     * call, keeping the order they were queued in. Each call returns once its commands are applied, so runs on the
+     * same key are applied in that order too
+     * @param queue LinkedBlockingQueue of the commands whose keys pick this sender
+     */
+    private void send(LinkedBlockingQueue<Command> queue) {
+        List<Command> drained = new ArrayList<>(MAX_BULK);
+        while (!closed) {
+            try {
+                drained.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(drained, MAX_BULK - 1);
+            int start = 0;
+            for (int i = 1; i <= drained.size(); i++) {
+                if (i == drained.size() || drained.get(i).op != drained.get(start).op) {
+                    call(drained.subList(start, i));
+                    start = i;
+                }
+            }
+            drained.clear();
+        }
+    }
+
+    /**
+     * Makes one bulk RMI call for a run of commands of the same kind and completes their futures
+     * @param run List of commands that all have the same op
+     */
+    private void call(List<Command> run) {
+        int[] keys = new int[run.size()];
+        float[] vals = new float[run.size()];
+        for (int i = 0; i < run.size(); i++) {
+            keys[i] = run.get(i).key;
+            vals[i] = run.get(i).val;
+        }
+        try {
+            String[] responses;
+            switch (run.get(0).op) {
+                case Batch.PUT:
+                    responses = server.putAll(keys, vals);
+                    break;
+                case Batch.GET:
+                    responses = server.getAll(keys);
+                    break;
+                default:
+                    responses = server.deleteAll(keys);
+            }
+            for (int i = 0; i < run.size(); i++) {
+                run.get(i).result.complete(responses[i]);
+            }
+        } catch (RemoteException | RuntimeException e) {
+            for (Command command : run) {
+                command.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A command waiting to be sent and the future its caller is waiting on
+     */
+    private static class Command {
+        final byte op;
+        final int key;
+        final float val;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Command(byte op, int key, float val) {
+            this.op = op;
+            this.key = key;
+            this.val = val;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+
+/**
+ * Load generator and latency benchmark for the PAXOSGPAServer cluster, run from PAXOSGPAClient with the "bench"
+ * argument followed by name=value settings:
+ *   reads=0.5            fraction of operations that are gets. The rest are puts
+ *   keys=100000          number of Student IDs, 1 to keys
+ *   dist=uniform         key distribution, uniform or zipf
+ *   zipf=0.99            Zipf exponent. Higher is more skewed towards the low IDs
+ *   threads=16           closed loop threads, or the in-flight window of the open loop
+ *   mode=closed          closed, where each thread waits for its reply before the next operation, or open, where
+ *                        operations are sent at a fixed rate whether or not earlier ones have finished
+ *   rate=1000            operations per second in the open loop
+ *   warmup=5             seconds run before measuring
+ *   duration=30          seconds measured
+ *   preload=true         put every key with putAll before starting so gets find their keys
+ *   seed=42              random seed, so runs can be repeated exactly
+ *   report=gpa-bench.json  machine-readable report file
+ * Latency is measured per operation into read and write histograms. In the open loop it is measured from when the
+ * operation was due to be sent, so a stalled cluster shows up as latency instead of as a lower send rate.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class GPABenchmark {
+    private final src.GPARepo server;
+    private final Map<String, String> settings = new LinkedHashMap<>();
+
+    private final double readRatio;
+    private final int numKeys;
+    private final String distribution;
+    private final double zipfExponent;
+    private final int threads;
+    private final String mode;
+    private final double rate;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final boolean preload;
+    private final long seed;
+    private final String reportFile;
+
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final LatencyHistogram writes = new LatencyHistogram();
+    private final AtomicLongArray opsPerSecond;
+    private final AtomicLongArray errorsPerSecond;
+    // Cumulative distribution of the Zipf key ranks. Null for uniform keys
+    private double[] zipfCdf;
+    private long measureStart;
+
+    /**
+     * Constructor that reads the benchmark settings
+     * @param server src.GPARepo GPA hashmap server
+     * @param args String[] name=value settings. Anything not given keeps its default
+     */
+    public GPABenchmark(src.GPARepo server, String[] args) {
+        this.server = server;
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Benchmark settings must be name=value. Got: " + arg);
+            }
+            settings.put(pair[0].toLowerCase(), pair[1]);
+        }
+        readRatio = Double.parseDouble(setting("reads", "0.5"));
+        numKeys = Integer.parseInt(setting("keys", "100000"));
+        distribution = setting("dist", "uniform").toLowerCase();
+        zipfExponent = Double.parseDouble(setting("zipf", "0.99"));
+        threads = Integer.parseInt(setting("threads", "16"));
+        mode = setting("mode", "closed").toLowerCase();
+        rate = Double.parseDouble(setting("rate", "1000"));
+        warmupSeconds = Integer.parseInt(setting("warmup", "5"));
+        durationSeconds = Integer.parseInt(setting("duration", "30"));
+        preload = Boolean.parseBoolean(setting("preload", "true"));
+        seed = Long.parseLong(setting("seed", "42"));
+        reportFile = setting("report", "gpa-bench.json");
+        if (!distribution.equals("uniform") && !distribution.equals("zipf")) {
+            throw new IllegalArgumentException("dist must be uniform or zipf");
+        }
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            throw new IllegalArgumentException("mode must be closed or open");
+        }
+        opsPerSecond = new AtomicLongArray(durationSeconds + 1);
+        errorsPerSecond = new AtomicLongArray(durationSeconds + 1);
+    }
+
+    /**
+     * Runs the benchmark, prints a summary and writes the report
+     * @throws RemoteException if the server can't be reached for the preload
+     * @throws InterruptedException if interrupted while waiting for the load to finish
+     * @throws IOException if the report can't be written
+     */
+    public void run() throws RemoteException, InterruptedException, IOException {
+        if (distribution.equals("zipf")) {
+            buildZipf();
+        }
+        if (preload) {
+            preload();
+        }
+        System.out.println("Benchmark: " + describe());
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        if (mode.equals("closed")) {
+            runClosedLoop(end);
+        } else {
+            runOpenLoop(start, end);
+        }
+        printSummary();
+        writeReport();
+    }
+
+    /**
+     * Closed loop. Each thread sends its next operation as soon as the last one returns
+     * @param end long System.nanoTime() to stop at
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private void runClosedLoop(long end) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom random = new SplittableRandom(seed + t);
+            Thread worker = Threads.factory("Benchmark-" + t).newThread(() -> {
+                while (System.nanoTime() < end) {
+                    boolean read = random.nextDouble() < readRatio;
+                    int key = nextKey(random);
+                    long sent = System.nanoTime();
+                    boolean failed;
+                    try {
+                        String response = read ? server.get(key) : server.put(key, nextGPA(random));
+                        failed = isError(response);
+                    } catch (RemoteException e) {
+                        failed = true;
+                    }
+                    record(read, sent, System.nanoTime(), failed);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Open loop. Operations are sent on a fixed schedule through a GPAAsyncClient whatever the cluster is doing.
+     * Latency counts from the scheduled send time
+     * @param start long System.nanoTime() the schedule starts at
+     * @param end long System.nanoTime() to stop at
+     * @throws InterruptedException if interrupted while waiting for the last replies
+     */
+    private void runOpenLoop(long start, long end) throws InterruptedException {
+        GPAAsyncClient client = new GPAAsyncClient(server, threads, GPAAsyncClient.SENDERS);
+        SplittableRandom random = new SplittableRandom(seed);
+        double period = TimeUnit.SECONDS.toNanos(1) / rate;
+        List<CompletableFuture<String>> outstanding = new ArrayList<>();
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * period);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean read = random.nextDouble() < readRatio;
+            int key = nextKey(random);
+            CompletableFuture<String> reply = read ? client.get(key) : client.put(key, nextGPA(random));
+            reply.whenComplete((response, failure) ->
+                    record(read, due, System.nanoTime(), failure != null || isError(response)));
+            outstanding.add(reply);
+            if (outstanding.size() >= 4096) {
+                outstanding.removeIf(CompletableFuture::isDone);
+            }
+        }
+        try {
+            CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("Not every operation finished within 60s of the end of the run");
+        }
+        client.close();
+    }
+
+    private void record(boolean read, long sent, long done, boolean failed) {
+        if (sent < measureStart) {
+            return; // Warmup
+        }
+        int second = (int) Math.min(durationSeconds, TimeUnit.NANOSECONDS.toSeconds(sent - measureStart));
+        if (failed) {
+            errorsPerSecond.incrementAndGet(second);
+            return;
+        }
+        (read ? reads : writes).record(done - sent);
+        opsPerSecond.incrementAndGet(second);
+    }
+
+    /**
+     * Puts every key so reads find a value
+     * @throws RemoteException if the server can't be reached
+     */
+    private void preload() throws RemoteException {
+        System.out.println("Preloading " + numKeys + " keys");
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int from = 1; from <= numKeys; from += 4096) {
+            int to = Math.min(numKeys, from + 4095);
+            int[] keys = new int[to - from + 1];
+            float[] vals = new float[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = from + i;
+                vals[i] = nextGPA(random);
+            }
+            server.putAll(keys, vals);
+        }
+    }
+
+    private int nextKey(SplittableRandom random) {
+        if (zipfCdf == null) {
+            return 1 + random.nextInt(numKeys);
+        }
+        double u = random.nextDouble();
+        int low = 0;
+        int high = numKeys - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (zipfCdf[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return 1 + low;
+    }
+
+    private static float nextGPA(SplittableRandom random) {
+        return random.nextInt(401) / 100f;
+    }
+
+    private void buildZipf() {
+        zipfCdf = new double[numKeys];
+        double total = 0;
+        for (int rank = 1; rank <= numKeys; rank++) {
+            total += 1 / Math.pow(rank, zipfExponent);
+            zipfCdf[rank - 1] = total;
+        }
+        for (int i = 0; i < numKeys; i++) {
+            zipfCdf[i] /= total;
+        }
+    }
+
+    private static boolean isError(String response) {
+        return response == null || response.startsWith("Coordinator unavailable") ||
+                response.startsWith("Request interrupted");
+    }
+
+    private String setting(String name, String defaultValue) {
+        return settings.getOrDefault(name, defaultValue);
+    }
+
+    private String describe() {
+        String load = mode.equals("closed") ? "closed loop, " + threads + " threads" :
+                "open loop at " + rate + " ops/s, window " + threads;
+        return load + ", " + Math.round(readRatio * 100) + "% reads, " +
+                (zipfCdf == null ? "uniform" : "zipf(" + zipfExponent + ")") + " over " + numKeys + " keys, " +
+                warmupSeconds + "s warmup, " + durationSeconds + "s measured";
+    }
+
+    private long totalOps() {
+        long ops = 0;
+        for (int i = 0; i < opsPerSecond.length(); i++) {
+            ops += opsPerSecond.get(i);
+        }
+        return ops;
+    }
+
+    private long totalErrors() {
+        long errors = 0;
+        for (int i = 0; i < errorsPerSecond.length(); i++) {
+            errors += errorsPerSecond.get(i);
+        }
+        return errors;
+    }
+
+    private void printSummary() {
+        long ops = totalOps();
+        System.out.println(String.format("Throughput: %.1f ops/s (%d ops, %d errors)", (double) ops / durationSeconds,
+                ops, totalErrors()));
+        printLatency("read ", reads);
+        printLatency("write", writes);
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.println(String.format("%s latency us: p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  (%d ops)", name,
+                histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                histogram.max() / 1e3, histogram.count()));
+    }
+
+    /**
+     * Writes the settings, summary, latency percentiles, full histograms and throughput timeline as JSON
+     * @throws IOException if the report can't be written
+     */
+    private void writeReport() throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(reportFile),
+                StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"timestamp\": " + System.currentTimeMillis() + ",");
+            out.println("  \"settings\": {\"reads\": " + readRatio + ", \"keys\": " + numKeys +
+                    ", \"dist\": \"" + distribution + "\", \"zipf\": " + zipfExponent + ", \"threads\": " + threads +
+                    ", \"mode\": \"" + mode + "\", \"rate\": " + rate + ", \"warmup\": " + warmupSeconds +
+                    ", \"duration\": " + durationSeconds + ", \"preload\": " + preload + ", \"seed\": " + seed + "},");
+            long ops = totalOps();
+            out.println("  \"summary\": {\"ops\": " + ops + ", \"errors\": " + totalErrors() +
+                    ", \"throughput\": " + (double) ops / durationSeconds + "},");
+            out.println("  \"latencyNanos\": {");
+            out.println("    \"read\": " + latencyJson(reads) + ",");
+            out.println("    \"write\": " + latencyJson(writes));
+            out.println("  },");
+            out.print("  \"timeline\": [");
+            for (int second = 0; second < durationSeconds; second++) {
+                out.print((second == 0 ? "" : ", ") + "{\"second\": " + second + ", \"ops\": " +
+                        opsPerSecond.get(second) + ", \"errors\": " + errorsPerSecond.get(second) + "}");
+            }
+            out.println("]");
+            out.println("}");
+        }
+        System.out.println("Report written to " + reportFile);
+    }
+
+    private static String latencyJson(LatencyHistogram histogram) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"count\": ").append(histogram.count())
+                .append(", \"mean\": ").append(Math.round(histogram.mean()))
+                .append(", \"p50\": ").append(histogram.percentile(50))
+                .append(", \"p90\": ").append(histogram.percentile(90))
+                .append(", \"p99\": ").append(histogram.percentile(99))
+                .append(", \"p999\": ").append(histogram.percentile(99.9))
+                .append(", \"max\": ").append(histogram.max())
+                .append(", \"histogram\": [");
+        boolean[] first = {true};
+        histogram.forEachBucket((value, count) -> {
+            json.append(first[0] ? "" : ", ").append('[').append(value).append(", ").append(count).append(']');
+            first[0] = false;
+        });
+        return json.append("]}").toString();
+    }
+}
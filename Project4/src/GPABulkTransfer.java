@@ -0,0 +1,416 @@
+/**
+ * Streaming bulk import and export of GPA records, run from PAXOSGPAClient:
+ *   java -jar src.RMIGPAClient.jar <hostname> <port> import <file> [name=value ...]
+ *   java -jar src.RMIGPAClient.jar <hostname> <port> export <file> [name=value ...]
+ * A file ending in .csv holds one "Student ID,GPA" line per record and may start with a header line. Any other file
+ * is binary, a big-endian int Student ID and float GPA per record as DataOutputStream writes them.
+ * Settings:
+ *   chunk=4096           records per putAll call when importing, and per page when exporting
+ *   window=8             putAll calls in flight at once, one per sender. Each Student ID always goes through the same
+ *                        sender, which sends its chunks in file order and retries a chunk before sending the next, so
+ *                        a Student ID that appears more than once ends up with its last GPA in the file. Reading
+ *                        stops while window chunks are waiting to be sent, so an import holds at most twice that
+ *                        many chunks in memory however large the file is
+ *   retries=3            times the puts of a chunk that failed or timed out are sent again. A put can be repeated
+ *   lease=30000          milliseconds the server keeps an export's copy of its map between pages
+ * Import goes through GPAService, so it can be pointed at a replica or at a ShardRouter. Export reads one replica's
+ * map as of a single slot through its GPAExport binding, and writes to a temporary file that is only renamed to the
+ * real name once every record is in.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class GPABulkTransfer {
+    private static final int RECORD_BYTES = Integer.BYTES + Float.BYTES;
+    private static final String PUT_OK = "Successfully put";
+
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    private final Path file;
+    private final boolean csv;
+    private final int chunk;
+    private final int window;
+    private final int retries;
+    private final long leaseMillis;
+
+    private final LongAdder imported = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder resent = new LongAdder();
+    private final AtomicReference<String> firstFailure = new AtomicReference<>();
+
+    /**
+     * Constructor that reads the settings
+     * @param file Path of the file to read or write
+     * @param args String[] name=value settings. Anything not given keeps its default
+     */
+    public GPABulkTransfer(Path file, String[] args) {
+        this.file = file;
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Import and export settings must be name=value. Got: " + arg);
+            }
+            settings.put(pair[0].toLowerCase(), pair[1]);
+        }
+        csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        chunk = Integer.parseInt(setting("chunk", "4096"));
+        window = Integer.parseInt(setting("window", "8"));
+        retries = Integer.parseInt(setting("retries", "3"));
+        leaseMillis = Long.parseLong(setting("lease", "30000"));
+        if (chunk < 1 || window < 1 || retries < 0) {
+            throw new IllegalArgumentException("chunk and window must be at least 1 and retries at least 0");
+        }
+    }
+
+    /**
+     * Puts every record of the file. Records are dealt to window senders by Student ID, and each sender's chunk is
+     * sent once it is full. A sender puts its chunks one at a time in the order they filled, so the puts of a Student
+     * ID reach the server in file order. Within a chunk only the last GPA of a Student ID is kept. The reading waits
+     * for a chunk to finish once window of them are waiting
+     * @param server src.GPARepo server or shard router to put the records through
+     * @return boolean true if every record was put
+     * @throws IOException if the file can't be read or isn't in the expected format
+     * @throws InterruptedException if interrupted while waiting for the chunks in flight
+     */
+    public boolean importFile(src.GPARepo server) throws IOException, InterruptedException {
+        System.out.println("Importing " + file + " as " + (csv ? "CSV" : "binary") + " with " + settings);
+        long start = System.nanoTime();
+        Semaphore inFlight = new Semaphore(window);
+        ExecutorService[] senders = new ExecutorService[window];
+        GPAStore[] filling = new GPAStore[window];
+        for (int i = 0; i < window; i++) {
+            senders[i] = Executors.newSingleThreadExecutor(Threads.factory("GPAImport-" + i));
+            filling[i] = new GPAStore(chunk, false);
+        }
+        long read = 0;
+        long sent = 0;
+        try (RecordReader reader = csv ? new CsvReader(file) : new BinaryReader(file)) {
+            int[] keys = new int[chunk];
+            float[] vals = new float[chunk];
+            int n;
+            while ((n = reader.read(keys, vals)) > 0) {
+                read += n;
+                for (int i = 0; i < n; i++) {
+                    int sender = Math.floorMod(keys[i], window);
+                    filling[sender].put(keys[i], vals[i]);
+                    if (filling[sender].size() == chunk) {
+                        sent += send(server, senders[sender], filling[sender], inFlight);
+                        filling[sender] = new GPAStore(chunk, false);
+                    }
+                }
+            }
+            for (int sender = 0; sender < window; sender++) {
+                if (filling[sender].size() > 0) {
+                    sent += send(server, senders[sender], filling[sender], inFlight);
+                }
+            }
+        } finally {
+            // Every chunk already sent is waited for, also when the file turned out to be bad part way through
+            inFlight.acquire(window);
+            for (ExecutorService sender : senders) {
+                sender.shutdown();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Imported %d of %d records in %.1f s: %.0f records/s", imported.sum(), sent,
+                seconds, imported.sum() / seconds));
+        if (read > sent) {
+            System.out.println("  " + (read - sent) + " records replaced by a later record for the same Student ID");
+        }
+        if (resent.sum() > 0) {
+            System.out.println("  " + resent.sum() + " puts sent again after a failure or timeout");
+        }
+        if (failed.sum() > 0) {
+            System.out.println("  " + failed.sum() + " records failed. First failure: " + firstFailure.get());
+        }
+        return failed.sum() == 0;
+    }
+
+    /**
+     * Queues a chunk on its sender, waiting first if window chunks are already waiting or in flight
+     * @param server src.GPARepo server to put the records through
+     * @param sender ExecutorService single thread that sends the chunks of the chunk's Student IDs
+     * @param records GPAStore holding the chunk, one GPA per Student ID
+     * @param inFlight Semaphore with a permit for each chunk that may be waiting or in flight
+     * @return int number of records in the chunk
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    private int send(src.GPARepo server, ExecutorService sender, GPAStore records, Semaphore inFlight)
+            throws InterruptedException {
+        int[] keys = new int[records.size()];
+        float[] vals = new float[records.size()];
+        int[] next = {0};
+        records.forEach((key, val) -> {
+            keys[next[0]] = key;
+            vals[next[0]] = val;
+            next[0]++;
+        });
+        inFlight.acquire();
+        sender.execute(() -> {
+            try {
+                putChunk(server, keys, vals);
+            } finally {
+                inFlight.release();
+            }
+        });
+        return keys.length;
+    }
+
+    /**
+     * Puts one chunk with a single putAll call, then sends the puts that failed again, up to retries times. Each
+     * Student ID is in the chunk once, so a resent put can't undo a later one in the same chunk
+     * @param server src.GPARepo server to put the records through
+     * @param keys int[] Student IDs
+     * @param vals float[] GPA of each Student ID
+     */
+    private void putChunk(src.GPARepo server, int[] keys, float[] vals) {
+        for (int attempt = 0; ; attempt++) {
+            String[] results;
+            try {
+                results = server.putAll(keys, vals);
+            } catch (RemoteException e) {
+                results = new String[keys.length];
+                Arrays.fill(results, "RemoteException: " + e.getMessage());
+            }
+            int left = 0;
+            String failure = null;
+            for (int i = 0; i < keys.length; i++) {
+                if (results[i] != null && results[i].startsWith(PUT_OK)) {
+                    continue;
+                }
+                if (failure == null) {
+                    failure = "key " + keys[i] + ": " + results[i];
+                }
+                keys[left] = keys[i];
+                vals[left] = vals[i];
+                left++;
+            }
+            imported.add(keys.length - left);
+            if (left == 0) {
+                return;
+            }
+            if (attempt == retries) {
+                firstFailure.compareAndSet(null, failure);
+                failed.add(left);
+                return;
+            }
+            resent.add(left);
+            keys = Arrays.copyOf(keys, left);
+            vals = Arrays.copyOf(vals, left);
+        }
+    }
+
+    /**
+     * Writes every record of a replica's map to the file. The next page is fetched while the last one is written
+     * @param server src.GPAExport replica to export
+     * @return long number of records written
+     * @throws IOException if the file can't be written or the export fails
+     */
+    public long exportFile(src.GPAExport server) throws IOException {
+        System.out.println("Exporting to " + file + " as " + (csv ? "CSV" : "binary") + " with " + settings);
+        long start = System.nanoTime();
+        long export = server.openExport(leaseMillis);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        ExecutorService fetcher = Executors.newSingleThreadExecutor(Threads.factory("GPAExport"));
+        long written = 0;
+        try (RecordWriter writer = csv ? new CsvWriter(temp) : new BinaryWriter(temp)) {
+            CompletableFuture<src.GPAPage> next = fetch(fetcher, server, export, src.GPAPage.START);
+            while (next != null) {
+                src.GPAPage page;
+                try {
+                    page = next.join();
+                } catch (CompletionException e) {
+                    throw new IOException("Export failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                next = page.more ? fetch(fetcher, server, export, page.next) : null;
+                for (int i = 0; i < page.size(); i++) {
+                    writer.write(page.keys[i], page.vals[i]);
+                }
+                written += page.size();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            fetcher.shutdownNow();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Exported %d records in %.1f s: %.0f records/s", written, seconds,
+                written / seconds));
+        return written;
+    }
+
+    private CompletableFuture<src.GPAPage> fetch(ExecutorService fetcher, src.GPAExport server, long export,
+                                                 long after) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.exportPage(export, after, chunk);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, fetcher);
+    }
+
+    private String setting(String name, String fallback) {
+        return settings.getOrDefault(name, fallback);
+    }
+
+    /**
+     * Reads records from a file a chunk at a time
+     */
+    private interface RecordReader extends Closeable {
+        /**
+         * @param keys int[] filled with Student IDs
+         * @param vals float[] filled with the GPA of each
+         * @return int number of records read, 0 at the end of the file
+         * @throws IOException if the file can't be read or isn't in the expected format
+         */
+        int read(int[] keys, float[] vals) throws IOException;
+    }
+
+    /**
+     * Writes records to a file one at a time, buffered
+     */
+    private interface RecordWriter extends Closeable {
+        void write(int key, float val) throws IOException;
+    }
+
+    private static class CsvReader implements RecordReader {
+        private final BufferedReader in;
+        private long lineNumber = 0;
+
+        CsvReader(Path file) throws IOException {
+            in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read(int[] keys, float[] vals) throws IOException {
+            int n = 0;
+            String line;
+            while (n < keys.length && (line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\\s*,\\s*");
+                try {
+                    if (fields.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    keys[n] = Integer.parseInt(fields[0]);
+                    vals[n] = Float.parseFloat(fields[1]);
+                    n++;
+                } catch (NumberFormatException e) {
+                    if (lineNumber > 1) {
+                        throw new IOException("Line " + lineNumber + " isn't Student ID,GPA: " + line);
+                    }
+                    // A header line
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BinaryReader implements RecordReader {
+        private final InputStream in;
+        private byte[] buf = new byte[0];
+
+        BinaryReader(Path file) throws IOException {
+            in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        }
+
+        @Override
+        public int read(int[] keys, float[] vals) throws IOException {
+            if (buf.length != keys.length * RECORD_BYTES) {
+                buf = new byte[keys.length * RECORD_BYTES];
+            }
+            int bytes = in.readNBytes(buf, 0, buf.length);
+            if (bytes % RECORD_BYTES != 0) {
+                throw new IOException("The file ends in the middle of a record");
+            }
+            ByteBuffer records = ByteBuffer.wrap(buf, 0, bytes);
+            int n = bytes / RECORD_BYTES;
+            for (int i = 0; i < n; i++) {
+                keys[i] = records.getInt();
+                vals[i] = records.getFloat();
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class CsvWriter implements RecordWriter {
+        private final Writer out;
+
+        CsvWriter(Path file) throws IOException {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            out.write("student_id,gpa\n");
+        }
+
+        @Override
+        public void write(int key, float val) throws IOException {
+            out.write(key + "," + val + "\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class BinaryWriter implements RecordWriter {
+        private final DataOutputStream out;
+
+        BinaryWriter(Path file) throws IOException {
+            OutputStream stream = Files.newOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        }
+
+        @Override
+        public void write(int key, float val) throws IOException {
+            out.writeInt(key);
+            out.writeFloat(val);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
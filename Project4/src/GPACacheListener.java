@@ -0,0 +1,14 @@
+package src;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback a client exports so GPA servers can tell its near-cache which keys committed puts and deletes changed.
+ * Registered with GPARepo.subscribe
+ */
+public interface GPACacheListener extends Remote {
+    // Keys changed by one applied log slot, in the order the server applied them. Null if the server replaced its
+    // whole map, e.g. with a catch-up snapshot, and every cached key has to go
+    void invalidate(int[] keys) throws RemoteException;
+}
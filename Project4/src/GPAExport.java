@@ -0,0 +1,15 @@
+package src;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface GPAExport extends Remote {
+    // Starts an export of this replica's whole map as of one slot, no older than any write acknowledged before the
+    // call. The copy shares the map's memory until the map next writes each part of it, so writers never wait on a
+    // copy of every record. It is kept until leaseMillis after the last call for it. Returns the export's ID
+    long openExport(long leaseMillis) throws RemoteException;
+
+    // One page of an export's records, in no particular order. Pass GPAPage.START as after for the first page and
+    // then each page's next. At most limit records per page. The export is dropped after its last page
+    GPAPage exportPage(long export, long after, int limit) throws RemoteException;
+}
@@ -0,0 +1,219 @@
+/**
+ * Ordered secondary index on GPA for the PAXOSGPAServer, kept next to the GPAStore as commands are applied.
+ * Each record is one long: the GPA's bits, flipped so they sort like the float, in the high half and the Student ID
+ * in the low half. Sorting the longs sorts by GPA and then by ID, and an entry doubles as the cursor of a paged scan.
+ * The entries are kept in sorted chunks of up to CHUNK longs, so an insert or remove only moves part of one chunk and
+ * a scan of n records reads n longs in order. Nothing is boxed.
+ * Not thread safe. The server guards it with the map lock.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.Arrays;
+
+public class GPAIndex {
+    private static final int CHUNK = 512;
+
+    private long[][] chunks = new long[16][];
+    private int[] sizes = new int[16];
+    private int numChunks = 0;
+    private int size = 0;
+
+    /**
+     * @param val float GPA
+     * @param key int Student ID
+     * @return long index entry, ordered by GPA and then by Student ID
+     */
+    public static long entry(float val, int key) {
+        int bits = Float.floatToIntBits(val == 0 ? 0f : val);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | ((key ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    /**
+     * @param entry long index entry
+     * @return int Student ID of the entry
+     */
+    public static int key(long entry) {
+        return (int) entry ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * @param entry long index entry
+     * @return float GPA of the entry
+     */
+    public static float val(long entry) {
+        int bits = (int) (entry >> 32);
+        return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+    }
+
+    /**
+     * @return int number of records in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a record. The caller removes the record's old GPA first
+     * @param key int Student ID
+     * @param val float GPA
+     */
+    public void add(int key, float val) {
+        long entry = entry(val, key);
+        if (numChunks == 0) {
+            chunks[0] = new long[CHUNK];
+            numChunks = 1;
+        }
+        int c = chunkFor(entry);
+        int at = Arrays.binarySearch(chunks[c], 0, sizes[c], entry);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (sizes[c] == CHUNK) {
+            split(c);
+            if (at > CHUNK / 2) {
+                c += 1;
+                at -= CHUNK / 2;
+            }
+        }
+        long[] chunk = chunks[c];
+        System.arraycopy(chunk, at, chunk, at + 1, sizes[c] - at);
+        chunk[at] = entry;
+        sizes[c] += 1;
+        size += 1;
+    }
+
+    /**
+     * Removes a record
+     * @param key int Student ID
+     * @param val float GPA the record was added with
+     */
+    public void remove(int key, float val) {
+        if (numChunks == 0) {
+            return;
+        }
+        long entry = entry(val, key);
+        int c = chunkFor(entry);
+        int at = Arrays.binarySearch(chunks[c], 0, sizes[c], entry);
+        if (at < 0) {
+            return;
+        }
+        System.arraycopy(chunks[c], at + 1, chunks[c], at, sizes[c] - at - 1);
+        sizes[c] -= 1;
+        size -= 1;
+        if (sizes[c] == 0 && numChunks > 1) {
+            System.arraycopy(chunks, c + 1, chunks, c, numChunks - c - 1);
+            System.arraycopy(sizes, c + 1, sizes, c, numChunks - c - 1);
+            numChunks -= 1;
+            chunks[numChunks] = null;
+        }
+    }
+
+    /**
+     * Replaces the contents of the index with every record of a store, e.g. after a snapshot was loaded
+     * @param store GPAStore to index
+     */
+    public void rebuild(GPAStore store) {
+        long[] all = new long[store.size()];
+        int[] filled = {0};
+        store.forEach((key, val) -> all[filled[0]++] = entry(val, key));
+        Arrays.sort(all);
+        // Chunks start three quarters full, so inserts don't split them right away
+        int per = CHUNK * 3 / 4;
+        numChunks = 0;
+        chunks = new long[Math.max(16, all.length / per + 1)][];
+        sizes = new int[chunks.length];
+        for (int from = 0; from < all.length; from += per) {
+            int n = Math.min(per, all.length - from);
+            chunks[numChunks] = new long[CHUNK];
+            System.arraycopy(all, from, chunks[numChunks], 0, n);
+            sizes[numChunks] = n;
+            numChunks += 1;
+        }
+        size = all.length;
+    }
+
+    /**
+     * Reads records in index order, from an entry towards another, both inclusive
+     * @param from long entry to start at. Need not be in the index
+     * @param to long entry to stop at. Need not be in the index
+     * @param descending boolean true to read from high to low, so from should be above to
+     * @param out long[] filled with the entries read
+     * @return int number of entries read, at most out.length
+     */
+    public int scan(long from, long to, boolean descending, long[] out) {
+        if (numChunks == 0 || out.length == 0) {
+            return 0;
+        }
+        int c = chunkFor(from);
+        int at = Arrays.binarySearch(chunks[c], 0, sizes[c], from);
+        int n = 0;
+        if (descending) {
+            at = at >= 0 ? at : -at - 2;
+            while (c >= 0) {
+                for (; at >= 0; at--) {
+                    long entry = chunks[c][at];
+                    if (entry < to || n == out.length) {
+                        return n;
+                    }
+                    out[n++] = entry;
+                }
+                c -= 1;
+                at = c >= 0 ? sizes[c] - 1 : -1;
+            }
+        } else {
+            at = at >= 0 ? at : -at - 1;
+            while (c < numChunks) {
+                for (; at < sizes[c]; at++) {
+                    long entry = chunks[c][at];
+                    if (entry > to || n == out.length) {
+                        return n;
+                    }
+                    out[n++] = entry;
+                }
+                c += 1;
+                at = 0;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @param entry long index entry
+     * @return int the first chunk whose last entry is at or above the entry, or the last chunk if there is none
+     */
+    private int chunkFor(long entry) {
+        int low = 0;
+        int high = numChunks - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sizes[mid] > 0 && chunks[mid][sizes[mid] - 1] < entry) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the upper half of a full chunk into a new chunk right after it
+     * @param c int index of the full chunk
+     */
+    private void split(int c) {
+        if (numChunks == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        System.arraycopy(chunks, c + 1, chunks, c + 2, numChunks - c - 1);
+        System.arraycopy(sizes, c + 1, sizes, c + 2, numChunks - c - 1);
+        long[] upper = new long[CHUNK];
+        System.arraycopy(chunks[c], CHUNK / 2, upper, 0, CHUNK - CHUNK / 2);
+        chunks[c + 1] = upper;
+        sizes[c + 1] = CHUNK - CHUNK / 2;
+        sizes[c] = CHUNK / 2;
+        numChunks += 1;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * Client-side near-cache for any GPARepo: a server, or a ShardRouter. get and getAll responses are kept in a
+ * size-bounded LRU map so repeated reads of the same keys don't leave the client. The cache subscribes to the server
+ * and is pushed the keys of every put and delete the server applies, which it drops. The subscription is a lease the
+ * cache renews every third of LEASE_MILLIS. Cached responses are only used while the lease holds, and the whole
+ * cache is cleared whenever the server reports invalidations may have been missed.
+ * A client always reads its own writes: put, delete and the bulk versions drop the keys locally before they return,
+ * so the next read goes to the server, which serves it at a read index. Another client's write may be served stale
+ * for as long as its invalidation takes to be pushed, or at most until the next renewal if a push was lost.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class GPANearCache implements src.GPARepo, AutoCloseable {
+    private static final Log LOG = Log.get("GPANearCache");
+
+    // Most responses kept. The near-cache is off when this is 0
+    static final int CAPACITY = Integer.getInteger("gpa.cache.size", 0);
+    // Subscription lease. Renewed every third of it
+    static final long LEASE_MILLIS = Long.getLong("gpa.cache.leaseMillis", 3000);
+    // Slots of the table of recent invalidations, a power of two
+    private static final int STAMPS = 4096;
+
+    private final src.GPARepo server;
+    private final long leaseMillis;
+    private final Listener listener = new Listener();
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "GPANearCache-Renew");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Responses by Student ID in access order, guarded by itself
+    private final LinkedHashMap<Integer, String> cache;
+    // A read only fills the cache if no invalidation came in since it was sent. Each invalidation takes the next
+    // generation and stamps the slots of the keys it drops, so a read is only turned away by invalidations of its
+    // own keys or keys that share a slot. All guarded by cache
+    private long generation = 0;
+    private final long[] stamps = new long[STAMPS];
+    private long clearedAt = 0;
+    private long subscription = 0;
+    private long validUntil = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructor that exports the invalidation listener and subscribes to the server
+     * @param server src.GPARepo server or router to cache
+     * @param capacity int most responses kept
+     * @param leaseMillis long subscription lease
+     * @throws RemoteException if the listener can't be exported or the server can't be reached
+     */
+    public GPANearCache(src.GPARepo server, int capacity, long leaseMillis) throws RemoteException {
+        this.server = server;
+        this.leaseMillis = leaseMillis;
+        this.cache = new LinkedHashMap<Integer, String>(Math.min(capacity, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > capacity;
+            }
+        };
+        UnicastRemoteObject.exportObject(listener, 0);
+        renew();
+        renewer.scheduleWithFixedDelay(this::renewQuietly, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wraps a server in a near-cache if one is configured with gpa.cache.size
+     * @param server src.GPARepo server or router
+     * @return src.GPARepo the server itself, or a GPANearCache in front of it
+     * @throws RemoteException if the near-cache can't subscribe
+     */
+    public static src.GPARepo wrap(src.GPARepo server) throws RemoteException {
+        return CAPACITY > 0 ? new GPANearCache(server, CAPACITY, LEASE_MILLIS) : server;
+    }
+
+    @Override
+    public String put(int key, float val) throws RemoteException {
+        try {
+            return server.put(key, val);
+        } finally {
+            drop(new int[] {key});
+        }
+    }
+
+    @Override
+    public String get(int key) throws RemoteException {
+        long seen;
+        synchronized (cache) {
+            String cached = valid() ? cache.get(key) : null;
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            seen = generation;
+        }
+        String response = server.get(key);
+        synchronized (cache) {
+            fill(key, response, seen);
+        }
+        return response;
+    }
+
+    @Override
+    public String delete(int key) throws RemoteException {
+        try {
+            return server.delete(key);
+        } finally {
+            drop(new int[] {key});
+        }
+    }
+
+    @Override
+    public String[] putAll(int[] keys, float[] vals) throws RemoteException {
+        try {
+            return server.putAll(keys, vals);
+        } finally {
+            drop(keys);
+        }
+    }
+
+    /**
+     * Bulk get. Keys in the cache are answered from it, and the rest are read from the server in one call
+     * @param keys int[] Student IDs
+     * @return String[] response for each key
+     * @throws RemoteException if the server can't be reached
+     */
+    @Override
+    public String[] getAll(int[] keys) throws RemoteException {
+        String[] results = new String[keys.length];
+        int[] missing = new int[keys.length];
+        int n = 0;
+        long seen;
+        synchronized (cache) {
+            boolean valid = valid();
+            for (int i = 0; i < keys.length; i++) {
+                results[i] = valid ? cache.get(keys[i]) : null;
+                if (results[i] == null) {
+                    missing[n++] = keys[i];
+                }
+            }
+            hits += keys.length - n;
+            misses += n;
+            seen = generation;
+        }
+        if (n == 0) {
+            return results;
+        }
+        int[] fetch = n == keys.length ? keys : Arrays.copyOf(missing, n);
+        String[] fetched = server.getAll(fetch);
+        synchronized (cache) {
+            for (int i = 0, f = 0; i < keys.length; i++) {
+                if (results[i] == null) {
+                    results[i] = fetched[f++];
+                    fill(keys[i], results[i], seen);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String[] deleteAll(int[] keys) throws RemoteException {
+        try {
+            return server.deleteAll(keys);
+        } finally {
+            drop(keys);
+        }
+    }
+
+    @Override
+    public int[] keysInRange(int from, int to) throws RemoteException {
+        return server.keysInRange(from, to);
+    }
+
+    @Override
+    public src.GPAPage gpaRange(float min, float max, long after, int limit) throws RemoteException {
+        return server.gpaRange(min, max, after, limit);
+    }
+
+    @Override
+    public src.GPAPage topGPAs(long after, int limit) throws RemoteException {
+        return server.topGPAs(after, limit);
+    }
+
+    @Override
+    public long subscribe(src.GPACacheListener other, long otherLeaseMillis) throws RemoteException {
+        return server.subscribe(other, otherLeaseMillis);
+    }
+
+    /**
+     * @return long reads answered from the cache
+     */
+    public long hits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return long reads that went to the server
+     */
+    public long misses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    /**
+     * Stops renewing the subscription and unexports the listener. The server drops it once the lease runs out
+     */
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+        try {
+            UnicastRemoteObject.unexportObject(listener, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+        synchronized (cache) {
+            cache.clear();
+            validUntil = 0;
+        }
+    }
+
+    /**
+     * Caches a response read from the server, unless one of the read's keys was invalidated while it was in flight.
+     * Only found and not found responses are kept, not errors. Caller must hold the cache monitor
+     * @param key int Student ID
+     * @param response String response from the server
+     * @param seen long generation when the read was sent
+     */
+    private void fill(int key, String response, long seen) {
+        if (clearedAt > seen || stamps[slot(key)] > seen || !valid()) {
+            return;
+        }
+        if (response.startsWith("Key: ") || response.startsWith("Key not found")) {
+            cache.put(key, response);
+        }
+    }
+
+    /**
+     * Drops keys from the cache and turns away reads of them that are still in flight
+     * @param keys int[] Student IDs, or null for every key
+     */
+    private void drop(int[] keys) {
+        synchronized (cache) {
+            generation++;
+            if (keys == null) {
+                cache.clear();
+                clearedAt = generation;
+                return;
+            }
+            for (int key : keys) {
+                cache.remove(key);
+                stamps[slot(key)] = generation;
+            }
+        }
+    }
+
+    /**
+     * Caller must hold the cache monitor
+     * @return boolean true while the subscription lease holds
+     */
+    private boolean valid() {
+        return System.nanoTime() - validUntil < 0;
+    }
+
+    /**
+     * Renews the subscription, and clears the cache if the server gave it a new ID
+     * @throws RemoteException if the server can't be reached. The cache is unused once the lease runs out
+     */
+    private void renew() throws RemoteException {
+        long sent = System.nanoTime();
+        long id = server.subscribe(listener, leaseMillis);
+        synchronized (cache) {
+            if (id != subscription) {
+                drop(null);
+                subscription = id;
+            }
+            validUntil = sent + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        }
+    }
+
+    private void renewQuietly() {
+        try {
+            renew();
+        } catch (RemoteException e) {
+            LOG.warn("Couldn't renew the subscription: {}", e.getMessage());
+        }
+    }
+
+    private static int slot(int key) {
+        return (key * 0x9E3779B9 >>> 20) & (STAMPS - 1);
+    }
+
+    /**
+     * The callback the servers push invalidations to
+     */
+    private class Listener implements src.GPACacheListener {
+        @Override
+        public void invalidate(int[] keys) {
+            drop(keys);
+        }
+    }
+}
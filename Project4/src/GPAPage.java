@@ -0,0 +1,41 @@
+package src;
+
+import java.io.Serializable;
+
+/**
+ * One page of records from a GPA range or top-N query, in the order the query returns them. Each page carries a
+ * cursor for the next one, which works on any replica or shard since it is the last record's place in GPA order.
+ */
+public class GPAPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // Cursor for the first page of a query
+    public static final long START = Long.MIN_VALUE;
+
+    public final int[] keys;
+    public final float[] vals;
+    // Pass as the cursor of the next call to get the records after this page
+    public final long next;
+    // False once the query has nothing after this page
+    public final boolean more;
+
+    /**
+     * Constructor for a page
+     * @param keys int[] Student IDs
+     * @param vals float[] GPA of each Student ID
+     * @param next long cursor for the next page
+     * @param more boolean true if there are records after this page
+     */
+    public GPAPage(int[] keys, float[] vals, long next, boolean more) {
+        this.keys = keys;
+        this.vals = vals;
+        this.next = next;
+        this.more = more;
+    }
+
+    /**
+     * @return int number of records in the page
+     */
+    public int size() {
+        return keys.length;
+    }
+}
@@ -7,4 +7,28 @@ public interface GPARepo extends Remote {
     String put(int key, float val) throws RemoteException;
     String get(int key) throws RemoteException;
     String delete(int key) throws RemoteException;
+
+    // Bulk versions of put, get and delete. The whole array goes in one RMI call and is committed in as few log
+    // slots as possible. The result for each key is at the same index as the key
+    String[] putAll(int[] keys, float[] vals) throws RemoteException;
+    String[] getAll(int[] keys) throws RemoteException;
+    String[] deleteAll(int[] keys) throws RemoteException;
+
+    // Every key from from to to, both inclusive, in ascending order. Used to move a key range between shards
+    int[] keysInRange(int from, int to) throws RemoteException;
+
+    // One page of the students with a GPA from min to max, both inclusive, in ascending GPA order with ties in
+    // Student ID order. Pass GPAPage.START as after for the first page and then each page's next. At most limit
+    // records per page
+    GPAPage gpaRange(float min, float max, long after, int limit) throws RemoteException;
+
+    // One page of the highest GPAs, in descending GPA order with ties in descending Student ID order. Paged like
+    // gpaRange, so reading pages until n records gives the top n
+    GPAPage topGPAs(long after, int limit) throws RemoteException;
+
+    // Registers a near-cache to be sent the keys of every put and delete this server applies, until leaseMillis
+    // after the last call. Call again within the lease to renew it. Returns the subscription's ID, which changes
+    // whenever invalidations may have been missed, e.g. after the server dropped the listener or restarted, so the
+    // cache has to be cleared
+    long subscribe(GPACacheListener listener, long leaseMillis) throws RemoteException;
 }
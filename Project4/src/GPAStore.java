@@ -0,0 +1,380 @@
+
+/**
+ * Open addressing hash table from int Student IDs to float GPAs for the PAXOSGPAServer.
+ * Each slot is an int key and a float value packed side by side in ByteBuffer segments of SEGMENT_SLOTS slots, so
+ * nothing is boxed and get, put and remove never allocate. The buffers are on the Java heap by default, or off-heap in
+ * direct buffers with -Dgpa.store.offHeap=true so even tens of millions of records add nothing for the garbage
+ * collector to trace. A copy() shares the segments instead of copying them, and a segment is only copied when one of
+ * the stores sharing it next writes to it.
+ * Collisions are resolved by linear probing and removals shift later entries back, so there are no tombstones.
+ * Key 0 marks an empty slot, and is stored apart from the table. The table stops growing at MAX_CAPACITY, and once
+ * that is filled to LOAD_FACTOR a put of a new key is refused before anything is changed, so probe runs stay short.
+ * Not thread safe. PAXOSGPAServer guards it with a ReentrantReadWriteLock: lookups run together under the read
+ * lock, and only the thread applying chosen slots takes the write lock to change it.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class GPAStore {
+    // Returned by find() for a key that isn't in the store
+    public static final int MISSING = -1;
+    static final boolean OFF_HEAP = Boolean.getBoolean("gpa.store.offHeap");
+
+    private static final int SLOT_BYTES = Integer.BYTES + Float.BYTES;
+    private static final int ZERO_INDEX = Integer.MAX_VALUE;
+    // Largest table, 1 GB of slots
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final float LOAD_FACTOR = 0.75f;
+    // Slots per segment, 64 KB. A write to a segment shared with a copy copies this much first
+    private static final int SEGMENT_SHIFT = 13;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SLOTS - 1;
+
+    private final boolean offHeap;
+    // Table slot i is in segments[i >>> SEGMENT_SHIFT]. A table smaller than SEGMENT_SLOTS is a single segment
+    private ByteBuffer[] segments;
+    // True for each segment another store may still read, so it's copied before it's written
+    private boolean[] shared;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+    private boolean hasZero = false;
+    private float zeroVal;
+
+    /**
+     * Constructor for an empty store with room for a few thousand records before it first resizes
+     */
+    public GPAStore() {
+        this(4096, OFF_HEAP);
+    }
+
+    /**
+     * Constructor for an empty store sized for an expected number of records
+     * @param expected int number of records expected
+     * @param offHeap boolean true to keep the table in direct buffers outside the Java heap
+     */
+    public GPAStore(int expected, boolean offHeap) {
+        this.offHeap = offHeap;
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * LOAD_FACTOR < expected) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return int number of records in the store
+     */
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    /**
+     * Looks a key up without reading its value, so a missing key is told apart from any GPA
+     * @param key int Student ID
+     * @return int index to read the value at with valueAt(), or MISSING if the key isn't in the store
+     */
+    public int find(int key) {
+        if (key == 0) {
+            return hasZero ? ZERO_INDEX : MISSING;
+        }
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            int found = keyAt(i);
+            if (found == key) {
+                return i;
+            }
+            if (found == 0) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * @param index int index returned by find(). Only valid until the store is next changed
+     * @return float GPA stored at the index
+     */
+    public float valueAt(int index) {
+        if (index == ZERO_INDEX) {
+            return zeroVal;
+        }
+        return valAt(index);
+    }
+
+    /**
+     * @param key int Student ID
+     * @param missing float value to return if the key isn't in the store
+     * @return float GPA of the student, or missing
+     */
+    public float get(int key, float missing) {
+        int index = find(key);
+        return index == MISSING ? missing : valueAt(index);
+    }
+
+    /**
+     * @param key int Student ID
+     * @return boolean true if the key is in the store
+     */
+    public boolean containsKey(int key) {
+        return find(key) != MISSING;
+    }
+
+    /**
+     * @return boolean true if the table is as large as it gets and filled to LOAD_FACTOR, so it takes no more keys.
+     *         Keys already in the store can still be replaced or removed
+     */
+    public boolean isFull() {
+        return mask + 1 == MAX_CAPACITY && size >= resizeAt;
+    }
+
+    /**
+     * Adds a record or replaces the GPA of an existing one
+     * @param key int Student ID
+     * @param val float GPA
+     * @return boolean true if the key is new to the store
+     * @throws IllegalStateException if the key is new and the store isFull(). The store is left as it was
+     */
+    public boolean put(int key, float val) {
+        if (key == 0) {
+            boolean added = !hasZero;
+            hasZero = true;
+            zeroVal = val;
+            return added;
+        }
+        int i = slot(key);
+        while (true) {
+            int found = keyAt(i);
+            if (found == key) {
+                set(i, key, val);
+                return false;
+            }
+            if (found == 0) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (isFull()) {
+            throw new IllegalStateException("GPAStore is full at " + size() + " records");
+        }
+        set(i, key, val);
+        size += 1;
+        if (size >= resizeAt && mask + 1 < MAX_CAPACITY) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a record. Entries after it in its probe run are shifted back so lookups never need tombstones
+     * @param key int Student ID
+     * @return boolean true if the key was in the store
+     */
+    public boolean remove(int key) {
+        if (key == 0) {
+            boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+        int hole = find(key);
+        if (hole == MISSING) {
+            return false;
+        }
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int next = keyAt(i);
+            if (next == 0) {
+                break;
+            }
+            // Move the entry into the hole unless its home slot lies cyclically after the hole
+            int home = slot(next);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                set(hole, next, valAt(i));
+                hole = i;
+            }
+        }
+        set(hole, 0, 0);
+        size -= 1;
+        return true;
+    }
+
+    /**
+     * Removes every record. The table keeps its capacity
+     */
+    public void clear() {
+        for (int s = 0; s < segments.length; s++) {
+            if (shared[s]) {
+                segments[s] = buffer(segments[s].capacity());
+                shared[s] = false;
+            } else {
+                for (int at = 0; at < segments[s].capacity(); at += SLOT_BYTES) {
+                    segments[s].putInt(at, 0);
+                }
+            }
+        }
+        size = 0;
+        hasZero = false;
+    }
+
+    /**
+     * Point-in-time copy of the store. The copy shares this store's segments, so the caller's lock is held only for
+     * as long as it takes to mark them shared, however many records there are. Whichever store next writes a shared
+     * segment copies it first, so neither sees the other's later changes. The copy may be read by another thread
+     * without the lock while this store goes on changing, as long as the copy itself isn't changed meanwhile
+     * @return GPAStore holding the same records
+     */
+    public GPAStore copy() {
+        GPAStore copy = new GPAStore(0, offHeap);
+        Arrays.fill(shared, true);
+        copy.segments = segments.clone();
+        copy.shared = shared.clone();
+        copy.mask = mask;
+        copy.size = size;
+        copy.resizeAt = resizeAt;
+        copy.hasZero = hasZero;
+        copy.zeroVal = zeroVal;
+        return copy;
+    }
+
+    /**
+     * Replaces the contents of this store with another's. The other store must not be used afterwards
+     * @param other GPAStore to take the records from
+     */
+    public void replaceWith(GPAStore other) {
+        segments = other.segments;
+        shared = other.shared;
+        mask = other.mask;
+        size = other.size;
+        resizeAt = other.resizeAt;
+        hasZero = other.hasZero;
+        zeroVal = other.zeroVal;
+    }
+
+    /**
+     * Visits every record, in no particular order
+     * @param visitor Visitor called with each key and GPA
+     */
+    public void forEach(Visitor visitor) {
+        if (hasZero) {
+            visitor.visit(0, zeroVal);
+        }
+        for (int i = 0; i <= mask; i++) {
+            int key = keyAt(i);
+            if (key != 0) {
+                visitor.visit(key, valAt(i));
+            }
+        }
+    }
+
+    /**
+     * Visits the records from a place in the table on, in table order, so a store that doesn't change can be read
+     * out a page at a time. Place 0 is the zero key, kept apart from the table, and place i + 1 is table slot i
+     * @param from int place to start at, 0 for the first record or the place returned by the last call
+     * @param limit int most records to visit
+     * @param visitor Visitor called with each key and GPA
+     * @return int place to carry on from, or -1 once every record has been visited
+     */
+    public int forEachFrom(int from, int limit, Visitor visitor) {
+        if (limit <= 0) {
+            return from;
+        }
+        int visited = 0;
+        int place = from;
+        if (place == 0) {
+            if (hasZero) {
+                visitor.visit(0, zeroVal);
+                visited++;
+            }
+            place = 1;
+        }
+        for (; place <= mask + 1 && visited < limit; place++) {
+            int key = keyAt(place - 1);
+            if (key != 0) {
+                visitor.visit(key, valAt(place - 1));
+                visited++;
+            }
+        }
+        return place > mask + 1 ? -1 : place;
+    }
+
+    /**
+     * Called with each record by forEach() and forEachFrom()
+     */
+    public interface Visitor {
+        void visit(int key, float val);
+    }
+
+    /**
+     * @param key int Student ID
+     * @return int home slot of the key. The multiply spreads sequential IDs across the table
+     */
+    private int slot(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private int keyAt(int i) {
+        return segments[i >>> SEGMENT_SHIFT].getInt((i & SEGMENT_MASK) * SLOT_BYTES);
+    }
+
+    private float valAt(int i) {
+        return segments[i >>> SEGMENT_SHIFT].getFloat((i & SEGMENT_MASK) * SLOT_BYTES + Integer.BYTES);
+    }
+
+    /**
+     * Writes a table slot, first copying its segment if a copy of the store still shares it
+     * @param i int table slot
+     * @param key int Student ID, or 0 to empty the slot
+     * @param val float GPA
+     */
+    private void set(int i, int key, float val) {
+        int s = i >>> SEGMENT_SHIFT;
+        if (shared[s]) {
+            ByteBuffer source = segments[s].duplicate();
+            source.clear();
+            segments[s] = buffer(source.capacity()).put(source).clear();
+            shared[s] = false;
+        }
+        int at = (i & SEGMENT_MASK) * SLOT_BYTES;
+        segments[s].putInt(at, key);
+        segments[s].putFloat(at + Integer.BYTES, val);
+    }
+
+    private ByteBuffer buffer(int bytes) {
+        return offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+    }
+
+    private void allocate(int capacity) {
+        int count = Math.max(1, capacity >>> SEGMENT_SHIFT);
+        segments = new ByteBuffer[count];
+        shared = new boolean[count];
+        for (int s = 0; s < count; s++) {
+            segments[s] = buffer(Math.min(capacity, SEGMENT_SLOTS) * SLOT_BYTES);
+        }
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Doubles the table and re-inserts every record
+     */
+    private void resize() {
+        int capacity = mask + 1;
+        ByteBuffer[] old = segments;
+        allocate(capacity * 2);
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer segment = old[i >>> SEGMENT_SHIFT];
+            int at = (i & SEGMENT_MASK) * SLOT_BYTES;
+            int key = segment.getInt(at);
+            if (key != 0) {
+                int j = slot(key);
+                while (keyAt(j) != 0) {
+                    j = (j + 1) & mask;
+                }
+                set(j, key, segment.getFloat(at + Integer.BYTES));
+            }
+        }
+    }
+}
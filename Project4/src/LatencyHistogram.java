@@ -0,0 +1,154 @@
+
+/**
+ * Lock-free log-linear latency histogram.
+ * Values below 128 get a bucket each. Above that every power of two is split into 64 buckets, so any recorded value
+ * is reported within about 1.6% of what was measured, from nanoseconds up to days, in a fixed 3712 buckets.
+ * record() is a couple of atomic increments, so it can be called from every thread of a load test or server.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int BUCKETS = LINEAR + 56 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one value
+     * @param value long value, usually a latency in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return long number of values recorded
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return long largest value recorded, exactly
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return long sum of the values recorded
+     */
+    public long sum() {
+        return sum.get();
+    }
+
+    /**
+     * @return double mean of the values recorded. 0 if there are none
+     */
+    public double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile double percentile from 0 to 100, e.g. 99.9
+     * @return long value at the percentile, to within the bucket precision. 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(value(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one
+     * @param other LatencyHistogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Clears the histogram. Values recorded while it is being cleared may be lost
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Visits every non-empty bucket in increasing order
+     * @param visitor Visitor called with each bucket's representative value and count
+     */
+    public void forEachBucket(Visitor visitor) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n != 0) {
+                visitor.visit(value(i), n);
+            }
+        }
+    }
+
+    /**
+     * Called with each non-empty bucket by forEachBucket()
+     */
+    public interface Visitor {
+        void visit(long value, long count);
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        int top = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /**
+     * @param bucket int bucket index
+     * @return long middle of the range of values the bucket covers
+     */
+    private static long value(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return (top << shift) + (1L << (shift - 1));
+    }
+}
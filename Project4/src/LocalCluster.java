@@ -0,0 +1,68 @@
+
+/**
+ * A coordinator and its PAXOSGPAServer replicas run inside one JVM, talking over loopback TCP.
+ * The Paxos messages, write-ahead logs and maps are all the real ones, only RMI is left out: the replicas' GPARepo
+ * methods are called directly. Used to measure the whole commit path in-process, e.g. by the JMH benchmarks.
+ * Every thread the cluster starts is a daemon, so the cluster lives until the JVM exits.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LocalCluster {
+    private static final Log LOG = Log.get("LocalCluster");
+
+    private final List<PAXOSGPAServer> replicas = new ArrayList<>();
+
+    /**
+     * Constructor that starts the coordinator on an ephemeral loopback port and connects the replicas to it
+     * @param numReplicas int number of replicas
+     * @param dir Path under which each replica gets its own write-ahead log directory
+     * @throws IOException if the coordinator can't be started
+     */
+    public LocalCluster(int numReplicas, Path dir) throws IOException {
+        Coordinator coord = new Coordinator();
+        coord.clusterSize = numReplicas;
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress("localhost", 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                Coordinator.serveInProcess(coord, channel);
+            } catch (IOException e) {
+                LOG.error("Couldn't start the coordinator event loop: {}", e.getMessage());
+            }
+        }, "LocalCluster-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        for (int i = 0; i < numReplicas; i++) {
+            PAXOSGPAServer replica = new PAXOSGPAServer("localhost", port, i, dir.resolve("replica-" + i));
+            Thread thread = new Thread(replica, "LocalCluster-Replica-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            replicas.add(replica);
+        }
+    }
+
+    /**
+     * @param i int replica index
+     * @return PAXOSGPAServer replica. Commands sent to it are committed through the whole cluster
+     */
+    public PAXOSGPAServer replica(int i) {
+        return replicas.get(i);
+    }
+
+    /**
+     * @return int number of replicas
+     */
+    public int size() {
+        return replicas.size();
+    }
+}
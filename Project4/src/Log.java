@@ -0,0 +1,256 @@
+/**
+ * Leveled logging for the servers and coordinator, written to stdout by one background thread. A line below the
+ * level set with gpa.log.level costs one volatile read, and hot protocol paths check trace() first so their
+ * arguments aren't even built. An enabled line only has its message formatted by the caller and is then handed to a
+ * bounded ring buffer of gpa.log.buffer slots. The writer thread adds the time, formats whole batches of lines and
+ * prints them at once, so a consensus round never waits on the console. Lines are dropped and counted if the
+ * buffer is full, and the writer reports how many before the next line it prints.
+ * Each line reads: yyyy-MM-dd HH:mm:ss.SSS LEVEL [thread] component: message
+ * Messages fill {} placeholders from their arguments in order.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Log {
+    /**
+     * Levels from most to least detailed. OFF turns logging off
+     */
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // Slots of the ring buffer, a power of two
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(64, Integer.getInteger("gpa.log.buffer",
+            1 << 14)));
+    // How long the writer sleeps when the buffer is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = parse(System.getProperty("gpa.log.level", "INFO"));
+
+    // Lines are claimed by moving tail and read by the writer at head. A claimed slot stays null until its line is
+    // stored, and the writer waits for it, so lines come out in the order they were claimed
+    private static final AtomicReferenceArray<Line> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static volatile long head = 0;
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final Thread WRITER = startWriter();
+
+    // Used by the writer thread only
+    private static long cachedSecond = Long.MIN_VALUE;
+    private static String cachedSecondText = "";
+
+    private final String component;
+
+    private Log(String component) {
+        this.component = component;
+    }
+
+    /**
+     * @param component String name printed on every line, usually the class
+     * @return Log for the component
+     */
+    public static Log get(String component) {
+        return new Log(component);
+    }
+
+    /**
+     * Changes the level of every component, e.g. to turn the nodes' logging off in a simulation
+     * @param newLevel Level lowest level printed
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Waits until every line logged so far is printed, or up to a second
+     */
+    public static void flush() {
+        long until = TAIL.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < until && System.nanoTime() - deadline < 0) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(IDLE_NANOS / 10);
+        }
+    }
+
+    /**
+     * @param at Level to check
+     * @return boolean true if lines at the level are printed
+     */
+    public static boolean enabled(Level at) {
+        return at.compareTo(level) >= 0 && at != Level.OFF;
+    }
+
+    /**
+     * @return boolean true if protocol tracing is on
+     */
+    public boolean trace() {
+        return enabled(Level.TRACE);
+    }
+
+    public void trace(String message, Object... args) {
+        log(Level.TRACE, message, args);
+    }
+
+    public void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    public void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    /**
+     * Formats a line and hands it to the writer, or drops it if the buffer is full
+     * @param at Level of the line
+     * @param message String with a {} for each argument
+     * @param args Object[] arguments
+     */
+    private void log(Level at, String message, Object[] args) {
+        if (!enabled(at)) {
+            return;
+        }
+        Line line = new Line(System.currentTimeMillis(), at, Thread.currentThread().getName(), component,
+                format(message, args));
+        long slot;
+        do {
+            slot = TAIL.get();
+            if (slot - head >= CAPACITY) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!TAIL.compareAndSet(slot, slot + 1));
+        RING.lazySet((int) slot & (CAPACITY - 1), line);
+    }
+
+    /**
+     * @param message String with a {} for each argument
+     * @param args Object[] arguments. Extra arguments are ignored, and missing ones leave their {} in place
+     * @return String message with the placeholders filled
+     */
+    static String format(String message, Object[] args) {
+        if (args.length == 0) {
+            return message;
+        }
+        StringBuilder builder = new StringBuilder(message.length() + 16 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            builder.append(message, from, at).append(arg);
+            from = at + 2;
+        }
+        return builder.append(message, from, message.length()).toString();
+    }
+
+    private static Thread startWriter() {
+        Thread writer = new Thread(Log::write, "LogWriter");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogFlush"));
+        return writer;
+    }
+
+    /**
+     * Writer thread loop. Prints whatever is in the buffer as one batch, then sleeps briefly if it is empty
+     */
+    private static void write() {
+        StringBuilder batch = new StringBuilder(1 << 16);
+        while (true) {
+            long next = head;
+            while (next < TAIL.get() && batch.length() < 1 << 16) {
+                int slot = (int) next & (CAPACITY - 1);
+                Line line = RING.get(slot);
+                if (line == null) {
+                    // Claimed but not stored yet
+                    Thread.onSpinWait();
+                    continue;
+                }
+                RING.lazySet(slot, null);
+                next += 1;
+                head = next;
+                long dropped = DROPPED.sumThenReset();
+                if (dropped > 0) {
+                    append(batch, new Line(line.millis, Level.WARN, "LogWriter", "Log",
+                            dropped + " lines dropped because the log buffer was full"));
+                }
+                append(batch, line);
+            }
+            if (batch.length() > 0) {
+                System.out.print(batch);
+                System.out.flush();
+                batch.setLength(0);
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private static void append(StringBuilder batch, Line line) {
+        long second = Math.floorDiv(line.millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedSecondText = SECONDS.format(Instant.ofEpochSecond(second));
+        }
+        int millis = Math.floorMod(line.millis, 1000);
+        batch.append(cachedSecondText).append('.');
+        if (millis < 100) {
+            batch.append(millis < 10 ? "00" : "0");
+        }
+        batch.append(millis).append(' ').append(line.level);
+        if (line.level.name().length() == 4) {
+            batch.append(' ');
+        }
+        batch.append(" [").append(line.thread).append("] ").append(line.component).append(": ")
+                .append(line.message).append(System.lineSeparator());
+    }
+
+    private static Level parse(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown gpa.log.level " + name + ". Using INFO");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * A line waiting for the writer
+     */
+    private static final class Line {
+        final long millis;
+        final Level level;
+        final String thread;
+        final String component;
+        final String message;
+
+        Line(long millis, Level level, String thread, String component, String message) {
+            this.millis = millis;
+            this.level = level;
+            this.thread = thread;
+            this.component = component;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package src;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface MemberAdmin extends Remote {
+    // Makes the server with the given gpa.member.id an acceptor. The change is a configuration entry chosen in the
+    // log and counts quorums a fixed number of slots later, so writes in flight keep going. Returns the new
+    // configuration once it is chosen
+    String addAcceptor(int member) throws RemoteException;
+
+    // Takes a member out of the acceptors the same way. A server that is still connected stays on as a learner, and
+    // one that is stopped simply leaves. Returns the new configuration once it is chosen
+    String removeAcceptor(int member) throws RemoteException;
+
+    // The configuration this server has applied
+    String membership() throws RemoteException;
+}
@@ -0,0 +1,162 @@
+/**
+ * The acceptors of the cluster as of one configuration entry of the replicated log. Membership only changes through
+ * a configuration batch chosen in a slot like any other command, so every replica and every leader agrees on it.
+ * A configuration chosen in slot s governs the quorums of slot s + ALPHA onwards. Until then the one before it
+ * still does, so a leader can keep up to ALPHA slots in flight while a change is being chosen, and every slot is
+ * decided by exactly one configuration no matter which leader proposed it.
+ * Acceptors are named by member ID, gpa.member.id on each server, so a server that reconnects or restarts keeps
+ * its vote. A member's vote is its position in the sorted acceptor list.
+ * Immutable.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.Arrays;
+
+public final class Membership {
+    // Slots between a configuration being chosen and taking effect. Also the most slots a leader proposes past a
+    // configuration that hasn't been chosen yet
+    static final int ALPHA = Math.max(1, Integer.getInteger("gpa.config.alpha", 64));
+
+    final long slot;
+    private final int[] acceptors;
+
+    /**
+     * Constructor for a configuration
+     * @param slot long slot the configuration was chosen in. 0 for one the cluster was started with
+     * @param acceptors int[] member IDs of the acceptors. Copied, sorted and deduplicated
+     */
+    public Membership(long slot, int[] acceptors) {
+        this.slot = slot;
+        this.acceptors = Arrays.stream(acceptors).sorted().distinct().toArray();
+    }
+
+    /**
+     * @param batch Batch to check
+     * @return boolean true if the batch is a configuration entry
+     */
+    public static boolean isConfig(Batch batch) {
+        return batch != null && batch.size() > 0 && batch.op(0) == Batch.CONFIG;
+    }
+
+    /**
+     * @param batch Batch to check
+     * @return boolean true if the batch asks for acceptors to be added or removed
+     */
+    public static boolean isChange(Batch batch) {
+        return batch != null && batch.size() > 0 && (batch.op(0) == Batch.ADD_ACCEPTOR ||
+                batch.op(0) == Batch.REMOVE_ACCEPTOR);
+    }
+
+    /**
+     * @param slot long slot the configuration batch was chosen in
+     * @param batch Batch of CONFIG commands, one per acceptor
+     * @return Membership the batch describes
+     */
+    public static Membership of(long slot, Batch batch) {
+        int[] members = new int[batch.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = batch.key(i);
+        }
+        return new Membership(slot, members);
+    }
+
+    /**
+     * @return Batch of CONFIG commands that proposes this configuration
+     */
+    public Batch toBatch() {
+        byte[] ops = new byte[acceptors.length];
+        Arrays.fill(ops, Batch.CONFIG);
+        return new Batch(ops, acceptors.clone(), new float[acceptors.length]);
+    }
+
+    /**
+     * @return ReplicatedLog.Entry carrying this configuration in messages and write-ahead log records
+     */
+    public ReplicatedLog.Entry toEntry() {
+        return new ReplicatedLog.Entry(slot, 0, 0, toBatch());
+    }
+
+    /**
+     * @return long first slot whose quorums this configuration counts
+     */
+    public long effectiveSlot() {
+        return slot == 0 ? 1 : slot + ALPHA;
+    }
+
+    /**
+     * @param member int member ID
+     * @return int the member's vote in a Quorum of this configuration, or -1 if it isn't an acceptor
+     */
+    public int indexOf(int member) {
+        int at = Arrays.binarySearch(acceptors, member);
+        return at >= 0 ? at : -1;
+    }
+
+    public boolean contains(int member) {
+        return indexOf(member) >= 0;
+    }
+
+    public int size() {
+        return acceptors.length;
+    }
+
+    /**
+     * @return int votes that make a majority of the acceptors
+     */
+    public int majority() {
+        return acceptors.length / 2 + 1;
+    }
+
+    /**
+     * @param ballot long ballot the votes are for
+     * @return Quorum counting the acceptors of this configuration
+     */
+    public Quorum quorum(long ballot) {
+        return new Quorum(ballot, majority(), acceptors.length);
+    }
+
+    /**
+     * @param member int member ID to add or remove
+     * @param add boolean true to add the member, false to remove it
+     * @return int[] acceptors after the change
+     */
+    public int[] change(int member, boolean add) {
+        if (add) {
+            int[] added = Arrays.copyOf(acceptors, acceptors.length + 1);
+            added[acceptors.length] = member;
+            return added;
+        }
+        return Arrays.stream(acceptors).filter(acceptor -> acceptor != member).toArray();
+    }
+
+    /**
+     * @param changes Batch of ADD_ACCEPTOR and REMOVE_ACCEPTOR commands keyed by member ID
+     * @return Membership with the changes made in order, not chosen in any slot yet. Unchanged if it would have no
+     *         acceptors left
+     */
+    public Membership apply(Batch changes) {
+        Membership changed = this;
+        for (int i = 0; i < changes.size(); i++) {
+            changed = new Membership(0, changed.change(changes.key(i), changes.op(i) == Batch.ADD_ACCEPTOR));
+        }
+        return changed.size() > 0 ? changed : this;
+    }
+
+    /**
+     * @param other Membership to compare with
+     * @return boolean true if both have the same acceptors
+     */
+    public boolean sameAcceptors(Membership other) {
+        return other != null && Arrays.equals(acceptors, other.acceptors);
+    }
+
+    /**
+     * @return String version of the configuration for the log lines and the admin interface
+     */
+    @Override
+    public String toString() {
+        return "acceptors " + Arrays.toString(acceptors) + (slot == 0 ? " from the start" :
+                " chosen in slot " + slot + ", counting quorums from slot " + effectiveSlot());
+    }
+}
@@ -0,0 +1,284 @@
+
+/**
+ * Counters, gauges and latency histograms for one Coordinator or PAXOSGPAServer process.
+ * Metrics are registered once when the process starts. Recording one is a LongAdder increment or a LatencyHistogram
+ * record, so the Paxos hot paths never take a lock for them. They are read two ways:
+ *   JMX: registered as an MBean under gpa:type=..., with every counter and gauge as an attribute and each histogram
+ *        as its count, mean, max and percentiles. A reset operation clears the histograms between experiments
+ *   Scrape endpoint: with -Dgpa.metrics.port=N, GET http://localhost:N/metrics returns every metric as plain text in
+ *        the Prometheus text format
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public class Metrics implements DynamicMBean {
+    private static final Log LOG = Log.get("Metrics");
+
+    // Port of the plain text endpoint on the loopback interface. 0 leaves it off
+    static final int PORT = Integer.getInteger("gpa.metrics.port", 0);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String prefix;
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor for the metrics of one process
+     * @param prefix String prepended to every metric name on the endpoint, e.g. gpa_coordinator
+     */
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param name String metric name
+     * @param help String one line description
+     * @return LongAdder to count with
+     */
+    public LongAdder counter(String name, String help) {
+        LongAdder counter = new LongAdder();
+        metrics.add(new Metric(name, help, counter, null, null));
+        return counter;
+    }
+
+    /**
+     * @param name String metric name. Latencies are recorded in nanoseconds and named ..._nanos
+     * @param help String one line description
+     * @return LatencyHistogram to record values in
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        metrics.add(new Metric(name, help, null, histogram, null));
+        return histogram;
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are. The supplier is called from JMX and endpoint threads,
+     * so it must be safe to call from any thread
+     * @param name String metric name
+     * @param help String one line description
+     * @param value DoubleSupplier of the current value
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        metrics.add(new Metric(name, help, null, null, value));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Failures are logged and otherwise ignored
+     * @param type String process type, e.g. Coordinator
+     * @param name String name telling processes of the same type apart, e.g. the RMI port. Null if there is only one
+     */
+    public void register(String type, String name) {
+        try {
+            ObjectName objectName = new ObjectName("gpa:type=" + type + (name == null ? "" : ",name=" + name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            LOG.info("Registered MBean {}", objectName);
+        } catch (JMException e) {
+            LOG.warn("Couldn't register MBean for {}: {}", type, e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format at /metrics on a loopback port. Failures are logged and
+     * otherwise ignored
+     * @param port int port to listen on
+     */
+    public void serve(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            LOG.info("Serving http://localhost:{}/metrics", port);
+        } catch (IOException e) {
+            LOG.warn("Couldn't serve metrics on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    /**
+     * @return String every metric in the Prometheus text format. Histograms are written as summaries
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics) {
+            String name = prefix + "_" + metric.name;
+            out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+            if (metric.counter != null) {
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(metric.counter.sum()).append('\n');
+            } else if (metric.gauge != null) {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(format(metric.gauge.getAsDouble())).append('\n');
+            } else {
+                LatencyHistogram histogram = metric.histogram;
+                out.append("# TYPE ").append(name).append(" summary\n");
+                for (double quantile : QUANTILES) {
+                    out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(histogram.percentile(quantile * 100)).append('\n');
+                }
+                out.append(name).append("_sum ").append(histogram.sum()).append('\n');
+                out.append(name).append("_count ").append(histogram.count()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Clears every histogram. Counters keep counting, since scrapers expect them to only go up
+     */
+    public void reset() {
+        for (Metric metric : metrics) {
+            if (metric.histogram != null) {
+                metric.histogram.reset();
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Metric metric : metrics) {
+            if (metric.counter != null && attribute.equals(metric.name)) {
+                return metric.counter.sum();
+            }
+            if (metric.gauge != null && attribute.equals(metric.name)) {
+                return metric.gauge.getAsDouble();
+            }
+            if (metric.histogram != null && attribute.startsWith(metric.name + "_")) {
+                LatencyHistogram histogram = metric.histogram;
+                switch (attribute.substring(metric.name.length() + 1)) {
+                    case "count":
+                        return histogram.count();
+                    case "mean":
+                        return histogram.mean();
+                    case "max":
+                        return histogram.max();
+                    case "p50":
+                        return histogram.percentile(50);
+                    case "p90":
+                        return histogram.percentile(90);
+                    case "p99":
+                        return histogram.percentile(99);
+                    case "p999":
+                        return histogram.percentile(99.9);
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out of the list, as the DynamicMBean contract asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("reset") && (params == null || params.length == 0)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metric metric : metrics) {
+            if (metric.counter != null) {
+                attributes.add(attribute(metric.name, "java.lang.Long", metric.help));
+            } else if (metric.gauge != null) {
+                attributes.add(attribute(metric.name, "java.lang.Double", metric.help));
+            } else {
+                attributes.add(attribute(metric.name + "_count", "java.lang.Long", metric.help + ". Count"));
+                attributes.add(attribute(metric.name + "_mean", "java.lang.Double", metric.help + ". Mean"));
+                attributes.add(attribute(metric.name + "_max", "java.lang.Long", metric.help + ". Max"));
+                for (String percentile : new String[] {"p50", "p90", "p99", "p999"}) {
+                    attributes.add(attribute(metric.name + "_" + percentile, "java.lang.Long",
+                            metric.help + ". " + percentile));
+                }
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears every histogram",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(Metrics.class.getName(), "Paxos metrics for " + prefix,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {reset}, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+
+    private static String format(double value) {
+        return value == (long) value ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * One registered metric. Exactly one of counter, histogram and gauge is set
+     */
+    private static class Metric {
+        final String name;
+        final String help;
+        final LongAdder counter;
+        final LatencyHistogram histogram;
+        final DoubleSupplier gauge;
+
+        Metric(String name, String help, LongAdder counter, LatencyHistogram histogram, DoubleSupplier gauge) {
+            this.name = name;
+            this.help = help;
+            this.counter = counter;
+            this.histogram = histogram;
+            this.gauge = gauge;
+        }
+    }
+}
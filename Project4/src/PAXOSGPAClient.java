@@ -8,17 +8,30 @@
  * by Rohan Subramaniam
  */
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class PAXOSGPAClient {
 
     private static boolean autofill = true;
+    // Records asked for per call by RANGE and TOP
+    private static final int PAGE = 100;
+    // Thread safe, unlike SimpleDateFormat, so one instance serves every line
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
 
     /**
      * Helper function to take user input while the client is running. Deciphers the command and calls the correct
@@ -71,41 +84,79 @@ public class PAXOSGPAClient {
                 response = "Remote exception while trying to delete. Server unavailable.";
                 System.exit(1);
             }
+        } else if (params[0].equalsIgnoreCase("range") && params.length == 3) {  // Check for range and 2 args
+            try {
+                float min = Float.parseFloat(params[1]);
+                float max = Float.parseFloat(params[2]);
+                src.GPAPage page = server.gpaRange(min, max, src.GPAPage.START, PAGE);
+                int count = printPage(page);
+                while (page.more) {
+                    page = server.gpaRange(min, max, page.next, PAGE);
+                    count += printPage(page);
+                }
+                response = count + " students with a GPA from " + min + " to " + max;
+            } catch (NumberFormatException e) {
+                response = "Min and max must be floats";
+            } catch (RemoteException f) {
+                response = "Remote exception while trying to read a GPA range. Server unavailable.";
+                System.exit(1);
+            }
+        } else if (params[0].equalsIgnoreCase("top") && params.length == 2) {  // Check for top and 1 arg
+            try {
+                int n = Integer.parseInt(params[1]);
+                src.GPAPage page = server.topGPAs(src.GPAPage.START, Math.min(PAGE, n));
+                int count = printPage(page);
+                while (page.more && count < n) {
+                    page = server.topGPAs(page.next, Math.min(PAGE, n - count));
+                    count += printPage(page);
+                }
+                response = "Top " + count + " GPAs";
+            } catch (NumberFormatException e) {
+                response = "N must be an int";
+            } catch (RemoteException f) {
+                response = "Remote exception while trying to read the top GPAs. Server unavailable.";
+                System.exit(1);
+            }
         } else {
-            response = "Invalid command. Command must be PUT(Key, Val), GET(Key), or DELETE(Key)";
+            response = "Invalid command. Command must be PUT(Key, Val), GET(Key), DELETE(Key), RANGE(Min, Max) " +
+                    "or TOP(N)";
         }
         System.out.println(timestamp() + response);
         return true;
     }
 
     /**
-     * Populates the server before taking user input to have some key/value pairs readily accessible
-     * @param server src.GPARepo hashmap server
-     * @throws RemoteException If the server can't be reached
+     * Prints each record of a GPA range or top-N page on its own line
+     * @param page src.GPAPage page to print
+     * @return int number of records printed
      */
-    private static void populateServer(src.GPARepo server) throws RemoteException, InterruptedException {
-        server.put(1000, 3.86f);
-        System.out.println("Successfully put Key/ID: 1000  Value/GPA: 3.86");
-        Thread.sleep(3000);
-
-        server.put(1001, 2.98f);
-        System.out.println("Successfully put Key/ID: 1001  Value/GPA: 2.98");
-        Thread.sleep(3000);
-
-        server.put(1002, 1.70f);
-        System.out.println("Successfully put Key/ID: 1002  Value/GPA: 1.70");
-        Thread.sleep(3000);
-
-        server.put(1003, 1.22f);
-        System.out.println("Successfully put Key/ID: 1003  Value/GPA: 1.22");
-        Thread.sleep(3000);
-
-        server.put(1004, 2.60f);
-        System.out.println("Successfully put Key/ID: 1004  Value/GPA: 2.60");
-        Thread.sleep(3000);
+    private static int printPage(src.GPAPage page) {
+        for (int i = 0; i < page.size(); i++) {
+            System.out.println(String.format("Key/ID: %d  Value/GPA: %.2f", page.keys[i], page.vals[i]));
+        }
+        return page.size();
+    }
 
-        server.put(1005, 3.27f);
-        System.out.println("Successfully put Key/ID: 1005  Value/GPA: 3.27");
+    /**
+     * Populates the server before taking user input to have some key/value pairs readily accessible. The puts are
+     * all sent at once through a GPAAsyncClient and then waited on
+     * @param server src.GPARepo hashmap server
+     * @throws ExecutionException If a put fails
+     * @throws InterruptedException If interrupted while waiting for the puts
+     */
+    private static void populateServer(src.GPARepo server) throws ExecutionException, InterruptedException {
+        int[] keys = {1000, 1001, 1002, 1003, 1004, 1005};
+        float[] vals = {3.86f, 2.98f, 1.70f, 1.22f, 2.60f, 3.27f};
+        GPAAsyncClient client = new GPAAsyncClient(server, GPAAsyncClient.WINDOW, 1);
+        List<CompletableFuture<String>> puts = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            puts.add(client.put(keys[i], vals[i]));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            puts.get(i).get();
+            System.out.println(String.format("Successfully put Key/ID: %d  Value/GPA: %.2f", keys[i], vals[i]));
+        }
+        client.close();
     }
 
     /**
@@ -120,6 +171,12 @@ public class PAXOSGPAClient {
             System.out.println("Using default localhost and port 8080");
             System.out.println("To specify port and host use java -jar src.RMIGPAClient.jar <hostname> <port>");
             System.out.println("Type \"exit\" to stop the client");
+        } else if (args.length >= 3 && args[2].equalsIgnoreCase("bench")) {
+            benchmark(args);
+            return;
+        } else if (args.length >= 4 && (args[2].equalsIgnoreCase("import") || args[2].equalsIgnoreCase("export"))) {
+            bulkTransfer(args);
+            return;
         } else if (args.length < 2 || args.length > 3) {
             System.out.println("Invalid number of arguments");
             System.out.println("To specify port and host use java -jar src.RMIGPAClient.jar <hostname> <port> ");
@@ -140,7 +197,8 @@ public class PAXOSGPAClient {
 
         try {
             // Try to bind to the RMI registry
-            src.GPARepo server = (src.GPARepo) Naming.lookup("rmi://" + host + ":" + port + "/GPAService");
+            src.GPARepo server = GPANearCache.wrap(
+                    (src.GPARepo) Naming.lookup("rmi://" + host + ":" + port + "/GPAService"));
 
             if (autofill) {
                 populateServer(server); // Try to send the initial puts
@@ -161,15 +219,67 @@ public class PAXOSGPAClient {
 
     }
 
+    /**
+     * Runs the load generator instead of the REPL. Usage is
+     * java -jar src.RMIGPAClient.jar <hostname> <port> bench [name=value ...]. See GPABenchmark for the settings
+     * @param args host, port, "bench", then the benchmark settings
+     */
+    private static void benchmark(String[] args) {
+        try {
+            src.GPARepo server = GPANearCache.wrap(
+                    (src.GPARepo) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/GPAService"));
+            new GPABenchmark(server, Arrays.copyOfRange(args, 3, args.length)).run();
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid benchmark setting. " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (NotBoundException | MalformedURLException | RemoteException e) {
+            System.out.println("Exception occurred while connecting to server: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("IOException while writing the benchmark report: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Benchmark interrupted");
+        }
+        System.exit(0);
+    }
+
     /**
      * Timestamp of the current time to print on each line.
      * @return String version of the timestamp formatted for readability
      */
     private static String timestamp() {
-        long currentTime = System.currentTimeMillis();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:ms");
-        //formatted value of current Date
-        String time = "" + df.format(currentTime);
-        return "(System time: " + time + ") ";
+        return "(System time: " + TIME.format(Instant.now()) + ") ";
+    }
+
+    /**
+     * Imports a file into the cluster or exports a replica's map to one instead of running the REPL. Usage is
+     * java -jar src.RMIGPAClient.jar <hostname> <port> import|export <file> [name=value ...]. See GPABulkTransfer
+     * @param args host, port, "import" or "export", the file, then the settings
+     */
+    private static void bulkTransfer(String[] args) {
+        String url = "rmi://" + args[0] + ":" + args[1];
+        boolean ok = true;
+        try {
+            GPABulkTransfer transfer = new GPABulkTransfer(Paths.get(args[3]), Arrays.copyOfRange(args, 4,
+                    args.length));
+            if (args[2].equalsIgnoreCase("import")) {
+                ok = transfer.importFile((src.GPARepo) Naming.lookup(url + "/GPAService"));
+            } else {
+                transfer.exportFile((src.GPAExport) Naming.lookup(url + "/GPAExport"));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid import or export setting. " + e.getMessage());
+            ok = false;
+        } catch (NotBoundException | MalformedURLException | RemoteException e) {
+            System.out.println("Exception occurred while connecting to server: " + e.getMessage());
+            ok = false;
+        } catch (IOException e) {
+            System.out.println("IOException during the " + args[2].toLowerCase() + ": " + e.getMessage());
+            ok = false;
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while waiting for the import");
+            ok = false;
+        }
+        System.exit(ok ? 0 : 1);
     }
 }
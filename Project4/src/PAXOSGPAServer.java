@@ -1,6 +1,6 @@
 
 /**
- * Multithreaded Java RMI HashMap server with 2 phase commit among multiple server instances
+ * Multithreaded Java RMI HashMap server replicated with Multi-Paxos among multiple server instances
  * Supports int Student ID keys and float GPA values
  * Operations are Put(key, value), Get(key), and Delete(key)
  * CS 6650 Scalable Distributed Systems
@@ -9,31 +9,88 @@
  * by Rohan Subramaniam
  */
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.Naming;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo, Runnable {
-    // Hashmap/dictionary of the ID and GPAs. This is the synchronized resource
-    private final HashMap<Integer, Float> map = new HashMap<>();
+public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo, src.MemberAdmin, src.GPAExport,
+        Runnable {
+    private static final Log LOG = Log.get("PAXOSGPAServer");
 
-    // Coordinator connection variables
-    private Socket serverSocket = null;
-    private DataOutputStream dataOut = null;
-    private DataInputStream dataIn = null;
+    // Primitive store of the ID and GPAs. Only changed by the run() thread as chosen commands are applied
+    private final GPAStore map = new GPAStore();
+    // The same records ordered by GPA for range and top-N queries. Changed along with the map
+    private final GPAIndex index = new GPAIndex();
+    // Guards the map and the index. Many reads can hold it at once, and unlike a monitor it doesn't pin a virtual
+    // thread to its carrier
+    private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+    // Most records a GPA range or top-N page holds
+    static final int MAX_PAGE = Integer.getInteger("gpa.page.max", 10000);
+
+    // Coordinator connection variables. In peer mode it changes when the leader does
+    private volatile PaxosLink coordinator = null;
     private static boolean closed = false;
-    private int coordPort = 1235;
-    private String coordHost = "localhost";
+    // Opens the link to the coordinator for a server run in-process, e.g. over a SimNetwork. Null for a TCP socket
+    // to coordHost:coordPort. An in-process server reconnects when its link breaks instead of exiting
+    private PaxosLink.Connector connector = null;
+    // Set by stop(), which stands in for a crash in a simulated cluster
+    private volatile boolean stopped = false;
+    // Coordinator of this server's replica group. Each shard of a sharded deployment has its own
+    private int coordPort = Integer.getInteger("gpa.coordinator.port", 1235);
+    private String coordHost = System.getProperty("gpa.coordinator.host", "localhost");
+
+    // Peer mode runs without a Coordinator process. Every server is started with the same comma separated gpa.peers
+    // list of host:port and its own index in it, gpa.peer.id, and runs a coordinator on its peer port. All servers
+    // connect to the lowest peer that is up, whose coordinator leads, and move down the list when it fails
+    static final List<String> PEERS = System.getProperty("gpa.peers") == null ? null :
+            Arrays.asList(System.getProperty("gpa.peers").split(","));
+    static final int PEER_ID = Integer.getInteger("gpa.peer.id", -1);
+    // How long after a leader change callers wait for a batch sent to the old leader before they get an error
+    static final long FAILOVER_MILLIS = Long.getLong("gpa.peer.failoverMillis",
+            2 * Long.getLong("gpa.leaseMillis", 5000));
+    private static final int PEER_CONNECT_MILLIS = 500;
+    // Request IDs of different servers never collide in peer mode: each server only uses IDs equal to its index mod
+    // ID_STRIDE
+    private static final int ID_STRIDE = 256;
+    // Held while connecting to peers, so a lock that parks rather than a monitor that would pin a virtual thread
+    private final ReentrantLock peerLock = new ReentrantLock();
+    private int leaderIndex = -1;
+    // This server's member ID in the cluster configuration, from gpa.member.id. Defaults to its peer index in peer
+    // mode and to its RMI port otherwise, so a restarted server keeps its vote
+    private int memberID;
+    // The newest configuration applied from the log and the one before it, reported to the coordinator. A MEMBERS
+    // record at the start of each write-ahead log segment keeps them past snapshots
+    private volatile Membership membership = null;
+    private volatile Membership previousMembership = null;
+    private FramedConnection lowerLeader = null;
+    private int lowerLeaderIndex = -1;
 
     // Codes for the server roles in PAXOS
     public final int ROLE_PROPOSER = 1;
@@ -41,10 +98,106 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
     public final int ROLE_LEARNER = 3;
 
     public int currentRole;
-    public long maxID;
+    public long maxID;  // Highest ballot promised. Under Multi-Paxos the promise covers every future slot
     public long proposeID;
-    public long acceptedID;
-    public String acceptedVal = null;
+
+    // Accepted values and chosen commands per slot, and the callers of this server's batches waiting to be chosen
+    private final ReplicatedLog log = new ReplicatedLog();
+    private final ConcurrentHashMap<Long, List<CompletableFuture<String>>> pending = new ConcurrentHashMap<>();
+    private final CommandBatcher batcher = new CommandBatcher(this::sendBatch);
+    private final AtomicLong lastRequestID = new AtomicLong();
+    // Commands per log slot for putAll/deleteAll
+    static final int BULK_BATCH = Integer.getInteger("gpa.bulk.batch", 4096);
+
+    // Read consistency for get(). "linearizable" waits for a read index confirmed by a quorum, "lease" takes the read
+    // index from the leader without a quorum round while its lease holds, and "stale" reads the local map right away
+    static final String READ_CONSISTENCY = System.getProperty("gpa.readConsistency", "linearizable");
+    static final long LEASE_MILLIS = Long.getLong("gpa.leaseMillis", 5000);
+    // Longest a client call waits for its command to be chosen or its read index. A timed out write may still be
+    // chosen later. A bulk call times out when none of its batches has been chosen for this long
+    static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("gpa.request.timeoutMillis", 10000);
+    static final String TIMED_OUT = "Request timed out. It may still be applied";
+
+    // Highest slot executed on the map. A read waiting to catch up to its read index parks on a future for that
+    // slot, completed by the run() thread once the slot is applied, so no handler thread waits on a monitor
+    private volatile long executedSlot = 0;
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> slotWaiters = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Long>> pendingReads = new ConcurrentHashMap<>();
+
+    // Durable log of promises, accepts and chosen batches. Replies that depend on a record wait until it's on disk
+    private Path walDir;
+    private WriteAheadLog wal;
+    // Sends those replies, so the WAL flusher goes straight back to the next group commit instead of waiting on the
+    // coordinator's socket. A single thread keeps them in the order the log made them durable
+    private final ExecutorService replySender = Executors.newSingleThreadExecutor(Threads.factory("ReplySender"));
+    private boolean replaying = false;
+
+    // The map is snapshotted every SNAPSHOT_INTERVAL applied slots, and the log behind each snapshot is deleted.
+    // Lagging or new replicas are caught up with a snapshot streamed in chunks of CHUNK_RECORDS records
+    static final long SNAPSHOT_INTERVAL = Long.getLong("gpa.snapshot.interval", 10000);
+    static final int CHUNK_RECORDS = Integer.getInteger("gpa.snapshot.chunkRecords", 8192);
+    private SnapshotStore snapshots;
+    private long lastSnapshotSlot = 0;
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(Threads.factory("SnapshotWriter"));
+    // CATCHUP requests this server is the donor for, waiting until it has applied up to the requested slot
+    private final List<PaxosMessage> catchupsWaiting = new ArrayList<>();
+    // Snapshot being received while this server catches up. Null when it isn't catching up
+    private GPAStore incoming = null;
+    // Transfer ID of that snapshot. Each JOIN may ask for another catch-up before the first one starts streaming,
+    // so chunks of a transfer older than the newest one seen are dropped instead of mixed into it
+    private long incomingTransfer = 0;
+
+    // Clients' near-caches, sent the keys each applied slot changes by the CacheInvalidator thread. A listener is
+    // dropped when its lease runs out or a push to it fails, and gets a new subscription ID when it renews, so the
+    // client knows to clear a cache that may have missed invalidations. IDs start from the clock so a restarted
+    // server never hands out an ID from before the restart
+    private final ConcurrentHashMap<src.GPACacheListener, Subscription> subscribers = new ConcurrentHashMap<>();
+    private final AtomicLong lastSubscriptionID = new AtomicLong(System.currentTimeMillis() << 20);
+    private final ConcurrentLinkedQueue<int[]> invalidations = new ConcurrentLinkedQueue<>();
+    private final ExecutorService invalidator = Executors.newSingleThreadExecutor(Threads.factory("CacheInvalidator"));
+    // Sent in place of keys when the whole map was replaced
+    private static final int[] ALL_KEYS = new int[0];
+
+    // Exports being read out by clients, each a copy of the map taken once. Dropped after the last page, or once the
+    // client hasn't read a page for the export's lease, checked whenever slots are applied and exports are opened or
+    // read. IDs start from the clock like subscription IDs
+    private final ConcurrentHashMap<Long, Export> exports = new ConcurrentHashMap<>();
+    private final AtomicLong lastExportID = new AtomicLong(System.currentTimeMillis() << 20);
+
+    // Lease granted to the leader ballot this acceptor last acknowledged. No other ballot is promised until it expires
+    private long leaseBallot = 0;
+    private long leaseExpiry = 0;
+
+    // Per-phase latencies and protocol counters, read through JMX and the metrics endpoint
+    final Metrics metrics = new Metrics("gpa_server");
+    private final LatencyHistogram commitNanos = metrics.histogram("commit_nanos",
+            "put or delete received until applied, in nanoseconds");
+    private final LatencyHistogram bulkCommitNanos = metrics.histogram("bulk_commit_nanos",
+            "putAll or deleteAll received until every batch is applied, in nanoseconds");
+    private final LatencyHistogram readNanos = metrics.histogram("read_nanos",
+            "get or getAll received until read, read index wait included, in nanoseconds");
+    private final LatencyHistogram promiseNanos = metrics.histogram("promise_nanos",
+            "PREPARE received until the PROMISE was durable and sent, in nanoseconds");
+    private final LatencyHistogram acceptNanos = metrics.histogram("accept_nanos",
+            "ACCEPT received until the ACCEPTED was durable and sent, in nanoseconds");
+    private final LatencyHistogram heartbeatNanos = metrics.histogram("heartbeat_nanos",
+            "HEARTBEAT received until the reply was sent, in nanoseconds");
+    private final LatencyHistogram applyNanos = metrics.histogram("apply_nanos",
+            "Applying one chosen slot to the map, in nanoseconds");
+    private final LatencyHistogram batchCommands = metrics.histogram("batch_commands",
+            "Commands in each batch sent to the coordinator");
+    private final LongAdder prepares = metrics.counter("prepares_total", "PREPAREs received");
+    private final LongAdder accepts = metrics.counter("accepts_total", "ACCEPTs received");
+    private final LongAdder nacks = metrics.counter("ignored_total",
+            "PREPAREs, ACCEPTs and HEARTBEATs refused with an IGNORED");
+    private final LongAdder slotsApplied = metrics.counter("slots_applied_total", "Chosen slots applied");
+    private final LongAdder commandsApplied = metrics.counter("commands_applied_total", "Commands applied");
+    private final LongAdder batchesSent = metrics.counter("batches_sent_total", "Batches sent as REQUESTs");
+    private final LongAdder snapshotsTaken = metrics.counter("snapshots_total", "Snapshots of the map taken");
+    private final LongAdder catchupsSent = metrics.counter("catchups_sent_total",
+            "Snapshots streamed to catch a server up");
+    private final LongAdder invalidationsSent = metrics.counter("invalidations_total",
+            "Invalidation pushes sent to client near-caches");
 
     /**
      * Constructor that binds the server to the specified host and port
@@ -56,16 +209,74 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
         try {
             currentRole = ROLE_ACCEPTOR;
             maxID = 0;
-            System.out.println(timestamp() + "Starting server on Host: " + host + "  Port #" + port);
+            walDir = Paths.get(System.getProperty("gpa.wal.dir", "wal-" + port));
+            memberID = Integer.getInteger("gpa.member.id", PEER_ID >= 0 ? PEER_ID : port);
+            LOG.info("Starting server on Host: {}  Port #{}", host, port);
             LocateRegistry.createRegistry(port);
             Naming.rebind("rmi://" + host + ":" + port + "/GPAService", this);
-            System.out.println(timestamp() + "GPA Server bound in registry");
+            Naming.rebind("rmi://" + host + ":" + port + "/MemberAdmin", this);
+            Naming.rebind("rmi://" + host + ":" + port + "/GPAExport", this);
+            LOG.info("GPA Server bound in registry");
+            startMetrics(Integer.toString(port));
         } catch (Exception e) {
-            System.out.println(timestamp() + "GPA Server error: " + e.getMessage());
+            LOG.error("GPA Server error: {}", e.getMessage());
             System.exit(1);
         }
     }
 
+    /**
+     * Constructor for a server run in-process by LocalCluster. It isn't bound in an RMI registry, so its GPARepo
+     * methods are called directly
+     * @param coordHost String hostname of the coordinator
+     * @param coordPort int coordinator port
+     * @param memberID int member ID in the cluster configuration
+     * @param walDir Path of the write-ahead log and snapshot directory
+     * @throws RemoteException if the server can't be exported
+     */
+    PAXOSGPAServer(String coordHost, int coordPort, int memberID, Path walDir) throws RemoteException {
+        this(() -> new FramedConnection(new Socket(coordHost, coordPort)), memberID, walDir);
+    }
+
+    /**
+     * Constructor for a server run in-process that reaches its coordinator through any transport, e.g. a SimNetwork
+     * @param connector PaxosLink.Connector that opens the link to the coordinator, called again if the link breaks
+     * @param memberID int member ID in the cluster configuration
+     * @param walDir Path of the write-ahead log and snapshot directory
+     * @throws RemoteException if the server can't be exported
+     */
+    PAXOSGPAServer(PaxosLink.Connector connector, int memberID, Path walDir) throws RemoteException {
+        currentRole = ROLE_ACCEPTOR;
+        maxID = 0;
+        this.connector = connector;
+        this.memberID = memberID;
+        this.walDir = walDir;
+        registerGauges();
+    }
+
+    /**
+     * Registers the metrics MBean and starts the metrics endpoint if one is configured
+     * @param name String name of this server's MBean
+     */
+    private void startMetrics(String name) {
+        registerGauges();
+        metrics.register("PAXOSGPAServer", name);
+        if (Metrics.PORT > 0) {
+            metrics.serve(Metrics.PORT);
+        }
+    }
+
+    /**
+     * Registers the gauges. They read state owned by the run() thread without a lock, so they can lag a message
+     * behind
+     */
+    private void registerGauges() {
+        metrics.gauge("in_flight_batches", "Batches sent and not chosen yet", () -> pending.size());
+        metrics.gauge("pending_reads", "Reads waiting for a read index", () -> pendingReads.size());
+        metrics.gauge("applied_slot", "Highest slot applied to the map", () -> executedSlot);
+        metrics.gauge("promised_ballot", "Highest ballot promised", () -> maxID);
+        metrics.gauge("map_size", "Records in the map", () -> map.size());
+    }
+
     /**
      * Constructor that takes in a role argument if specified by the user
      * @param port int server port
@@ -77,12 +288,17 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
         try {
             currentRole = role;
             maxID = 0;
-            System.out.println(timestamp() + "Starting server on Host: " + host + "  Port #" + port);
+            walDir = Paths.get(System.getProperty("gpa.wal.dir", "wal-" + port));
+            memberID = Integer.getInteger("gpa.member.id", PEER_ID >= 0 ? PEER_ID : port);
+            LOG.info("Starting server on Host: {}  Port #{}", host, port);
             LocateRegistry.createRegistry(port);
             Naming.rebind("rmi://" + host + ":" + port + "/GPAService", this);
-            System.out.println(timestamp() + "GPA Server bound in registry");
+            Naming.rebind("rmi://" + host + ":" + port + "/MemberAdmin", this);
+            Naming.rebind("rmi://" + host + ":" + port + "/GPAExport", this);
+            LOG.info("GPA Server bound in registry");
+            startMetrics(Integer.toString(port));
         } catch (Exception e) {
-            System.out.println(timestamp() + "GPA Server error: " + e.getMessage());
+            LOG.error("GPA Server error: {}", e.getMessage());
             System.exit(1);
         }
     }
@@ -92,7 +308,9 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
      * @param args hostname and port. Role if desired
      */
     public static void main(String[] args) {
-        if (args.length != 2 && args.length != 3) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("members")) {
+            members(args);
+        } else if (args.length != 2 && args.length != 3) {
             System.out.println("Invalid number of arguments");
             System.out.println("To specify port and host use java -jar src.RMIGPAServer.jar <hostname> <port>");
             System.exit(1);
@@ -100,19 +318,20 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
             try {
                 int port = Integer.parseInt(args[1]);
                 String host = args[0];
-                Thread server;
+                PAXOSGPAServer server;
                 if (args.length == 3) {
                     int role = Integer.parseInt(args[2]);
                     if (role <= 3) {
-                        server = new Thread(new PAXOSGPAServer(port, host, role));
+                        server = new PAXOSGPAServer(port, host, role);
                     } else {
                         System.out.println("Invalid Role argument. Defaulting to ACCEPTOR");
-                        server = new Thread(new PAXOSGPAServer(port, host));
+                        server = new PAXOSGPAServer(port, host);
                     }
                 } else {
-                    server = new Thread(new PAXOSGPAServer(port, host));
+                    server = new PAXOSGPAServer(port, host);
                 }
-                server.start();
+                // The exported RMI object keeps the JVM running, so the coordinator I/O thread can be a virtual one
+                Threads.start("CoordinatorIO", server);
 
             } catch (NumberFormatException e) {
                 System.out.println("Invalid port argument. Port number must be an int");
@@ -125,100 +344,831 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
     }
 
     /**
-     * Thread run method. Establishes connection to the Coordinator and listens for PAXOS instructions
+     * Sends a server a membership command:
+     *   java PAXOSGPAServer members <host> <port>                         print the configuration it has applied
+     *   java PAXOSGPAServer members <host> <port> add|remove <member>     add or remove an acceptor
+     * @param args String[] command line
+     */
+    private static void members(String[] args) {
+        try {
+            if (args.length == 3) {
+                System.out.println(memberAdmin(args[1], args[2]).membership());
+            } else if (args.length == 5 && args[3].equalsIgnoreCase("add")) {
+                System.out.println(memberAdmin(args[1], args[2]).addAcceptor(Integer.parseInt(args[4])));
+            } else if (args.length == 5 && args[3].equalsIgnoreCase("remove")) {
+                System.out.println(memberAdmin(args[1], args[2]).removeAcceptor(Integer.parseInt(args[4])));
+            } else {
+                System.out.println("To print the configuration use java PAXOSGPAServer members <host> <port>");
+                System.out.println("To change it use java PAXOSGPAServer members <host> <port> add|remove <member>");
+                System.exit(1);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Ports and member IDs must be ints");
+            System.exit(1);
+        } catch (IOException | NotBoundException e) {
+            System.out.println("Exception occurred while connecting to server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static src.MemberAdmin memberAdmin(String host, String port)
+            throws RemoteException, NotBoundException, MalformedURLException {
+        return (src.MemberAdmin) Naming.lookup("rmi://" + host + ":" + port + "/MemberAdmin");
+    }
+
+    /**
+     * Thread run method. Establishes connection to the Coordinator and listens for PAXOS instructions. This is the
+     * only thread reading from the coordinator, so it also applies chosen commands for the waiting requests
      */
     @Override
     public void run() {
-        // Create the socket connection to the coordinator and establish streams
+        // Rebuild the acceptor state and the map from the latest snapshot and the write-ahead log after it before
+        // taking part in Paxos again
         try {
-            serverSocket = new Socket(coordHost, coordPort);
-            dataOut = new DataOutputStream(serverSocket.getOutputStream());
-            dataIn = new DataInputStream(serverSocket.getInputStream());
+            wal = new WriteAheadLog(walDir);
+            snapshots = new SnapshotStore(walDir);
+            lastSnapshotSlot = snapshots.loadLatest(map);
+            index.rebuild(map);
+            log.restore(lastSnapshotSlot);
+            replaying = true;
+            wal.replay(this::replay);
+            replaying = false;
         } catch (IOException e) {
-            System.out.println(timestamp() + "IOException occurred while establishing coordinator socket and streams");
+            LOG.error("IOException while replaying write-ahead log in {}: {}", walDir, e.getMessage());
             System.exit(1);
         }
+        executed(log.appliedSlot());
 
+        // Create the socket connection to the coordinator and establish streams
         try {
-            if (currentRole == ROLE_LEARNER) {
-                dataOut.writeUTF("LEARNER");
+            if (PEERS != null) {
+                startPeer();
+            } else if (connector != null) {
+                coordinator = connector.connect();
+            } else {
+                coordinator = new FramedConnection(new Socket(coordHost, coordPort));
             }
         } catch (IOException e) {
-            System.out.println("IOException while informing Coordinator of role");
+            LOG.error("IOException occurred while establishing coordinator socket and streams");
+            System.exit(1);
         }
 
-        // Loop to process PAXOS communication
-        String coordMessage;
-        while (!closed) {
-            if (currentRole == ROLE_PROPOSER) {
-                sleepThread(2000);
-                continue;
-            }
+        try {
+            sendMembers(coordinator);
+        } catch (IOException e) {
+            LOG.warn("IOException while informing Coordinator of role");
+        }
 
+        Threads.start("CommandBatcher", batcher);
+
+        // Loop to process PAXOS communication
+        while (!closed && !stopped) {
             try {
-                coordMessage = dataIn.readUTF();
-                System.out.println("Message from coordinator at beginning of while loop: " + coordMessage);
-                String[] params = coordMessage.split("[( ),]+", 4);
+                PaxosMessage message = coordinator.receive();
+                if (LOG.trace()) {
+                    LOG.trace("Message from coordinator at beginning of while loop: {}", message);
+                }
+                boolean acceptor = currentRole != ROLE_LEARNER;
 
-                if (coordMessage.startsWith("PREPARE") && currentRole == ROLE_ACCEPTOR) {
-                    System.out.println(timestamp() + "Received PAXOS PREPARE. Proposal ID: " + params[1]);
-                    proposeID = Long.parseLong(params[1]);
+                long receivedAt = System.nanoTime();
+                if (message.type == PaxosMessage.PREPARE && acceptor) {
+                    if (LOG.trace()) {
+                        LOG.trace("Received PAXOS PREPARE. Ballot: {}", Ballot.toString(message.ballot));
+                    }
+                    prepares.increment();
+                    proposeID = message.ballot;
 
+                    long leaseLeft = TimeUnit.NANOSECONDS.toMillis(leaseExpiry - System.nanoTime());
                     if (proposeID < maxID) {
-                        dataOut.writeUTF("IGNORED");
+                        nacks.increment();
+                        coordinator.send(new PaxosMessage(PaxosMessage.IGNORED, maxID, 0, 0));
+                    } else if (proposeID != leaseBallot && leaseLeft > 0) {
+                        // Another leader still holds a lease
+                        nacks.increment();
+                        coordinator.send(new PaxosMessage(PaxosMessage.IGNORED, maxID, 0, leaseLeft + 1));
                     } else {
                         maxID = proposeID;
-
-                        if (acceptedVal != null) {
-                            dataOut.writeUTF("PROMISE " + proposeID + " ACCEPTED " + acceptedID + " " + acceptedVal);
-                            System.out.println(timestamp() + "Sending PROMISE with previous accepted val: " + acceptedVal);
-                        } else {
-                            dataOut.writeUTF("PROMISE " + proposeID);
-                            System.out.println(timestamp() + "Sending PROMISE");
+                        PaxosMessage promise = new PaxosMessage(PaxosMessage.PROMISE, proposeID, log.appliedSlot(), 0);
+                        promise.entries = log.acceptedSince(message.slot);
+                        sendWhenDurable(wal.append(new PaxosMessage(PaxosMessage.PROMISE, proposeID, 0, 0)), promise,
+                                promiseNanos, receivedAt);
+                        if (LOG.trace()) {
+                            LOG.trace("Sending PROMISE with {} previous accepted vals", promise.entries.size());
                         }
                     }
 
-                } else if (coordMessage.startsWith("ACCEPT")) {
-                    System.out.println(timestamp() + "Received ACCEPT " + params[2] + " from proposer");
-                    // Message format: "ACCEPT REQUEST id [put,k,v]"
-                    // params format: ["ACCEPT", "REQUEST", "id", "[PUT,K,V]"
-                    System.out.println("Coord message: " + coordMessage);
-                    System.out.println("Split coord message: " + Arrays.toString(params));
-                    if (Long.parseLong(params[2]) < maxID) { // Check if the ID is lower than promised
-                        System.out.println("IGNORED ACCEPT");
-                        dataOut.writeUTF("IGNORED");
+                } else if (message.type == PaxosMessage.ACCEPT && acceptor) {
+                    if (LOG.trace()) {
+                        LOG.trace("Received ACCEPT {} for slot {}", message.batch, message.slot);
+                    }
+                    accepts.increment();
+                    if (message.ballot < maxID) { // Check if the ID is lower than promised
+                        if (LOG.trace()) {
+                            LOG.trace("IGNORED ACCEPT. Promised ballot {}", Ballot.toString(maxID));
+                        }
+                        nacks.increment();
+                        coordinator.send(new PaxosMessage(PaxosMessage.IGNORED, maxID, 0, 0));
                     } else {
-                        dataOut.writeUTF("ACCEPT " + params[2] + " " + params[3]);
-                        System.out.println(timestamp() + "ACCEPTED value: " + params[3]);
-                        acceptedVal = params[3];
+                        maxID = message.ballot;
+                        grantLease(message.ballot);
+                        log.accept(message.slot, message.ballot, message.id, message.batch);
+                        sendWhenDurable(wal.append(message),
+                                new PaxosMessage(PaxosMessage.ACCEPTED, message.ballot, message.slot, 0),
+                                acceptNanos, receivedAt);
+                        if (LOG.trace()) {
+                            LOG.trace("ACCEPTED value: {}", message.batch);
+                        }
+                    }
+                } else if (message.type == PaxosMessage.HEARTBEAT && acceptor) {
+                    // The leader confirming it still holds its ballot
+                    if (message.ballot < maxID) {
+                        nacks.increment();
+                        coordinator.send(new PaxosMessage(PaxosMessage.IGNORED, maxID, 0, 0));
+                    } else {
+                        // A heartbeat for a new ballot is a promise to it, so it has to be durable first
+                        CompletableFuture<Void> durable = message.ballot > maxID ?
+                                wal.append(new PaxosMessage(PaxosMessage.PROMISE, message.ballot, 0, 0)) :
+                                CompletableFuture.completedFuture(null);
+                        maxID = message.ballot;
+                        grantLease(message.ballot);
+                        sendWhenDurable(durable,
+                                new PaxosMessage(PaxosMessage.HEARTBEAT, message.ballot, 0, message.id),
+                                heartbeatNanos, receivedAt);
+                    }
+                } else if (message.type == PaxosMessage.DONE) {
+                    // Chosen batches are already durable on a majority, so they are applied without waiting
+                    wal.append(message);
+                    learn(message.slot, message.id, message.batch);
+                } else if (message.type == PaxosMessage.READINDEX) {
+                    CompletableFuture<Long> read = pendingReads.remove(message.id);
+                    if (read != null) {
+                        read.complete(message.slot);
                     }
-                } else if (coordMessage.startsWith("DONE")) {
-                    resetPAXOS();
-                } else if (coordMessage.startsWith("[put")) {
-                    System.out.println("Wrong loop is catching the final request");
+                } else if (message.type == PaxosMessage.JOIN) {
+                    // Sent once when this server connects, and in peer mode again by each new leader
+                    if (message.slot - 1 > log.appliedSlot() && incoming == null) {
+                        LOG.info("Applied up to slot {} but the cluster is at slot {}. Requesting catch-up",
+                                log.appliedSlot(), message.slot - 1);
+                        coordinator.send(new PaxosMessage(PaxosMessage.CATCHUP, 0, message.slot - 1, 0));
+                    }
+                } else if (message.type == PaxosMessage.CATCHUP) {
+                    // Another server needs a snapshot from this one
+                    catchupsWaiting.add(message);
+                    sendCatchups();
+                } else if (message.type == PaxosMessage.SNAPSHOT) {
+                    receiveSnapshot(message);
                 }
             } catch (IOException e) {
-                System.out.println(timestamp() + "IOException handling PAXOS messages. Coordinator not available");
-                System.exit(1);
+                if (stopped) {
+                    return;
+                } else if (PEERS != null) {
+                    failOver();
+                } else if (connector != null) {
+                    reconnect();
+                } else {
+                    LOG.warn("IOException handling PAXOS messages. Coordinator not available");
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts this server's coordinator on its peer port, connects to the leader and starts checking for a lower peer
+     * to move back to. Peers started at different times settle on the same leader within a second
+     * @throws IOException if the peer port can't be bound
+     */
+    private void startPeer() throws IOException {
+        if (PEER_ID < 0 || PEER_ID >= PEERS.size() || PEERS.size() > ID_STRIDE) {
+            throw new IOException("gpa.peer.id must be this server's index in gpa.peers, of at most " + ID_STRIDE);
+        }
+        String self = PEERS.get(PEER_ID);
+        Coordinator.startEmbedded(Integer.parseInt(self.substring(self.lastIndexOf(':') + 1)), PEERS.size(),
+                PEER_ID);
+        peerLock.lock();
+        try {
+            coordinator = connectToLeader();
+        } finally {
+            peerLock.unlock();
+        }
+        Threads.start("LeaderCheck", () -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                moveToLowerPeer();
+            }
+        });
+    }
+
+    /**
+     * Connects to the first peer in the list that accepts, waiting until one does. Called with peerLock held
+     * @return FramedConnection to the leader's coordinator
+     */
+    private FramedConnection connectToLeader() {
+        while (true) {
+            FramedConnection leader = connectBelow(PEERS.size());
+            if (leader != null) {
+                leaderIndex = lowerLeaderIndex;
+                LOG.info("Connected to leader peer {}", PEERS.get(leaderIndex));
+                return leader;
+            }
+            try {
+                Thread.sleep(PEER_CONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Tries the peers in list order up to a limit. Called with peerLock held
+     * @param limit int index of the first peer not to try
+     * @return FramedConnection to the first peer that accepted, whose index is left in lowerLeaderIndex. Null if none
+     */
+    private FramedConnection connectBelow(int limit) {
+        for (int i = 0; i < limit; i++) {
+            String peer = PEERS.get(i);
+            int colon = peer.lastIndexOf(':');
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1))), PEER_CONNECT_MILLIS);
+                lowerLeaderIndex = i;
+                return new FramedConnection(socket);
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing to clean up
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves to a peer lower in the list than the leader once one is up, e.g. after it restarts or when this server
+     * started first. The connection to the current leader is closed, so run() fails over to the new one
+     */
+    private void moveToLowerPeer() {
+        peerLock.lock();
+        try {
+            if (leaderIndex <= 0 || lowerLeader != null) {
+                return;
+            }
+            lowerLeader = connectBelow(leaderIndex);
+            if (lowerLeader == null) {
+                return;
+            }
+            LOG.info("Peer {} is up. Moving to it", PEERS.get(lowerLeaderIndex));
+        } finally {
+            peerLock.unlock();
+        }
+        try {
+            coordinator.close();
+        } catch (IOException e) {
+            LOG.warn("IOException while closing the connection to the old leader");
+        }
+    }
+
+    /**
+     * Moves this server to a new leader after the connection to the old one closed. Batches sent to the old leader
+     * aren't sent again, since any a quorum accepted are finished by the new leader when it is elected. A no-op
+     * batch gets it elected right away, and callers whose batch still isn't chosen after FAILOVER_MILLIS get an error.
+     * Pending reads fail, since the old leader won't answer them
+     */
+    private void failOver() {
+        FramedConnection next;
+        peerLock.lock();
+        try {
+            LOG.warn("Lost the connection to leader peer {}", PEERS.get(leaderIndex));
+            if (lowerLeader != null) {
+                next = lowerLeader;
+                leaderIndex = lowerLeaderIndex;
+                lowerLeader = null;
+                LOG.info("Connected to leader peer {}", PEERS.get(leaderIndex));
+            } else {
+                next = connectToLeader();
+            }
+        } finally {
+            peerLock.unlock();
+        }
+        switchTo(next, "Leader changed before the command was chosen");
+    }
+
+    /**
+     * Opens a new link through the connector after the old one broke, retrying until it connects. Used by servers
+     * run in-process, whose coordinator may be restarted or whose simulated link may be cut
+     */
+    private void reconnect() {
+        LOG.warn("Lost the link to the coordinator. Reconnecting");
+        while (!stopped) {
+            try {
+                switchTo(connector.connect(), "Lost the coordinator before the command was chosen");
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(PEER_CONNECT_MILLIS / 10);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries on over a new link to the coordinator. Pending reads fail, since the old link won't answer them, and
+     * callers whose batch still isn't chosen after FAILOVER_MILLIS get an error. A no-op batch gets a new leader
+     * elected right away
+     * @param next PaxosLink to the coordinator
+     * @param unchosen String response for callers whose batch wasn't chosen in time
+     */
+    private void switchTo(PaxosLink next, String unchosen) {
+        coordinator = next;
+        incoming = null;
+        incomingTransfer = 0;
+        for (CompletableFuture<Long> read : pendingReads.values()) {
+            read.completeExceptionally(new IOException("Leader changed"));
+        }
+        List<Long> unsure = new ArrayList<>(pending.keySet());
+        CompletableFuture.delayedExecutor(FAILOVER_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            for (long requestID : unsure) {
+                List<CompletableFuture<String>> callers = pending.remove(requestID);
+                if (callers != null) {
+                    callers.forEach(caller -> caller.complete(unchosen));
+                }
+            }
+        });
+        try {
+            sendMembers(next);
+            next.send(new PaxosMessage(PaxosMessage.REQUEST, 0, 0, nextRequestID(), Batch.noop()));
+        } catch (IOException e) {
+            LOG.warn("IOException while joining the new leader");
+        }
+    }
+
+    /**
+     * @return PaxosLink to the coordinator
+     * @throws IOException if the server hasn't connected yet, e.g. while an in-process server is still starting
+     */
+    private PaxosLink link() throws IOException {
+        PaxosLink link = coordinator;
+        if (link == null) {
+            throw new IOException("Not connected to the coordinator");
+        }
+        return link;
+    }
+
+    /**
+     * Tells the coordinator which member this server is, how far it has applied the log and the configurations it
+     * has applied, so it can adopt a newer one. Sent on every new link and after applying a configuration
+     * @param link PaxosLink to the coordinator
+     * @throws IOException if the link is broken
+     */
+    private void sendMembers(PaxosLink link) throws IOException {
+        PaxosMessage members = new PaxosMessage(PaxosMessage.MEMBERS, 0, log.appliedSlot(), memberID);
+        members.flags = currentRole == ROLE_LEARNER ? PaxosMessage.FLAG_LEARNER : 0;
+        members.entries = configEntries();
+        link.send(members);
+    }
+
+    private void reportMembers() {
+        try {
+            sendMembers(link());
+        } catch (IOException e) {
+            LOG.warn("IOException while sending the membership to the coordinator");
+        }
+    }
+
+    /**
+     * @return List of the configurations applied, oldest first, as log entries
+     */
+    private List<ReplicatedLog.Entry> configEntries() {
+        List<ReplicatedLog.Entry> entries = new ArrayList<>(2);
+        Membership before = previousMembership;
+        Membership latest = membership;
+        if (before != null) {
+            entries.add(before.toEntry());
+        }
+        if (latest != null) {
+            entries.add(latest.toEntry());
+        }
+        return entries;
+    }
+
+    /**
+     * Takes the configurations from a write-ahead log record or a catch-up snapshot if they are newer
+     * @param entries List of configurations, oldest first
+     * @return boolean true if they were newer than the ones applied
+     */
+    private boolean adoptMembers(List<ReplicatedLog.Entry> entries) {
+        if (entries.isEmpty()) {
+            return false;
+        }
+        ReplicatedLog.Entry latest = entries.get(entries.size() - 1);
+        if (membership != null && latest.slot <= membership.slot) {
+            return false;
+        }
+        ReplicatedLog.Entry before = entries.size() > 1 ? entries.get(0) : null;
+        previousMembership = before == null ? null : Membership.of(before.slot, before.batch);
+        membership = Membership.of(latest.slot, latest.batch);
+        return true;
+    }
+
+    /**
+     * Applies a chosen configuration entry and reports it to the coordinator
+     * @param entry ReplicatedLog.Entry with the configuration batch
+     */
+    private void configApplied(ReplicatedLog.Entry entry) {
+        previousMembership = membership;
+        membership = Membership.of(entry.slot, entry.batch);
+        if (!replaying) {
+            LOG.info("Membership is {}", membership);
+            reportMembers();
+        }
+    }
+
+    /**
+     * Stops an in-process server as if it had crashed: its link is closed, its write-ahead log stops taking
+     * records and every caller still waiting gets an error. Whatever was durable is replayed by a new server
+     * started on the same directory
+     */
+    void stop() {
+        stopped = true;
+        try {
+            if (coordinator != null) {
+                coordinator.close();
+            }
+            if (wal != null) {
+                wal.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("IOException while stopping: {}", e.getMessage());
+        }
+        for (CompletableFuture<Long> read : pendingReads.values()) {
+            read.completeExceptionally(new IOException("Server stopped"));
+        }
+        for (List<CompletableFuture<String>> callers : pending.values()) {
+            callers.forEach(caller -> caller.complete("Server stopped"));
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return long highest slot applied to the map
+     */
+    long executedSlot() {
+        return executedSlot;
+    }
+
+    /**
+     * @return GPAStore copy of the map. Replicas that have applied the same slot hold equal copies
+     */
+    GPAStore copyMap() {
+        mapLock.readLock().lock();
+        try {
+            return map.copy();
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Re-applies a record read back from the write-ahead log on startup
+     * @param record PaxosMessage logged before the restart
+     */
+    private void replay(PaxosMessage record) {
+        switch (record.type) {
+            case PaxosMessage.PROMISE:
+                maxID = Math.max(maxID, record.ballot);
+                break;
+            case PaxosMessage.ACCEPT:
+                maxID = Math.max(maxID, record.ballot);
+                log.accept(record.slot, record.ballot, record.id, record.batch);
+                break;
+            case PaxosMessage.DONE:
+                learn(record.slot, record.id, record.batch);
+                break;
+            case PaxosMessage.MEMBERS:
+                adoptMembers(record.entries);
+                break;
+            default:
+                LOG.error("Unexpected record in write-ahead log: {}", record);
+        }
+    }
+
+    /**
+     * Sends a reply to the coordinator once the record it depends on is durable. Nothing is sent if the record
+     * couldn't be written, so the coordinator never counts a promise or accept this acceptor could forget. The send
+     * runs on the ReplySender thread, not the WAL flusher that completes the future
+     * @param durable CompletableFuture from WriteAheadLog.append()
+     * @param reply PaxosMessage to send
+     * @param latency LatencyHistogram to record the time from receivedAt until the reply was sent in
+     * @param receivedAt long System.nanoTime() the message being replied to was received at
+     */
+    private void sendWhenDurable(CompletableFuture<Void> durable, PaxosMessage reply, LatencyHistogram latency,
+                                 long receivedAt) {
+        durable.whenCompleteAsync((done, failure) -> {
+            if (failure != null) {
+                LOG.error("Write-ahead log failed. Not sending {}", reply.typeName());
+                return;
+            }
+            try {
+                link().send(reply);
+                latency.record(System.nanoTime() - receivedAt);
+            } catch (IOException e) {
+                LOG.warn("IOException while sending {} to coordinator", reply.typeName());
+            }
+        }, replySender);
+    }
+
+    /**
+     * Records a batch chosen by the cluster and applies every batch that is now next in slot order. Every replica
+     * applies them, and batches that came from this server complete each caller with its command's result.
+     * @param slot long log slot the batch was chosen in
+     * @param requestID long ID of the request that proposed the batch
+     * @param batch Batch of commands
+     */
+    private void learn(long slot, long requestID, Batch batch) {
+        apply(log.learn(slot, requestID, batch), 0);
+    }
+
+    /**
+     * Applies chosen batches in slot order and completes the callers waiting on them. Once enough slots have been
+     * applied a snapshot is taken, and any catch-up this server is the donor for is sent
+     * @param entries List of chosen entries in slot order
+     * @param coveredSlot long slot of a snapshot just installed. Entries up to it are already in the map, so their
+     *                    callers are completed without applying them again
+     */
+    private void apply(List<ReplicatedLog.Entry> entries, long coveredSlot) {
+        for (ReplicatedLog.Entry entry : entries) {
+            List<CompletableFuture<String>> callers = pending.remove(entry.requestID);
+            boolean covered = entry.slot <= coveredSlot;
+            if (Membership.isConfig(entry.batch)) {
+                // Chosen for a single ADD_ACCEPTOR or REMOVE_ACCEPTOR command, whose caller gets the configuration
+                if (!covered) {
+                    configApplied(entry);
+                    executed(entry.slot);
+                    slotsApplied.increment();
+                }
+                if (callers != null) {
+                    callers.get(0).complete(Membership.of(entry.slot, entry.batch).toString());
+                }
+                continue;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < entry.batch.size(); i++) {
+                byte op = entry.batch.op(i);
+                String result;
+                if (covered) {
+                    mapLock.readLock().lock();
+                    try {
+                        result = result(op, entry.batch.key(i), entry.batch.val(i));
+                    } finally {
+                        mapLock.readLock().unlock();
+                    }
+                } else {
+                    result = execute(op, entry.batch.key(i), entry.batch.val(i));
+                }
+                if (callers != null) {
+                    callers.get(i).complete(result);
+                }
+            }
+            if (!covered) {
+                invalidate(entry.batch);
+                executed(entry.slot);
+                applyNanos.record(System.nanoTime() - start);
+                slotsApplied.increment();
+                commandsApplied.add(entry.batch.size());
+            }
+        }
+        if (!replaying && !entries.isEmpty()) {
+            if (log.appliedSlot() - lastSnapshotSlot >= SNAPSHOT_INTERVAL) {
+                takeSnapshot();
+            }
+            sendCatchups();
+            if (!exports.isEmpty()) {
+                dropExpiredExports();
+            }
+        }
+    }
+
+    /**
+     * Records the highest slot applied to the map and completes the reads waiting for it. Only called by the run()
+     * thread, after the slot's changes to the map are in
+     * @param slot long slot just applied
+     */
+    private void executed(long slot) {
+        executedSlot = slot;
+        for (Map.Entry<Long, CompletableFuture<Void>> waiting = slotWaiters.firstEntry();
+             waiting != null && waiting.getKey() <= slot; waiting = slotWaiters.firstEntry()) {
+            slotWaiters.remove(waiting.getKey());
+            waiting.getValue().complete(null);
+        }
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the map. The map is only locked for the copy, which shares the map's memory
+     * until the next writes to it, so writers don't wait on a copy of every record. The copy is written to disk
+     * in the background, and the write-ahead log segments it covers are deleted once it is durable. The log rolls
+     * over to a new segment that opens with the promised ballot and the accepted values past the snapshot, so
+     * nothing still needed is lost with the old segments.
+     * @return GPAStore copy of the map as of the last applied slot
+     */
+    private GPAStore takeSnapshot() {
+        GPAStore copy;
+        long slot;
+        mapLock.readLock().lock();
+        try {
+            copy = map.copy();
+            slot = executedSlot;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        lastSnapshotSlot = slot;
+        snapshotsTaken.increment();
+        List<PaxosMessage> carry = new ArrayList<>();
+        carry.add(new PaxosMessage(PaxosMessage.PROMISE, maxID, 0, 0));
+        if (membership != null) {
+            PaxosMessage members = new PaxosMessage(PaxosMessage.MEMBERS, 0, slot, memberID);
+            members.entries = configEntries();
+            carry.add(members);
+        }
+        for (ReplicatedLog.Entry entry : log.acceptedSince(slot + 1)) {
+            carry.add(new PaxosMessage(PaxosMessage.ACCEPT, entry.ballot, entry.slot, entry.requestID, entry.batch));
+        }
+        CompletableFuture<Long> rolled = wal.rollover(carry);
+        snapshotWriter.execute(() -> {
+            try {
+                snapshots.write(slot, copy);
+                wal.deleteSegmentsBefore(rolled.join());
+                snapshots.deleteBefore(slot);
+                LOG.info("Snapshot of {} records written at slot {}", copy.size(), slot);
+            } catch (IOException | CompletionException e) {
+                LOG.error("Snapshot at slot {} failed: {}", slot, e.getMessage());
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Streams a snapshot to every server waiting on this one for a catch-up it has now applied far enough for. They
+     * all share one snapshot, which is also kept as this server's own
+     */
+    private void sendCatchups() {
+        long applied = log.appliedSlot();
+        List<PaxosMessage> ready = new ArrayList<>();
+        catchupsWaiting.removeIf(request -> request.slot <= applied && ready.add(request));
+        if (ready.isEmpty()) {
+            return;
+        }
+        GPAStore copy = takeSnapshot();
+        for (PaxosMessage request : ready) {
+            catchupsSent.increment();
+            Threads.start("SnapshotSender", new SnapshotSender(request.id, applied, copy, configEntries()));
+        }
+    }
+
+    /**
+     * Adds a chunk of a snapshot streamed by another server. After the last chunk the snapshot replaces the map and
+     * the chosen batches buffered while it was streamed are applied on top of it
+     * @param chunk PaxosMessage SNAPSHOT chunk
+     */
+    private void receiveSnapshot(PaxosMessage chunk) {
+        if (chunk.id < incomingTransfer) {
+            return;
+        }
+        if (incoming == null || chunk.id > incomingTransfer) {
+            incoming = new GPAStore();
+            incomingTransfer = chunk.id;
+        }
+        if (chunk.batch != null) {
+            for (int i = 0; i < chunk.batch.size(); i++) {
+                incoming.put(chunk.batch.key(i), chunk.batch.val(i));
             }
         }
+        if ((chunk.flags & PaxosMessage.FLAG_LAST) == 0) {
+            return;
+        }
+        GPAStore snapshot = incoming;
+        incoming = null;
+        if (chunk.slot <= log.appliedSlot()) {
+            LOG.info("Already applied past catch-up snapshot at slot {}", chunk.slot);
+            return;
+        }
+        mapLock.writeLock().lock();
+        try {
+            map.replaceWith(snapshot);
+            index.rebuild(map);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+        executed(chunk.slot);
+        LOG.info("Caught up to slot {} with {} records", chunk.slot, snapshot.size());
+        if (adoptMembers(chunk.entries)) {
+            reportMembers();
+        }
+        if (!subscribers.isEmpty()) {
+            invalidations.add(ALL_KEYS);
+            invalidator.execute(this::pushInvalidations);
+        }
+        List<ReplicatedLog.Entry> buffered = log.restore(chunk.slot);
+        // Keep the installed state durable, since the log before it was never written here
+        takeSnapshot();
+        apply(buffered, chunk.slot);
     }
 
     /**
-     * Helper function to execute the actual put or delete after a confirmed Global Commit from the coordinator.
-     * @param params String array of the 2PC command
-     * @throws IOException if the Coordinator is unavailable
+     * Grants the leader ballot a lease. Until it expires this acceptor won't promise any other ballot, so the leader
+     * can hand out read indexes without a quorum round
+     * @param ballot long leader ballot that was acknowledged
      */
-    private void execute(String[] params) throws IOException {
-        if (params[1].equalsIgnoreCase("PUT")) {
-            map.put(Integer.parseInt(params[2]), Float.parseFloat(params[3]));
+    private void grantLease(long ballot) {
+        leaseBallot = ballot;
+        leaseExpiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+    }
+
+    /**
+     * Helper function to execute the actual put, get or delete once the command has been chosen.
+     * @param op byte Batch op code
+     * @param key int Student ID
+     * @param val float GPA. Ignored for anything but PUT
+     * @return String response for the client
+     */
+    private String execute(byte op, int key, float val) {
+        mapLock.writeLock().lock();
+        try {
+            switch (op) {
+                case Batch.PUT:
+                    // Every replica has the same map at this slot, so they all refuse the same put
+                    if (map.isFull() && !map.containsKey(key)) {
+                        LOG.warn("Store is full at {} records. Not putting key {}", map.size(), key);
+                        return "Store is full. Could not put key: " + key;
+                    }
+                    unindex(key);
+                    map.put(key, val);
+                    index.add(key, val);
+                    break;
+                case Batch.DELETE:
+                    unindex(key);
+                    map.remove(key);
+                    break;
+                default:
+                    break;
+            }
+            return result(op, key, val);
+        } finally {
+            mapLock.writeLock().unlock();
         }
+    }
 
-        if (params[1].equalsIgnoreCase("DELETE")) {
-            map.remove(Integer.parseInt(params[2]));
+    /**
+     * Takes a key's current GPA out of the index before the key is changed. Caller must hold the map lock
+     * @param key int Student ID
+     */
+    private void unindex(int key) {
+        int at = map.find(key);
+        if (at != GPAStore.MISSING) {
+            index.remove(key, map.valueAt(at));
         }
     }
 
+    /**
+     * Response for a command that has been applied. Caller must hold the map lock
+     * @param op byte Batch op code
+     * @param key int Student ID
+     * @param val float GPA. Ignored for anything but PUT
+     * @return String response for the client
+     */
+    private String result(byte op, int key, float val) {
+        switch (op) {
+            case Batch.PUT:
+                return "Successfully put key: " + key + " Value: " + val;
+            case Batch.DELETE:
+                return "Successfully removed key: " + key;
+            case Batch.GET:
+                return lookup(key);
+            default:
+                return "No-op";  // Fills a slot a previous leader left empty
+        }
+    }
+
+    /**
+     * Reads a key from the map. Caller must hold the map lock
+     * @param key int Student ID
+     * @return String response for the client
+     */
+    private String lookup(int key) {
+        int index = map.find(key);
+        if (index == GPAStore.MISSING) {
+            return "Key not found: " + key;
+        }
+        return "Key: " + key + " Value is: " + map.valueAt(index);
+    }
+
     /**
      * Put method for the GPA server hashmap. Initiates PAXOS by using request()
      * @param key int Student ID
@@ -227,20 +1177,382 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
      */
     @Override
     public String put(int key, float val) throws RemoteException {
-        String param = "[put," + key + "," + val + "]";
-        return request(param);
+        return request(Batch.PUT, key, val);
     }
 
     /**
-     * Get method for the hashmap. Retrieves the value of a specified key
+     * Get method for the hashmap. Retrieves the value of a specified key from the local map without a Paxos round,
+     * after catching up to the read index unless stale reads are configured
      * @param key int Student ID
      * @return float GPA of the student
      * @throws RemoteException if the RPC fails
      */
     @Override
     public String get(int key) throws RemoteException {
-        String param = "[get," + key + "]";
-        return request(param);
+        if (LOG.trace()) {
+            LOG.trace("Received read from client: [get,{}]", key);
+        }
+        return read(new int[] {key})[0];
+    }
+
+    /**
+     * Bulk get. Every key is read under a single read index, so the whole array costs one quorum round at most
+     * @param keys int[] Student IDs
+     * @return String[] response for each key
+     * @throws RemoteException if the RPC fails
+     */
+    @Override
+    public String[] getAll(int[] keys) throws RemoteException {
+        if (LOG.trace()) {
+            LOG.trace("Received bulk read of {} keys from client", keys.length);
+        }
+        return read(keys);
+    }
+
+    /**
+     * Reads keys from the local map once it has caught up to a read index, unless stale reads are configured
+     * @param keys int[] Student IDs
+     * @return String[] response for each key
+     */
+    private String[] read(int[] keys) {
+        long start = System.nanoTime();
+        String[] results = new String[keys.length];
+        try {
+            catchUpToReadIndex();
+            mapLock.readLock().lock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    results[i] = lookup(keys[i]);
+                }
+            } finally {
+                mapLock.readLock().unlock();
+            }
+        } catch (IOException e) {
+            LOG.warn("IOException while writing read index request to coordinator");
+            Arrays.fill(results, "Coordinator unavailable");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Thread interrupted while waiting for the read index");
+            Arrays.fill(results, "Request interrupted");
+        } catch (ExecutionException e) {
+            LOG.warn("Read index failed: {}", e.getCause().toString());
+            Arrays.fill(results, failed(e));
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out waiting for the read index");
+            Arrays.fill(results, "Request timed out");
+        }
+        readNanos.record(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * Waits until the map has caught up to a read index from the coordinator. Returns right away if stale reads are
+     * configured
+     * @throws IOException if the coordinator is unavailable
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the read index can't be had
+     * @throws TimeoutException if the map hasn't caught up within REQUEST_TIMEOUT_MILLIS
+     */
+    private void catchUpToReadIndex() throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        if (READ_CONSISTENCY.equalsIgnoreCase("stale")) {
+            return;
+        }
+        // Every write chosen before this read is at or below the read index, so once the map has caught up to it
+        // the local value is at least as new as any completed write
+        long readID = nextRequestID();
+        CompletableFuture<Long> readIndex = new CompletableFuture<>();
+        pendingReads.put(readID, readIndex);
+        try {
+            PaxosMessage request = new PaxosMessage(PaxosMessage.READINDEX, 0, 0, readID);
+            if (READ_CONSISTENCY.equalsIgnoreCase("lease")) {
+                request.flags = PaxosMessage.FLAG_LEASE;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS);
+            link().send(request);
+            long index = readIndex.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (executedSlot < index) {
+                CompletableFuture<Void> caughtUp = slotWaiters.computeIfAbsent(index,
+                        slot -> new CompletableFuture<>());
+                if (executedSlot >= index) {
+                    caughtUp.complete(null);  // Applied while the waiter was being added
+                }
+                try {
+                    caughtUp.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    throw new TimeoutException("Applied up to slot " + executedSlot + " of read index " + index);
+                }
+            }
+        } finally {
+            pendingReads.remove(readID);
+        }
+    }
+
+    /**
+     * Scans the map for every key in a range, read at a read index like get(). Used to move a range between shards
+     * @param from int lowest Student ID, inclusive
+     * @param to int highest Student ID, inclusive
+     * @return int[] keys in the range, in ascending order
+     * @throws RemoteException if the read index can't be had or the RPC fails
+     */
+    @Override
+    public int[] keysInRange(int from, int to) throws RemoteException {
+        LOG.debug("Received scan of keys {} to {} from client", from, to);
+        awaitReadIndex();
+        int[][] found = {new int[1024]};
+        int[] count = {0};
+        mapLock.readLock().lock();
+        try {
+            map.forEach((key, val) -> {
+                if (key >= from && key <= to) {
+                    if (count[0] == found[0].length) {
+                        found[0] = Arrays.copyOf(found[0], found[0].length * 2);
+                    }
+                    found[0][count[0]++] = key;
+                }
+            });
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        int[] keys = Arrays.copyOf(found[0], count[0]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * One page of the students with a GPA in a range, read from the GPA index at a read index like get()
+     * @param min float lowest GPA, inclusive
+     * @param max float highest GPA, inclusive
+     * @param after long next cursor of the previous page, or GPAPage.START
+     * @param limit int most records to return. Capped at MAX_PAGE
+     * @return src.GPAPage records in ascending GPA order
+     * @throws RemoteException if the read index can't be had or the RPC fails
+     */
+    @Override
+    public src.GPAPage gpaRange(float min, float max, long after, int limit) throws RemoteException {
+        LOG.debug("Received GPA range {} to {} from client", min, max);
+        long from = GPAIndex.entry(min, Integer.MIN_VALUE);
+        if (after != src.GPAPage.START) {
+            from = Math.max(from, after + 1);
+        }
+        return page(from, GPAIndex.entry(max, Integer.MAX_VALUE), false, after, limit);
+    }
+
+    /**
+     * One page of the highest GPAs, read from the GPA index at a read index like get()
+     * @param after long next cursor of the previous page, or GPAPage.START
+     * @param limit int most records to return. Capped at MAX_PAGE
+     * @return src.GPAPage records in descending GPA order
+     * @throws RemoteException if the read index can't be had or the RPC fails
+     */
+    @Override
+    public src.GPAPage topGPAs(long after, int limit) throws RemoteException {
+        LOG.debug("Received top GPAs page of {} from client", limit);
+        return page(after == src.GPAPage.START ? Long.MAX_VALUE : after - 1, Long.MIN_VALUE, true, after, limit);
+    }
+
+    /**
+     * Reads one page from the GPA index. One more record than the page holds is read to tell if there are more
+     * @param from long index entry to start at
+     * @param to long index entry to stop at
+     * @param descending boolean true to read from high GPAs to low
+     * @param after long cursor the page was asked for with, returned as next if the page is empty
+     * @param limit int most records to return
+     * @return src.GPAPage page read
+     * @throws RemoteException if the read index can't be had
+     */
+    private src.GPAPage page(long from, long to, boolean descending, long after, int limit) throws RemoteException {
+        awaitReadIndex();
+        long[] entries = new long[Math.max(0, Math.min(limit, MAX_PAGE)) + 1];
+        int n;
+        mapLock.readLock().lock();
+        try {
+            n = index.scan(from, to, descending, entries);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        boolean more = n == entries.length;
+        if (more) {
+            n -= 1;
+        }
+        int[] keys = new int[n];
+        float[] vals = new float[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = GPAIndex.key(entries[i]);
+            vals[i] = GPAIndex.val(entries[i]);
+        }
+        return new src.GPAPage(keys, vals, n > 0 ? entries[n - 1] : after, more);
+    }
+
+    /**
+     * Registers or renews a client's near-cache. See GPARepo.subscribe
+     * @param listener src.GPACacheListener exported by the client
+     * @param leaseMillis long how long the subscription lasts without another call
+     * @return long subscription ID. The same as the last call's while no invalidation could have been missed
+     */
+    @Override
+    public long subscribe(src.GPACacheListener listener, long leaseMillis) {
+        long expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        Subscription subscription = subscribers.compute(listener, (key, current) -> {
+            if (current == null || current.expiry - System.nanoTime() < 0) {
+                LOG.debug("Near-cache subscribed for {} ms", leaseMillis);
+                current = new Subscription(lastSubscriptionID.incrementAndGet());
+            }
+            current.expiry = expiry;
+            return current;
+        });
+        return subscription.id;
+    }
+
+    /**
+     * Starts an export of the map. See GPAExport.openExport
+     * @param leaseMillis long how long the copy is kept without a page being read
+     * @return long export ID to read the pages with
+     * @throws RemoteException if the read index can't be had
+     */
+    @Override
+    public long openExport(long leaseMillis) throws RemoteException {
+        awaitReadIndex();
+        dropExpiredExports();
+        GPAStore copy;
+        long slot;
+        mapLock.readLock().lock();
+        try {
+            copy = map.copy();
+            slot = executedSlot;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        long id = lastExportID.incrementAndGet();
+        exports.put(id, new Export(copy, TimeUnit.MILLISECONDS.toNanos(leaseMillis)));
+        LOG.info("Exporting {} records at slot {} as export {}", copy.size(), slot, id);
+        return id;
+    }
+
+    /**
+     * Drops the exports whose lease ran out. An abandoned export's copy holds on to every segment the map has written
+     * since, and is only let go of here, so this runs as slots are applied as well as when exports are opened
+     */
+    private void dropExpiredExports() {
+        long now = System.nanoTime();
+        exports.entrySet().removeIf(entry -> {
+            if (entry.getValue().expiry - now >= 0) {
+                return false;
+            }
+            LOG.info("Export {} dropped. Its lease ran out", entry.getKey());
+            return true;
+        });
+    }
+
+    /**
+     * Reads a page of an export. See GPAExport.exportPage
+     * @param id long export ID from openExport
+     * @param after long cursor from the last page, or GPAPage.START
+     * @param limit int most records to return, capped at MAX_PAGE
+     * @return src.GPAPage of records
+     * @throws RemoteException if the export is unknown or its lease ran out
+     */
+    @Override
+    public src.GPAPage exportPage(long id, long after, int limit) throws RemoteException {
+        Export export = exports.get(id);
+        if (export != null && export.expiry - System.nanoTime() < 0) {
+            exports.remove(id, export);
+            export = null;
+        }
+        if (export == null) {
+            throw new RemoteException("Export " + id + " is unknown or its lease ran out");
+        }
+        export.expiry = System.nanoTime() + export.leaseNanos;
+        int n = Math.max(1, Math.min(limit, MAX_PAGE));
+        int[] keys = new int[n];
+        float[] vals = new float[n];
+        int[] count = {0};
+        int next = export.copy.forEachFrom(after == src.GPAPage.START ? 0 : (int) after, n, (key, val) -> {
+            keys[count[0]] = key;
+            vals[count[0]] = val;
+            count[0]++;
+        });
+        if (next < 0) {
+            exports.remove(id);
+            LOG.info("Export {} read out", id);
+        }
+        return new src.GPAPage(Arrays.copyOf(keys, count[0]), Arrays.copyOf(vals, count[0]), next < 0 ? after : next,
+                next >= 0);
+    }
+
+    /**
+     * Queues the keys an applied batch changed for the near-caches. Called by the run() thread in slot order
+     * @param batch Batch just applied
+     */
+    private void invalidate(Batch batch) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        int[] keys = new int[batch.size()];
+        int n = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.op(i) == Batch.PUT || batch.op(i) == Batch.DELETE) {
+                keys[n++] = batch.key(i);
+            }
+        }
+        if (n > 0) {
+            invalidations.add(n == keys.length ? keys : Arrays.copyOf(keys, n));
+            invalidator.execute(this::pushInvalidations);
+        }
+    }
+
+    /**
+     * Sends every queued invalidation to every subscribed near-cache in one call each. Runs on the CacheInvalidator
+     * thread, so pushes go out in the order the slots were applied
+     */
+    private void pushInvalidations() {
+        int[] keys = new int[0];
+        boolean all = false;
+        for (int[] next = invalidations.poll(); next != null; next = invalidations.poll()) {
+            all |= next == ALL_KEYS;
+            if (!all) {
+                int filled = keys.length;
+                keys = Arrays.copyOf(keys, filled + next.length);
+                System.arraycopy(next, 0, keys, filled, next.length);
+            }
+        }
+        if (!all && keys.length == 0) {
+            return;  // Already sent by an earlier push
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<src.GPACacheListener, Subscription> subscriber : subscribers.entrySet()) {
+            Subscription subscription = subscriber.getValue();
+            if (subscription.expiry - now < 0) {
+                subscribers.remove(subscriber.getKey(), subscription);
+                continue;
+            }
+            try {
+                subscriber.getKey().invalidate(all ? null : keys);
+                invalidationsSent.increment();
+            } catch (RemoteException e) {
+                LOG.warn("Dropped a near-cache that couldn't be reached: {}", e.getMessage());
+                subscribers.remove(subscriber.getKey(), subscription);
+            }
+        }
+    }
+
+    /**
+     * catchUpToReadIndex() for the calls that report failures as a RemoteException
+     * @throws RemoteException if the read index can't be had
+     */
+    private void awaitReadIndex() throws RemoteException {
+        try {
+            catchUpToReadIndex();
+        } catch (IOException e) {
+            throw new RemoteException("Coordinator unavailable", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the read index", e);
+        } catch (ExecutionException e) {
+            throw new RemoteException("Read index failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RemoteException("Timed out waiting for the read index", e);
+        }
     }
 
     /**
@@ -251,83 +1563,210 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
      */
     @Override
     public String delete(int key) throws RemoteException {
-        String param = "[delete," + key + "]";
-        return request(param);
+        return request(Batch.DELETE, key, 0);
     }
 
     /**
-     * Used by put/get/delete to initiate PAXOS with a request that leads to a PREPARE
-     * @param param String The full command
-     * @return String response
+     * Bulk put. The pairs are committed in batches of BULK_BATCH commands, one log slot each, all in flight at once
+     * @param keys int[] Student IDs
+     * @param vals float[] GPA for each Student ID
+     * @return String[] response for each key
+     * @throws RemoteException if the RPC fails
      */
-    private String request(String param) {
-        synchronized (map) {
-            System.out.println(timestamp() + "Received request from client: " + param);
-            currentRole = ROLE_PROPOSER;
+    @Override
+    public String[] putAll(int[] keys, float[] vals) throws RemoteException {
+        if (keys.length != vals.length) {
+            throw new IllegalArgumentException("putAll needs one value per key. Got " + keys.length + " keys and " +
+                    vals.length + " values");
+        }
+        return bulkRequest(Batch.PUT, keys, vals);
+    }
 
-            proposeID = System.nanoTime();
-            try {
-                // Format will be "REQUEST ID [put,k,v]"
-                dataOut.writeUTF("REQUEST " + proposeID + " " + param);
-            } catch (IOException e) {
-                System.out.println(timestamp() + "IOException while writing request to coordinator");
+    /**
+     * Bulk delete. The keys are committed in batches of BULK_BATCH commands, one log slot each, all in flight at once
+     * @param keys int[] Student IDs
+     * @return String[] response for each key
+     * @throws RemoteException if the RPC fails
+     */
+    @Override
+    public String[] deleteAll(int[] keys) throws RemoteException {
+        return bulkRequest(Batch.DELETE, keys, new float[keys.length]);
+    }
+
+    /**
+     * Used by putAll/deleteAll to send the commands straight to the coordinator. They already fill whole batches, so
+     * they skip the batcher. Waits until every batch has been chosen and applied by the run() thread.
+     * @param op byte Batch op code
+     * @param keys int[] Student IDs
+     * @param vals float[] GPAs. Ignored for anything but PUT
+     * @return String[] response for each key
+     */
+    private String[] bulkRequest(byte op, int[] keys, float[] vals) {
+        LOG.debug("Received bulk request of {} commands from client", keys.length);
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> results = new ArrayList<>(keys.length);
+        try {
+            for (int from = 0; from < keys.length; from += BULK_BATCH) {
+                int to = Math.min(keys.length, from + BULK_BATCH);
+                byte[] ops = new byte[to - from];
+                Arrays.fill(ops, op);
+                List<CompletableFuture<String>> callers = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    callers.add(new CompletableFuture<>());
+                }
+                sendBatch(new Batch(ops, Arrays.copyOfRange(keys, from, to), Arrays.copyOfRange(vals, from, to)),
+                        callers);
+                results.addAll(callers);
             }
+        } catch (IOException e) {
+            LOG.warn("IOException while sending bulk request to coordinator");
+        }
 
-            while (true) { // add timeout here?
+        String[] responses = new String[keys.length];
+        Arrays.fill(responses, "Coordinator unavailable");
+        try {
+            for (int i = 0; i < results.size(); i++) {
                 try {
-                    String coordMessage = dataIn.readUTF();
-                    System.out.println("In request() while loop coord message: " + coordMessage);
-                    String[] command = coordMessage.split("[\\[\\]( ),]+");
-                    if (command[0].equalsIgnoreCase("put")) {
-                        map.put(Integer.parseInt(command[1]), Float.parseFloat(command[2]));
-                        return "Successfully put key: " + Integer.parseInt(command[1]) + " Value: " +
-                                Float.parseFloat(command[2]);
-                    } else if (command[0].equalsIgnoreCase("get")) {
-                        float val = map.get(Integer.parseInt(command[1]));
-                        return "Key: " + Integer.parseInt(command[1]) + " Value is: " + val;
-                    } else if (command[0].equalsIgnoreCase("delete")) {
-                        map.remove(Integer.parseInt(command[1]));
-                        return "Successfully removed key: " + Integer.parseInt(command[1]);
-                    }
-                } catch (IOException e) {
-                    System.out.println("IOException while finalizing accepted command");
-                    System.exit(1);
-                } catch (IndexOutOfBoundsException e) {
-                    System.out.println("IndexOutOfBoundsException occurred while finalizing command. Invalid syntax");
+                    responses[i] = results.get(i).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    LOG.warn("Bulk command failed: {}", e.getCause().toString());
+                    responses[i] = failed(e);
                 }
-
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Thread interrupted while waiting for the bulk request to be chosen");
+            Arrays.fill(responses, "Request interrupted");
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out waiting for the bulk request to be chosen");
+            for (int i = 0; i < results.size(); i++) {
+                responses[i] = results.get(i).getNow(TIMED_OUT);
             }
         }
+        bulkCommitNanos.record(System.nanoTime() - start);
+        return responses;
     }
 
     /**
-     * Resets values for another round of PAXOS
+     * Used by put/delete to queue a command for the batcher, which sends it to the coordinator with whatever other
+     * commands are waiting. Waits until the batch has been chosen and applied by the run() thread.
+     * @param op byte Batch op code
+     * @param key int Student ID
+     * @param val float GPA. Ignored for anything but PUT
+     * @return String response
      */
-    private void resetPAXOS() {
-        maxID = 0;
-        proposeID = 0;
-        acceptedID = 0;
-        acceptedVal = null;
+    private String request(byte op, int key, float val) {
+        if (LOG.trace()) {
+            LOG.trace("Received request from client: {}", new Batch(new byte[] {op}, new int[] {key},
+                    new float[] {val}));
+        }
+        long start = System.nanoTime();
+        try {
+            String result = batcher.submit(op, key, val).get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            commitNanos.record(System.nanoTime() - start);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Thread interrupted while waiting for the command to be chosen");
+            return "Request interrupted";
+        } catch (ExecutionException e) {
+            LOG.warn("Command failed: {}", e.getCause().toString());
+            return failed(e);
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out waiting for the command to be chosen");
+            return TIMED_OUT;
+        }
     }
 
     /**
-     * Timestamp of the current time to print on each line.
-     * @return String version of the timestamp formatted for readability
+     * @param e ExecutionException from waiting on a command or read index that failed
+     * @return String response telling the client why
      */
-    private String timestamp() {
-        long currentTime = System.currentTimeMillis();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:ms");
-        //formatted value of current Date
-        String time = "" + df.format(currentTime);
-        return "(System time: " + time + ") ";
+    private static String failed(ExecutionException e) {
+        return "Request failed: " + e.getCause().getMessage();
     }
 
+    /**
+     * Sends a closed batch to the coordinator as a single request, so the whole batch is chosen in one slot. Many
+     * batches can be in flight at once.
+     * @param batch Batch of commands
+     * @param callers List of futures to complete with each command's result
+     * @throws IOException if the coordinator is unavailable
+     */
+    private void sendBatch(Batch batch, List<CompletableFuture<String>> callers) throws IOException {
+        long requestID = nextRequestID();
+        pending.put(requestID, callers);
+        batchesSent.increment();
+        batchCommands.record(batch.size());
+        try {
+            link().send(new PaxosMessage(PaxosMessage.REQUEST, 0, 0, requestID, batch));
+        } catch (IOException e) {
+            pending.remove(requestID);
+            throw e;
+        }
+    }
+
+    @Override
+    public String addAcceptor(int member) throws RemoteException {
+        return changeMembers(Batch.ADD_ACCEPTOR, member);
+    }
+
+    @Override
+    public String removeAcceptor(int member) throws RemoteException {
+        return changeMembers(Batch.REMOVE_ACCEPTOR, member);
+    }
+
+    @Override
+    public String membership() throws RemoteException {
+        Membership latest = membership;
+        return latest == null ? "No configuration applied yet" : latest.toString();
+    }
+
+    /**
+     * Asks the leader to add or remove an acceptor. It works the change out from the newest configuration and gets
+     * it chosen as a configuration entry, which is applied like any other slot
+     * @param op byte Batch.ADD_ACCEPTOR or Batch.REMOVE_ACCEPTOR
+     * @param member int member ID
+     * @return String new configuration, or why there isn't one
+     */
+    private String changeMembers(byte op, int member) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            sendBatch(new Batch(new byte[] {op}, new int[] {member}, new float[1]), List.of(result));
+            return result.get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            return "Coordinator unavailable";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Thread interrupted while waiting for the configuration to be chosen");
+            return "Request interrupted";
+        } catch (ExecutionException e) {
+            LOG.warn("Configuration change failed: {}", e.getCause().toString());
+            return failed(e);
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out waiting for the configuration to be chosen");
+            return TIMED_OUT;
+        }
+    }
+
+    /**
+     * Request IDs match chosen batches and read indexes back to their callers, so they must be unique, also across
+     * restarts
+     * @return long next request ID. In peer mode it is this server's index mod ID_STRIDE
+     */
+    private long nextRequestID() {
+        return lastRequestID.updateAndGet(last -> {
+            long next = Math.max(last + 1, System.nanoTime());
+            return PEERS == null ? next : next + Math.floorMod(PEER_ID - next, ID_STRIDE);
+        });
+    }
+
+
     /**
      * Helper function to print out the current thread information
      */
     private void printThreadInfo() {
-        System.out.print(timestamp() + "Active thread: " + Thread.currentThread().getName());
-        System.out.println(" number " + Thread.currentThread().getId());
+        LOG.debug("Active thread: {} number {}", Thread.currentThread().getName(), Thread.currentThread().getId());
     }
 
     /**
@@ -337,8 +1776,103 @@ public class PAXOSGPAServer extends UnicastRemoteObject implements src.GPARepo,
         try {
             Thread.sleep(millis);
         } catch (InterruptedException e) {
-            System.out.println("Thread interrupted");
+            LOG.error("Thread interrupted");
             System.exit(1);
         }
     }
+
+    /**
+     * Streams a snapshot to a server catching up, CHUNK_RECORDS records to a SNAPSHOT message, through the
+     * coordinator
+     */
+    private class SnapshotSender implements Runnable, GPAStore.Visitor {
+        private final long transferID;
+        private final long slot;
+        private final GPAStore snapshot;
+        private final List<ReplicatedLog.Entry> configs;
+        private final byte[] ops = new byte[CHUNK_RECORDS];
+        private final int[] keys = new int[CHUNK_RECORDS];
+        private final float[] vals = new float[CHUNK_RECORDS];
+        private int filled = 0;
+        private boolean failed = false;
+
+        SnapshotSender(long transferID, long slot, GPAStore snapshot, List<ReplicatedLog.Entry> configs) {
+            this.transferID = transferID;
+            this.slot = slot;
+            this.snapshot = snapshot;
+            this.configs = configs;
+        }
+
+        @Override
+        public void run() {
+            LOG.info("Streaming snapshot of {} records at slot {} for catch-up {}", snapshot.size(), slot,
+                    transferID);
+            snapshot.forEach(this);
+            send(true);
+        }
+
+        @Override
+        public void visit(int key, float val) {
+            ops[filled] = Batch.PUT;
+            keys[filled] = key;
+            vals[filled] = val;
+            filled += 1;
+            if (filled == CHUNK_RECORDS) {
+                send(false);
+            }
+        }
+
+        private void send(boolean last) {
+            if (failed) {
+                return;
+            }
+            Batch chunk = filled == 0 ? null : new Batch(ops, keys, vals);
+            if (filled > 0 && filled < CHUNK_RECORDS) {
+                chunk = new Batch(Arrays.copyOf(ops, filled), Arrays.copyOf(keys, filled),
+                        Arrays.copyOf(vals, filled));
+            }
+            PaxosMessage message = new PaxosMessage(PaxosMessage.SNAPSHOT, 0, slot, transferID, chunk);
+            if (last) {
+                message.flags = PaxosMessage.FLAG_LAST;
+                message.entries = configs;
+            }
+            try {
+                link().send(message);
+            } catch (IOException e) {
+                LOG.warn("IOException while streaming snapshot for catch-up {}", transferID);
+                failed = true;
+            }
+            // The batch is encoded by send(), so the arrays can be refilled for the next chunk
+            filled = 0;
+        }
+    }
+
+    /**
+     * A copy of the map being exported, read a page at a time by exportPage
+     */
+    private static class Export {
+        final GPAStore copy;
+        final long leaseNanos;
+        // System.nanoTime() the lease runs out at
+        volatile long expiry;
+
+        Export(GPAStore copy, long leaseNanos) {
+            this.copy = copy;
+            this.leaseNanos = leaseNanos;
+            this.expiry = System.nanoTime() + leaseNanos;
+        }
+    }
+
+    /**
+     * A near-cache's registration. Replaced with a new ID when the listener subscribes again after being dropped
+     */
+    private static class Subscription {
+        final long id;
+        // System.nanoTime() the lease runs out at
+        volatile long expiry;
+
+        Subscription(long id) {
+            this.id = id;
+        }
+    }
 }
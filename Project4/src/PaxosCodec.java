@@ -0,0 +1,149 @@
+
+/**
+ * Versioned binary frame format for PaxosMessages.
+ * Frame layout, all big endian:
+ *   int length of the rest of the frame
+ *   byte version, byte type, byte flags
+ *   long ballot, long slot, long id
+ *   int number of commands in the batch, then byte op, int key, float val for each command
+ *   int number of log entries, then long slot, long ballot, long request ID and a batch laid out as above for each
+ * Keys and values stay primitive the whole way, so nothing is built into strings or parsed back out with regexes.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class PaxosCodec {
+    public static final byte VERSION = 1;
+    // Largest frame accepted from the wire, to catch a corrupt length before allocating for it
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 3 + 3 * Long.BYTES;
+    private static final int COMMAND_SIZE = 1 + Integer.BYTES + Float.BYTES;
+    private static final int ENTRY_HEADER_SIZE = 3 * Long.BYTES;
+
+    private PaxosCodec() {
+    }
+
+    /**
+     * @param message PaxosMessage to encode
+     * @return int number of bytes the whole frame takes, including the length prefix
+     */
+    public static int frameSize(PaxosMessage message) {
+        int size = Integer.BYTES + HEADER_SIZE + batchSize(message.batch) + Integer.BYTES;
+        for (ReplicatedLog.Entry entry : message.entries) {
+            size += ENTRY_HEADER_SIZE + batchSize(entry.batch);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a whole frame into a buffer. The buffer must have frameSize() bytes remaining
+     * @param message PaxosMessage to encode
+     * @param buf ByteBuffer to write the frame into
+     */
+    public static void encode(PaxosMessage message, ByteBuffer buf) {
+        buf.putInt(frameSize(message) - Integer.BYTES);
+        buf.put(VERSION);
+        buf.put(message.type);
+        buf.put(message.flags);
+        buf.putLong(message.ballot);
+        buf.putLong(message.slot);
+        buf.putLong(message.id);
+        putBatch(message.batch, buf);
+        buf.putInt(message.entries.size());
+        for (ReplicatedLog.Entry entry : message.entries) {
+            buf.putLong(entry.slot);
+            buf.putLong(entry.ballot);
+            buf.putLong(entry.requestID);
+            putBatch(entry.batch, buf);
+        }
+    }
+
+    /**
+     * Encodes a frame into a new buffer. Used for broadcasts so the frame is only encoded once for every server
+     * @param message PaxosMessage to encode
+     * @return ByteBuffer holding the frame, ready to be written
+     */
+    public static ByteBuffer encode(PaxosMessage message) {
+        ByteBuffer buf = ByteBuffer.allocate(frameSize(message));
+        encode(message, buf);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes the body of a frame. The buffer is positioned just after the length prefix and limited to the frame
+     * @param buf ByteBuffer holding the frame body
+     * @return PaxosMessage decoded from the frame
+     * @throws ProtocolException if the frame has an unknown version or is malformed
+     */
+    public static PaxosMessage decode(ByteBuffer buf) throws ProtocolException {
+        try {
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version);
+            }
+            PaxosMessage message = new PaxosMessage(buf.get(), 0, 0, 0);
+            message.flags = buf.get();
+            message.ballot = buf.getLong();
+            message.slot = buf.getLong();
+            message.id = buf.getLong();
+            message.batch = getBatch(buf);
+            int numEntries = buf.getInt();
+            if (numEntries > 0) {
+                List<ReplicatedLog.Entry> entries = new ArrayList<>(numEntries);
+                for (int i = 0; i < numEntries; i++) {
+                    long slot = buf.getLong();
+                    long ballot = buf.getLong();
+                    long requestID = buf.getLong();
+                    entries.add(new ReplicatedLog.Entry(slot, ballot, requestID, getBatch(buf)));
+                }
+                message.entries = entries;
+            }
+            return message;
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed frame: " + e);
+        }
+    }
+
+    private static int batchSize(Batch batch) {
+        return Integer.BYTES + (batch == null ? 0 : batch.size() * COMMAND_SIZE);
+    }
+
+    private static void putBatch(Batch batch, ByteBuffer buf) {
+        if (batch == null) {
+            buf.putInt(0);
+            return;
+        }
+        buf.putInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            buf.put(batch.op(i));
+            buf.putInt(batch.key(i));
+            buf.putFloat(batch.val(i));
+        }
+    }
+
+    private static Batch getBatch(ByteBuffer buf) throws ProtocolException {
+        int size = buf.getInt();
+        if (size == 0) {
+            return null;
+        }
+        if (size < 0 || size > buf.remaining() / COMMAND_SIZE) {
+            throw new ProtocolException("Batch size " + size + " doesn't fit in the frame");
+        }
+        byte[] ops = new byte[size];
+        int[] keys = new int[size];
+        float[] vals = new float[size];
+        for (int i = 0; i < size; i++) {
+            ops[i] = buf.get();
+            keys[i] = buf.getInt();
+            vals[i] = buf.getFloat();
+        }
+        return new Batch(ops, keys, vals);
+    }
+}
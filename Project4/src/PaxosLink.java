@@ -0,0 +1,36 @@
+/**
+ * A PAXOSGPAServer's end of its link to the coordinator. FramedConnection carries it over a TCP socket, and
+ * SimNetwork carries it in memory for a simulated cluster, so the server's Paxos code is the same over either.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface PaxosLink extends Closeable {
+    /**
+     * Sends a message. Safe to call from many threads
+     * @param message PaxosMessage to send
+     * @throws IOException if the other side is unavailable
+     */
+    void send(PaxosMessage message) throws IOException;
+
+    /**
+     * Blocks until the next message arrives. Only one thread may receive on a link
+     * @return PaxosMessage received
+     * @throws IOException if the link is closed or broken
+     */
+    PaxosMessage receive() throws IOException;
+
+    /**
+     * Opens a link to the coordinator
+     */
+    interface Connector {
+        /**
+         * @return PaxosLink connected to the coordinator
+         * @throws IOException if the coordinator can't be reached
+         */
+        PaxosLink connect() throws IOException;
+    }
+}
@@ -0,0 +1,119 @@
+
+/**
+ * A single Paxos message passed between the PAXOSGPAServers and the Coordinator.
+ * Every message has the same fixed header fields. Which of them are used depends on the type:
+ *   REQUEST    id = request ID, batch
+ *   PREPARE    ballot, slot = first slot covered
+ *   PROMISE    ballot, slot = applied slot, entries = values accepted but not applied
+ *   ACCEPT     ballot, slot, id = request ID, batch
+ *   ACCEPTED   ballot, slot
+ *   IGNORED    ballot = highest promised ballot, id = millis left on another leader's lease
+ *   DONE       slot, id = request ID, batch
+ *   JOIN       slot = first unchosen slot
+ *   HEARTBEAT  ballot, id = round
+ *   READINDEX  id = read ID, slot = read index in the reply, flags = FLAG_LEASE in the request
+ *   LEARNER    retired. Servers declare the role with FLAG_LEARNER on their MEMBERS message
+ *   CATCHUP    slot = slot the replica needs to be caught up to, id = transfer ID once the coordinator forwards it
+ *   SNAPSHOT   id = transfer ID, slot = snapshot slot, batch = chunk of PUTs, flags = FLAG_LAST on the final chunk,
+ *              entries = the donor's last two configurations on the final chunk
+ *   MEMBERS    sent by a server when it connects and after it applies a configuration: id = member ID,
+ *              slot = applied slot, flags = FLAG_LEARNER for a learner, entries = its last two configurations,
+ *              oldest first. Also the write-ahead log record that keeps them past a snapshot
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+public class PaxosMessage {
+    // Message type codes, as written on the wire
+    public static final byte LEARNER = 1;
+    public static final byte REQUEST = 2;
+    public static final byte PREPARE = 3;
+    public static final byte PROMISE = 4;
+    public static final byte ACCEPT = 5;
+    public static final byte ACCEPTED = 6;
+    public static final byte IGNORED = 7;
+    public static final byte DONE = 8;
+    public static final byte JOIN = 9;
+    public static final byte HEARTBEAT = 10;
+    public static final byte READINDEX = 11;
+    public static final byte CATCHUP = 12;
+    public static final byte SNAPSHOT = 13;
+    public static final byte MEMBERS = 14;
+
+    // READINDEX request flag asking for a lease read instead of a quorum confirmed one
+    public static final byte FLAG_LEASE = 1;
+    // SNAPSHOT flag marking the last chunk of a transfer
+    public static final byte FLAG_LAST = 2;
+    // MEMBERS flag of a server that only learns chosen values and never becomes an acceptor
+    public static final byte FLAG_LEARNER = 4;
+
+    public final byte type;
+    public byte flags;
+    public long ballot;
+    public long slot;
+    public long id;
+    public Batch batch;
+    public List<ReplicatedLog.Entry> entries = Collections.emptyList();
+
+    /**
+     * Constructor for a message with the given header fields
+     * @param type byte message type code
+     * @param ballot long ballot
+     * @param slot long log slot
+     * @param id long request, read or round ID
+     */
+    public PaxosMessage(byte type, long ballot, long slot, long id) {
+        this.type = type;
+        this.ballot = ballot;
+        this.slot = slot;
+        this.id = id;
+    }
+
+    /**
+     * Constructor for a message carrying a batch of commands
+     * @param type byte message type code
+     * @param ballot long ballot
+     * @param slot long log slot
+     * @param id long request ID
+     * @param batch Batch of commands
+     */
+    public PaxosMessage(byte type, long ballot, long slot, long id, Batch batch) {
+        this(type, ballot, slot, id);
+        this.batch = batch;
+    }
+
+    /**
+     * @return String name of the message type for the log lines
+     */
+    public String typeName() {
+        switch (type) {
+            case LEARNER: return "LEARNER";
+            case REQUEST: return "REQUEST";
+            case PREPARE: return "PREPARE";
+            case PROMISE: return "PROMISE";
+            case ACCEPT: return "ACCEPT";
+            case ACCEPTED: return "ACCEPTED";
+            case IGNORED: return "IGNORED";
+            case DONE: return "DONE";
+            case JOIN: return "JOIN";
+            case HEARTBEAT: return "HEARTBEAT";
+            case READINDEX: return "READINDEX";
+            case CATCHUP: return "CATCHUP";
+            case SNAPSHOT: return "SNAPSHOT";
+            case MEMBERS: return "MEMBERS";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    /**
+     * @return String version of the message for the log lines
+     */
+    @Override
+    public String toString() {
+        return typeName() + " ballot=" + ballot + " slot=" + slot + " id=" + id +
+                (batch != null ? " " + batch : "") + (entries.isEmpty() ? "" : " entries=" + entries.size());
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Votes for one ballot from distinct acceptors, e.g. the ACCEPTEDs of one slot's ACCEPT round, the PROMISEs for one
+ * PREPARE or the replies to one HEARTBEAT round. Each acceptor's vote is a bit, so a duplicate reply is never counted
+ * twice, and vote() returns true for exactly one vote: the one that makes the majority.
+ * A vote is a compare-and-set on the acceptor's bit and an atomic increment, with no lock and no allocation, so the
+ * event loops can count many rounds at once.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Quorum {
+    final long ballot;
+    final int needed;
+    private final AtomicLongArray voted;
+    private final AtomicInteger votes = new AtomicInteger();
+
+    /**
+     * Constructor for a round with no votes yet
+     * @param ballot long ballot the votes are for
+     * @param needed int votes that make a majority
+     * @param acceptors int number of acceptor indexes to make room for. Room is made in words of 64, and votes from
+     *                  indexes past the room are ignored
+     */
+    public Quorum(long ballot, int needed, int acceptors) {
+        this.ballot = ballot;
+        this.needed = needed;
+        this.voted = new AtomicLongArray((acceptors >> 6) + 1);
+    }
+
+    /**
+     * Counts an acceptor's vote
+     * @param acceptor int index of the acceptor
+     * @return boolean true only for the vote that reached the majority. False for every other vote, duplicates and
+     *         votes after the majority included
+     */
+    public boolean vote(int acceptor) {
+        int word = acceptor >>> 6;
+        if (word >= voted.length()) {
+            return false;
+        }
+        long bit = 1L << acceptor;
+        long seen;
+        do {
+            seen = voted.get(word);
+            if ((seen & bit) != 0) {
+                return false;
+            }
+        } while (!voted.compareAndSet(word, seen, seen | bit));
+        return votes.incrementAndGet() == needed;
+    }
+
+    /**
+     * @param acceptor int index of the acceptor
+     * @return boolean true if the acceptor has voted
+     */
+    public boolean hasVoted(int acceptor) {
+        int word = acceptor >>> 6;
+        return word < voted.length() && (voted.get(word) & (1L << acceptor)) != 0;
+    }
+
+    /**
+     * @return int distinct acceptors that have voted
+     */
+    public int count() {
+        return votes.get();
+    }
+
+    /**
+     * @return boolean true once a majority has voted
+     */
+    public boolean reached() {
+        return votes.get() >= needed;
+    }
+}
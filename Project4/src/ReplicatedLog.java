@@ -0,0 +1,118 @@
+
+/**
+ * Slot-indexed replicated log for the PAXOSGPAServer.
+ * Holds the acceptor state for every slot that is still in flight and buffers chosen commands until every slot
+ * before them has been chosen, so commands are applied to the map in slot order no matter which order the
+ * coordinator's DONE messages arrive in. A snapshot moves the log straight past every slot it covers.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+public class ReplicatedLog {
+    // Values accepted by this acceptor for slots that haven't been applied yet
+    private final TreeMap<Long, Entry> accepted = new TreeMap<>();
+    // Chosen commands waiting for an earlier slot to be chosen
+    private final HashMap<Long, Entry> chosen = new HashMap<>();
+    private long appliedSlot = 0;
+
+    /**
+     * Records a value accepted for a slot. A later ballot for the same slot replaces the earlier one
+     * @param slot long log slot
+     * @param ballot long ballot the value was accepted in
+     * @param requestID long ID of the request that proposed the value
+     * @param batch Batch of commands
+     */
+    public synchronized void accept(long slot, long ballot, long requestID, Batch batch) {
+        if (slot > appliedSlot) {
+            accepted.put(slot, new Entry(slot, ballot, requestID, batch));
+        }
+    }
+
+    /**
+     * Lists the values accepted from a slot onwards so a new leader can finish them in Phase 1
+     * @param fromSlot long first slot covered by the PREPARE
+     * @return List of accepted entries in slot order
+     */
+    public synchronized List<Entry> acceptedSince(long fromSlot) {
+        return new ArrayList<>(accepted.tailMap(fromSlot, true).values());
+    }
+
+    /**
+     * Records a chosen batch and returns every batch that can now be applied in slot order
+     * @param slot long log slot the batch was chosen in
+     * @param requestID long ID of the request that proposed the batch
+     * @param batch Batch of commands
+     * @return List of entries to apply, in slot order. Empty if an earlier slot is still missing
+     */
+    public synchronized List<Entry> learn(long slot, long requestID, Batch batch) {
+        List<Entry> ready = new ArrayList<>();
+        if (slot <= appliedSlot) {
+            return ready; // Already applied
+        }
+        chosen.put(slot, new Entry(slot, 0, requestID, batch));
+        Entry next;
+        while ((next = chosen.remove(appliedSlot + 1)) != null) {
+            ready.add(next);
+            appliedSlot = next.slot;
+        }
+        accepted.headMap(appliedSlot, true).clear();
+        return ready;
+    }
+
+    /**
+     * Moves the log up to a snapshot that covers every slot up to the given one. Buffered chosen batches the
+     * snapshot already covers are dropped, and the ones that now follow on are returned to be applied
+     * @param slot long slot the snapshot was taken at
+     * @return List of every buffered chosen entry in slot order. Entries at or below slot are covered by the
+     *         snapshot and must not be applied again. Empty if the log was already past slot
+     */
+    public synchronized List<Entry> restore(long slot) {
+        List<Entry> restored = new ArrayList<>();
+        if (slot <= appliedSlot) {
+            return restored;
+        }
+        for (long covered : new ArrayList<>(chosen.keySet())) {
+            if (covered <= slot) {
+                restored.add(chosen.remove(covered));
+            }
+        }
+        restored.sort((a, b) -> Long.compare(a.slot, b.slot));
+        appliedSlot = slot;
+        Entry next;
+        while ((next = chosen.remove(appliedSlot + 1)) != null) {
+            restored.add(next);
+            appliedSlot = next.slot;
+        }
+        accepted.headMap(appliedSlot, true).clear();
+        return restored;
+    }
+
+    /**
+     * @return long highest slot applied. Every slot up to it has been applied
+     */
+    public synchronized long appliedSlot() {
+        return appliedSlot;
+    }
+
+    /**
+     * A single log entry. Accepted entries carry their ballot, chosen ones don't need it
+     */
+    public static class Entry {
+        public final long slot;
+        public final long ballot;
+        public final long requestID;
+        public final Batch batch;
+
+        public Entry(long slot, long ballot, long requestID, Batch batch) {
+            this.slot = slot;
+            this.ballot = ballot;
+            this.requestID = requestID;
+            this.batch = batch;
+        }
+    }
+}
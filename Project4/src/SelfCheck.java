@@ -0,0 +1,611 @@
+/**
+ * Self-checks of the storage, log and protocol pieces, run without any test framework. Each check builds what it
+ * needs in a scratch directory, checks the results against a plain model of what they should be, and reports ok or
+ * the first thing that didn't hold. Run with java SelfCheck [name=value ...]:
+ *   only=                comma separated checks to run, all of them by default:
+ *                        codec       PaxosCodec frames decode to the messages they were encoded from, and a cut off
+ *                                    frame is rejected
+ *                        store       GPAStore puts, removes and resizes match a HashMap, and a copy doesn't see later
+ *                                    changes to the store
+ *                        wal         WriteAheadLog replay cuts off a torn or corrupt record at the tail and goes on
+ *                                    appending after the last good one
+ *                        snapshot    SnapshotStore loads the newest snapshot, and an older one if the newest is corrupt
+ *                        membership  an acceptor is removed and added back through the log while writes keep going
+ *                                    across the gpa.config.alpha window, and every replica ends with the same map
+ *                        bulk        CSV and binary files imported through one replica export the same records
+ *                                    through the others
+ *   dir=selfcheck        scratch directory, emptied first and deleted after a passing run
+ *   verbose=false        keep the nodes' logging on stdout
+ * The run exits with status 1 if any check failed. Unless given on the command line, the write-ahead log doesn't
+ * fsync, the leases and timeouts are shortened and gpa.config.alpha is 8, so the cluster checks take seconds.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SelfCheck {
+    private static final long SETTLE_MILLIS = 10000;
+
+    private final Map<String, Check> checks = new LinkedHashMap<>();
+    private final List<String> only;
+    private final Path dir;
+    private final boolean verbose;
+    private final PrintStream out = System.out;
+
+    /**
+     * One check. Throws AssertionError for a result that didn't hold, or anything else it ran into
+     */
+    private interface Check {
+        void run(Path dir) throws Exception;
+    }
+
+    /**
+     * Constructor that reads the settings
+     * @param args String[] name=value settings
+     */
+    public SelfCheck(String[] args) {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Self-check settings must be name=value. Got: " + arg);
+            }
+            settings.put(pair[0].toLowerCase(), pair[1]);
+        }
+        checks.put("codec", this::codec);
+        checks.put("store", this::store);
+        checks.put("wal", this::wal);
+        checks.put("snapshot", this::snapshot);
+        checks.put("membership", this::membership);
+        checks.put("bulk", this::bulk);
+        String names = settings.getOrDefault("only", "");
+        only = names.isEmpty() ? new ArrayList<>(checks.keySet()) : Arrays.asList(names.split("\\s*,\\s*"));
+        for (String name : only) {
+            if (!checks.containsKey(name)) {
+                throw new IllegalArgumentException("No check named " + name + ". The checks are " + checks.keySet());
+            }
+        }
+        dir = Paths.get(settings.getOrDefault("dir", "selfcheck"));
+        verbose = Boolean.parseBoolean(settings.getOrDefault("verbose", "false"));
+    }
+
+    /**
+     * Runs the checks and exits with status 1 if any of them failed
+     * @param args String[] name=value settings
+     */
+    public static void main(String[] args) {
+        // Before any server class is loaded, since they read these once
+        defaultProperty("gpa.wal.sync", "false");
+        defaultProperty("gpa.leaseMillis", "200");
+        defaultProperty("gpa.peer.failoverMillis", "1000");
+        defaultProperty("gpa.request.timeoutMillis", "2000");
+        defaultProperty("gpa.snapshot.interval", "500");
+        defaultProperty("gpa.config.alpha", "8");
+        try {
+            System.exit(new SelfCheck(args).run() ? 0 : 1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("IOException while setting up the checks: " + e.getMessage());
+        }
+        System.exit(2);
+    }
+
+    /**
+     * Runs each check in its own subdirectory of the scratch directory
+     * @return boolean true if every check passed
+     * @throws IOException if the scratch directory can't be set up
+     */
+    public boolean run() throws IOException {
+        if (!verbose) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        deleteDirectory(dir);
+        int failed = 0;
+        for (String name : only) {
+            long start = System.nanoTime();
+            String outcome;
+            try {
+                Path scratch = dir.resolve(name);
+                Files.createDirectories(scratch);
+                checks.get(name).run(scratch);
+                outcome = "ok";
+            } catch (Throwable e) {
+                failed++;
+                outcome = "FAIL " + (e instanceof AssertionError ? e.getMessage() : e.toString());
+            }
+            out.println(String.format("%-10s %s (%.1f s)", name, outcome, (System.nanoTime() - start) / 1e9));
+        }
+        out.println(failed == 0 ? "PASS" : "FAIL: " + failed + " of " + only.size() + " checks");
+        if (failed == 0) {
+            deleteDirectory(dir);
+        }
+        return failed == 0;
+    }
+
+    /**
+     * Every message type and field survives a frame, with and without a batch and log entries, and a frame cut short
+     * is a ProtocolException rather than a half-decoded message
+     */
+    private void codec(Path scratch) throws ProtocolException {
+        Batch batch = new Batch(new byte[] {Batch.PUT, Batch.DELETE, Batch.GET},
+                new int[] {1234567, 0, Integer.MIN_VALUE}, new float[] {3.5f, 0f, -1.25f});
+        List<PaxosMessage> messages = new ArrayList<>();
+        for (byte type = PaxosMessage.LEARNER; type <= PaxosMessage.MEMBERS; type++) {
+            messages.add(new PaxosMessage(type, 7, 42, 99));
+            PaxosMessage full = new PaxosMessage(type, Long.MAX_VALUE, Long.MIN_VALUE, -1, batch);
+            full.flags = PaxosMessage.FLAG_LEASE | PaxosMessage.FLAG_LAST;
+            full.entries = Arrays.asList(new ReplicatedLog.Entry(5, 3, 11, batch),
+                    new Membership(6, new int[] {2, 0, 1}).toEntry(), new ReplicatedLog.Entry(8, 4, 12, null));
+            messages.add(full);
+        }
+        for (PaxosMessage message : messages) {
+            ByteBuffer frame = PaxosCodec.encode(message);
+            expect(frame.remaining() == PaxosCodec.frameSize(message), "frameSize() is wrong for " + message);
+            expect(frame.getInt() == frame.remaining(), "Length prefix is wrong for " + message);
+            PaxosMessage decoded = PaxosCodec.decode(frame);
+            expect(!frame.hasRemaining(), "Bytes left over after decoding " + message);
+            expect(sameMessage(message, decoded), "Decoded " + decoded + " from " + message);
+
+            ByteBuffer cut = PaxosCodec.encode(message);
+            cut.getInt();
+            cut.limit(cut.limit() - 1);
+            try {
+                PaxosCodec.decode(cut);
+                throw new AssertionError("A frame one byte short decoded for " + message);
+            } catch (ProtocolException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Random puts and removes, with the zero key and enough records to resize through several segments, against a
+     * HashMap. Copies taken along the way must still hold what the store held when they were taken
+     */
+    private void store(Path scratch) {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            SplittableRandom random = new SplittableRandom(42);
+            GPAStore store = new GPAStore(0, offHeap);
+            Map<Integer, Float> model = new HashMap<>();
+            List<GPAStore> copies = new ArrayList<>();
+            List<Map<Integer, Float>> copied = new ArrayList<>();
+            for (int step = 0; step < 200000; step++) {
+                int key = random.nextInt(-5, 40000);
+                if (random.nextInt(3) > 0) {
+                    float val = (float) random.nextDouble(0, 4);
+                    expect(store.put(key, val) == (model.put(key, val) == null), "put(" + key + ") said wrong");
+                } else {
+                    expect(store.remove(key) == (model.remove(key) != null), "remove(" + key + ") said wrong");
+                }
+                if (step % 20000 == 0) {
+                    copies.add(store.copy());
+                    copied.add(new HashMap<>(model));
+                }
+            }
+            expectRecords(store, model, "store");
+            for (Map.Entry<Integer, Float> entry : model.entrySet()) {
+                expect(store.get(entry.getKey(), -1f) == entry.getValue(), "get(" + entry.getKey() + ") is wrong");
+            }
+            expect(store.find(40001) == GPAStore.MISSING, "find() found a key never put");
+            for (int i = 0; i < copies.size(); i++) {
+                expectRecords(copies.get(i), copied.get(i), "copy " + i);
+            }
+            GPAStore copy = store.copy();
+            store.clear();
+            expect(store.size() == 0 && !store.containsKey(0), "clear() left records behind");
+            expectRecords(copy, model, "copy of a cleared store");
+        }
+    }
+
+    /**
+     * A log whose last record is cut short, and then one whose last record is corrupt, replays every record before
+     * it, and a record appended afterwards follows the last good one
+     */
+    private void wal(Path scratch) throws IOException {
+        List<PaxosMessage> written = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(scratch)) {
+            wal.replay(record -> { });
+            for (int i = 1; i <= 100; i++) {
+                PaxosMessage accept = new PaxosMessage(PaxosMessage.ACCEPT, 3, i, 1000 + i,
+                        new Batch(new byte[] {Batch.PUT}, new int[] {i}, new float[] {i / 40f}));
+                written.add(accept);
+                wal.append(accept);
+            }
+            wal.append(new PaxosMessage(PaxosMessage.PROMISE, 4, 0, 0)).join();
+        }
+        expectReplay(scratch, written, 1, "an intact log");
+
+        // Torn write: the PROMISE expectReplay() left at the tail stops partway through
+        Path segment = onlyFile(scratch, "segment-");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        expectReplay(scratch, written, 1, "a torn tail");
+
+        // Bad write: the PROMISE expectReplay() left at the tail is all there but doesn't match its checksum
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) ~last.get(0)).rewind();
+            channel.write(last, channel.size() - 1);
+        }
+        expectReplay(scratch, written, 1, "a corrupt tail");
+    }
+
+    /**
+     * The newest of two snapshots is loaded, and the older one once the newest is corrupted
+     */
+    private void snapshot(Path scratch) throws IOException {
+        SnapshotStore snapshots = new SnapshotStore(scratch);
+        GPAStore older = new GPAStore();
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 20000; i++) {
+            older.put(random.nextInt(), (float) random.nextDouble(0, 4));
+        }
+        older.put(0, 2.5f);
+        GPAStore newer = older.copy();
+        for (int i = 0; i < 5000; i++) {
+            newer.put(random.nextInt(), (float) random.nextDouble(0, 4));
+        }
+        newer.remove(0);
+        snapshots.write(100, older);
+        snapshots.write(200, newer);
+
+        GPAStore loaded = new GPAStore();
+        expect(snapshots.loadLatest(loaded) == 200, "The newest snapshot wasn't the one loaded");
+        expectRecords(loaded, records(newer), "snapshot at slot 200");
+
+        Path newest;
+        try (Stream<Path> files = Files.list(scratch)) {
+            newest = files.filter(path -> path.getFileName().toString().endsWith(".snap"))
+                    .max(Comparator.naturalOrder()).orElseThrow(() -> new AssertionError("No snapshot file written"));
+        }
+        try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer middle = ByteBuffer.allocate(1);
+            long at = channel.size() / 2;
+            channel.read(middle, at);
+            middle.put(0, (byte) ~middle.get(0)).rewind();
+            channel.write(middle, at);
+        }
+        expect(snapshots.loadLatest(loaded) == 100, "A corrupt snapshot was loaded instead of the older one");
+        expectRecords(loaded, records(older), "snapshot at slot 100");
+    }
+
+    /**
+     * Replica 2 is taken out of the acceptors and put back while another thread keeps writing. Each change must be
+     * chosen, counted from ALPHA slots after its own, and leave every write acknowledged and every replica agreeing
+     */
+    private void membership(Path scratch) throws Exception {
+        Membership start = new Membership(0, new int[] {2, 1, 0, 1});
+        expect(start.size() == 3 && start.effectiveSlot() == 1, "Bootstrap configuration is " + start);
+        Membership removed = start.apply(new Batch(new byte[] {Batch.REMOVE_ACCEPTOR}, new int[] {2}, new float[1]));
+        expect(removed.sameAcceptors(new Membership(0, new int[] {0, 1})), "Removing 2 gave " + removed);
+        Membership chosen = Membership.of(40, removed.toBatch());
+        expect(chosen.effectiveSlot() == 40 + Membership.ALPHA && chosen.sameAcceptors(removed),
+                "Chosen in slot 40 gave " + chosen);
+
+        LocalCluster cluster = new LocalCluster(3, scratch);
+        awaitLeader(cluster);
+        AtomicReference<String> failedWrite = new AtomicReference<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = Threads.start("SelfCheckWriter", () -> {
+            for (int key = 1; writing.get() && failedWrite.get() == null; key++) {
+                try {
+                    String result = cluster.replica(1).put(key, key % 400 / 100f);
+                    if (!result.startsWith("Successfully put")) {
+                        failedWrite.set(result);
+                    }
+                } catch (IOException e) {
+                    failedWrite.set(e.toString());
+                }
+            }
+        });
+        try {
+            String without = cluster.replica(0).removeAcceptor(2);
+            expect(without.startsWith("acceptors [0, 1] chosen in slot"), "removeAcceptor(2) gave " + without);
+            awaitApplied(cluster, effectiveSlot(without));
+            expect(cluster.replica(2).membership().equals(without), "The learner has " +
+                    cluster.replica(2).membership());
+            String with = cluster.replica(0).addAcceptor(2);
+            expect(with.startsWith("acceptors [0, 1, 2] chosen in slot"), "addAcceptor(2) gave " + with);
+            awaitApplied(cluster, effectiveSlot(with));
+        } finally {
+            // Not interrupted, since that fails the put in flight
+            writing.set(false);
+            writer.join();
+        }
+        expect(failedWrite.get() == null, "A write during the membership changes failed: " + failedWrite.get());
+        awaitAgreement(cluster);
+    }
+
+    /**
+     * A CSV file imported through replica 0 and a binary file through replica 2, then both formats exported through
+     * the other replicas, must give back exactly the records that went in, with the last GPA of a repeated Student ID
+     */
+    private void bulk(Path scratch) throws Exception {
+        Map<Integer, Float> expected = new HashMap<>();
+        SplittableRandom random = new SplittableRandom(25);
+        Path csvIn = scratch.resolve("in.csv");
+        try (Writer writer = Files.newBufferedWriter(csvIn, StandardCharsets.UTF_8)) {
+            writer.write("student_id,gpa\n");
+            for (int key = 0; key < 6000; key++) {
+                float val = Math.round(random.nextDouble(0, 4) * 100) / 100f;
+                writer.write(key + " , " + val + "\n");
+                expected.put(key, val);
+                // A later line for a Student ID replaces the earlier one, whether in the same chunk or the next
+                if (key % 3 == 0 && key >= 300) {
+                    val = Math.round(random.nextDouble(0, 4) * 100) / 100f;
+                    writer.write((key - 300) + "," + val + "\n");
+                    expected.put(key - 300, val);
+                }
+            }
+        }
+        Path binaryIn = scratch.resolve("in.bin");
+        try (DataOutputStream stream = new DataOutputStream(Files.newOutputStream(binaryIn))) {
+            for (int i = 0; i < 4000; i++) {
+                int key = random.nextInt(3000, Integer.MAX_VALUE);
+                float val = (float) random.nextDouble(0, 4);
+                stream.writeInt(key);
+                stream.writeFloat(val);
+                expected.put(key, val);
+            }
+        }
+
+        LocalCluster cluster = new LocalCluster(3, scratch.resolve("cluster"));
+        awaitLeader(cluster);
+        expect(new GPABulkTransfer(csvIn, new String[] {"chunk=500", "window=4"}).importFile(
+                timesOutSometimes(cluster.replica(0))), "CSV import failed");
+        expect(new GPABulkTransfer(binaryIn, new String[] {"chunk=333"}).importFile(cluster.replica(2)),
+                "Binary import failed");
+        // The probe keys awaitLeader() wrote are in the map too
+        Map<Integer, Float> live = records(cluster.replica(0).copyMap());
+        live.keySet().removeAll(expected.keySet());
+        expected.putAll(live);
+
+        Path csvOut = scratch.resolve("out.csv");
+        Path binaryOut = scratch.resolve("out.bin");
+        long exported = new GPABulkTransfer(csvOut, new String[] {"chunk=700"}).exportFile(cluster.replica(1));
+        expect(exported == expected.size(), "CSV export wrote " + exported + " of " + expected.size() + " records");
+        exported = new GPABulkTransfer(binaryOut, new String[0]).exportFile(cluster.replica(2));
+        expect(exported == expected.size(), "Binary export wrote " + exported + " of " + expected.size() + " records");
+
+        Map<Integer, Float> fromCsv = new HashMap<>();
+        try (Stream<String> lines = Files.lines(csvOut, StandardCharsets.UTF_8)) {
+            lines.skip(1).map(line -> line.split(",")).forEach(fields ->
+                    fromCsv.put(Integer.parseInt(fields[0]), Float.parseFloat(fields[1])));
+        }
+        expect(fromCsv.equals(expected), "The CSV export doesn't hold the records imported");
+        Map<Integer, Float> fromBinary = new HashMap<>();
+        try (DataInputStream stream = new DataInputStream(Files.newInputStream(binaryOut))) {
+            for (long i = Files.size(binaryOut) / (Integer.BYTES + Float.BYTES); i > 0; i--) {
+                fromBinary.put(stream.readInt(), stream.readFloat());
+            }
+        }
+        expect(fromBinary.equals(expected), "The binary export doesn't hold the records imported");
+        awaitAgreement(cluster);
+    }
+
+    private static void expect(boolean ok, String failure) {
+        if (!ok) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    private static Map<Integer, Float> records(GPAStore store) {
+        Map<Integer, Float> records = new HashMap<>();
+        store.forEach(records::put);
+        return records;
+    }
+
+    /**
+     * Checks a store against a model through size(), forEach() and forEachFrom() a page at a time
+     */
+    private static void expectRecords(GPAStore store, Map<Integer, Float> model, String name) {
+        expect(store.size() == model.size(), name + " has " + store.size() + " records, not " + model.size());
+        expect(records(store).equals(model), name + " doesn't hold the records it should");
+        Map<Integer, Float> paged = new HashMap<>();
+        for (int place = 0; place >= 0; ) {
+            place = store.forEachFrom(place, 1000, paged::put);
+        }
+        expect(paged.equals(model), name + " read a page at a time doesn't hold the records it should");
+    }
+
+    private static boolean sameMessage(PaxosMessage a, PaxosMessage b) {
+        if (a.type != b.type || a.flags != b.flags || a.ballot != b.ballot || a.slot != b.slot || a.id != b.id ||
+                !sameBatch(a.batch, b.batch) || a.entries.size() != b.entries.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.entries.size(); i++) {
+            ReplicatedLog.Entry x = a.entries.get(i);
+            ReplicatedLog.Entry y = b.entries.get(i);
+            if (x.slot != y.slot || x.ballot != y.ballot || x.requestID != y.requestID ||
+                    !sameBatch(x.batch, y.batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameBatch(Batch a, Batch b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.op(i) != b.op(i) || a.key(i) != b.key(i) || Float.compare(a.val(i), b.val(i)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replays a log and checks it gave back every ACCEPT written, in order, and the PROMISEs expected after them.
+     * Then appends a PROMISE and checks the next replay ends with it, so appends carry on from the last good record.
+     * That PROMISE is left as the tail
+     */
+    private static void expectReplay(Path dir, List<PaxosMessage> accepts, int promises, String name)
+            throws IOException {
+        List<PaxosMessage> replayed = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(dir)) {
+            wal.replay(replayed::add);
+            expect(replayed.size() == accepts.size() + promises, "Replaying " + name + " gave " + replayed.size() +
+                    " records, not " + (accepts.size() + promises));
+            for (int i = 0; i < accepts.size(); i++) {
+                expect(sameMessage(accepts.get(i), replayed.get(i)), "Replaying " + name + " gave " +
+                        replayed.get(i) + " in place of " + accepts.get(i));
+            }
+            wal.append(new PaxosMessage(PaxosMessage.PROMISE, 5, 0, 0)).join();
+        }
+        List<PaxosMessage> again = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(dir)) {
+            wal.replay(again::add);
+        }
+        expect(again.size() == replayed.size() + 1 && again.get(again.size() - 1).ballot == 5,
+                "A record appended after replaying " + name + " wasn't read back after the last good one");
+    }
+
+    /**
+     * @param config String configuration as Membership.toString() gives it for a chosen one
+     * @return long slot it counts quorums from, checked to be ALPHA after the slot it was chosen in
+     */
+    private static long effectiveSlot(String config) {
+        long chosenIn = Long.parseLong(config.replaceAll(".* chosen in slot (\\d+),.*", "$1"));
+        long from = Long.parseLong(config.substring(config.lastIndexOf(' ') + 1));
+        expect(from == chosenIn + Membership.ALPHA, config + " doesn't count from ALPHA slots after it was chosen");
+        return from;
+    }
+
+    private static Path onlyFile(Path dir, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> matching = files.filter(path -> path.getFileName().toString().startsWith(prefix))
+                    .collect(Collectors.toList());
+            expect(matching.size() == 1, "Expected one " + prefix + " file in " + dir + ", found " + matching);
+            return matching.get(0);
+        }
+    }
+
+    /**
+     * Waits for the cluster to elect a leader by putting a probe key through each replica until it succeeds
+     */
+    private static void awaitLeader(LocalCluster cluster) throws Exception {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        for (int i = 0; i < cluster.size(); i++) {
+            while (!cluster.replica(i).put(-1 - i, 0f).startsWith("Successfully put")) {
+                expect(System.currentTimeMillis() < deadline, "Replica " + i + " couldn't put before the deadline");
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void awaitApplied(LocalCluster cluster, long slot) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        for (int i = 0; i < cluster.size(); i++) {
+            while (cluster.replica(i).executedSlot() < slot) {
+                expect(System.currentTimeMillis() < deadline, "Replica " + i + " didn't apply slot " + slot +
+                        ". It is at " + cluster.replica(i).executedSlot());
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Waits for every replica to have applied the same slots and hold the same map. A replica completes a put's caller
+     * before it records the slot as applied, so a map can be a write ahead of the slots for a moment
+     */
+    private static void awaitAgreement(LocalCluster cluster) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (true) {
+            long slot = cluster.replica(0).executedSlot();
+            Map<Integer, Float> first = records(cluster.replica(0).copyMap());
+            String differs = null;
+            for (int i = 1; i < cluster.size() && differs == null; i++) {
+                if (cluster.replica(i).executedSlot() != slot) {
+                    differs = "Replica " + i + " didn't reach slot " + slot;
+                } else if (!records(cluster.replica(i).copyMap()).equals(first)) {
+                    differs = "Replica " + i + " diverged at slot " + slot;
+                }
+            }
+            if (differs == null) {
+                return;
+            }
+            expect(System.currentTimeMillis() < deadline, differs);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Wraps a server so every third putAll call answers that each put timed out, without putting anything, a little
+     * late. An import has to send those puts again without letting them overtake later puts of the same Student IDs.
+     * The same puts sent again aren't failed a second time
+     */
+    private static src.GPARepo timesOutSometimes(src.GPARepo server) {
+        AtomicInteger calls = new AtomicInteger();
+        Set<Integer> failedFirstKeys = ConcurrentHashMap.newKeySet();
+        return (src.GPARepo) Proxy.newProxyInstance(src.GPARepo.class.getClassLoader(),
+                new Class<?>[] {src.GPARepo.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("putAll") && calls.incrementAndGet() % 3 == 1 &&
+                            failedFirstKeys.add(((int[]) args[0])[0])) {
+                        String[] results = new String[((int[]) args[0]).length];
+                        Arrays.fill(results, PAXOSGPAServer.TIMED_OUT);
+                        Thread.sleep(100);
+                        return results;
+                    }
+                    try {
+                        return method.invoke(server, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * The Coordinator's end of the link to one PAXOSGPAServer, whatever carries it: a TCP channel served by an EventLoop,
+ * or a SimNetwork link in a simulated cluster. Messages from the server are handed to dispatch() as they arrive, and
+ * the Coordinator writes back through writeFrame()
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.nio.ByteBuffer;
+
+abstract class ServerConnection {
+    static final Log LOG = Log.get("ServerConnection");
+
+    final String name;
+    final Coordinator coord;
+    // The server's gpa.member.id, from its MEMBERS message. -1 until then, and a server never votes before it
+    volatile int member = -1;
+    // Set for a server started as a learner, which never becomes an acceptor
+    volatile boolean learner = false;
+    // Set for a server that had applied nothing and knew no configuration when it connected
+    volatile boolean fresh = false;
+    // True while the member is an acceptor of a configuration that counts the slots in flight, so it is sent the
+    // PREPAREs, ACCEPTs and HEARTBEATs. Only changed while holding the Coordinator lock
+    volatile boolean acceptor = false;
+
+    /**
+     * Constructor for a connection to a server
+     * @param coord Coordinator handling the server pool
+     * @param name String name of the server for logging
+     */
+    ServerConnection(Coordinator coord, String name) {
+        this.coord = coord;
+        this.name = name;
+    }
+
+    /**
+     * Passes a message from the server to the Coordinator
+     * @param message PaxosMessage received
+     */
+    void dispatch(PaxosMessage message) {
+        switch (message.type) {
+            case PaxosMessage.MEMBERS:
+                coord.members(this, message);
+                break;
+            case PaxosMessage.REQUEST:
+                if (LOG.trace()) {
+                    LOG.trace("REQUEST ID: {} request received from {}: {}", message.id, name, message.batch);
+                }
+                coord.request(message);
+                break;
+            case PaxosMessage.PROMISE:
+                if (LOG.trace()) {
+                    LOG.trace("PROMISE received from {}. {}", name, message);
+                }
+                coord.promise(this, message);
+                break;
+            case PaxosMessage.ACCEPTED:
+                if (LOG.trace()) {
+                    LOG.trace("ACCEPTED received from {}. Checking for majority", name);
+                }
+                coord.accepted(member, message);
+                break;
+            case PaxosMessage.IGNORED:
+                LOG.debug("IGNORED received from {}", name);
+                coord.ignored(message.ballot, message.id);
+                break;
+            case PaxosMessage.READINDEX:
+                coord.readIndex(this, message);
+                break;
+            case PaxosMessage.HEARTBEAT:
+                coord.heartbeat(member, message);
+                break;
+            case PaxosMessage.CATCHUP:
+                LOG.info("CATCHUP to slot {} requested by {}", message.slot, name);
+                coord.catchup(this, message);
+                break;
+            case PaxosMessage.SNAPSHOT:
+                coord.snapshotChunk(message);
+                break;
+            default:
+                LOG.warn("{} Unexpected message from server: {}", name, message);
+        }
+    }
+
+    /**
+     * Writes a message to this connection's server
+     * @param message PaxosMessage to send
+     */
+    void write(PaxosMessage message) {
+        writeFrame(PaxosCodec.encode(message));
+    }
+
+    /**
+     * Writes an already encoded frame to this connection's server without blocking. Safe to call from any thread.
+     * The frame buffer isn't changed, so the same frame can be written to many connections
+     * @param frame ByteBuffer holding a whole frame
+     */
+    abstract void writeFrame(ByteBuffer frame);
+
+    /**
+     * @return boolean true once the connection has been closed
+     */
+    abstract boolean isClosed();
+
+    /**
+     * Closes the connection. Later writes to it are dropped
+     */
+    abstract void close();
+}
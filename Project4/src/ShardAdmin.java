@@ -0,0 +1,13 @@
+package src;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface ShardAdmin extends Remote {
+    // Splits the shard holding key at in two. The new shard, called name, with the comma separated RMI host:port of
+    // its replicas, takes the keys from at to the end of the range. Returns a report of what was moved
+    String split(int at, String name, String replicas) throws RemoteException;
+
+    // The current shard map in the text form of the shard map file
+    String shardMap() throws RemoteException;
+}
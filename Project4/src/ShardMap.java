@@ -0,0 +1,234 @@
+
+/**
+ * Versioned map of the Student ID key space onto shards. Each shard is an independent replica group, with its own
+ * Coordinator and replicated log, that owns one contiguous range of keys. Ranges cover the whole int key space with
+ * no gaps, so every key has exactly one shard.
+ * A map is immutable. Splitting a range returns a new map with the next version.
+ * The text form, used for the shard map file, is a version line and then one line per shard in key order:
+ *   version 2
+ *   -2147483648 shard-a localhost:2022,localhost:2023,localhost:2025
+ *   5000000 shard-b localhost:3022,localhost:3023,localhost:3025
+ * giving each shard's lowest key, its name, and the RMI host:port of each of its replicas. A shard's range runs up to
+ * the key before the next shard's lowest key.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ShardMap {
+    final long version;
+    // Lowest key of each shard, ascending. starts[0] is always Integer.MIN_VALUE
+    private final int[] starts;
+    private final Shard[] shards;
+
+    private ShardMap(long version, int[] starts, Shard[] shards) {
+        this.version = version;
+        this.starts = starts;
+        this.shards = shards;
+    }
+
+    /**
+     * Builds a map that gives the whole key space to one shard
+     * @param name String shard name
+     * @param replicas List of the replicas' RMI host:port
+     * @return ShardMap version 1
+     */
+    public static ShardMap single(String name, List<String> replicas) {
+        return new ShardMap(1, new int[] {Integer.MIN_VALUE},
+                new Shard[] {new Shard(name, Integer.MIN_VALUE, Integer.MAX_VALUE, replicas)});
+    }
+
+    /**
+     * Parses the text form of a map
+     * @param lines List of lines. Blank lines and lines starting with # are skipped
+     * @return ShardMap parsed
+     * @throws IllegalArgumentException if the lines aren't a valid map
+     */
+    public static ShardMap parse(List<String> lines) {
+        long version = -1;
+        List<Integer> starts = new ArrayList<>();
+        List<String[]> fields = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] params = line.split("\\s+");
+            if (version < 0) {
+                if (params.length != 2 || !params[0].equalsIgnoreCase("version")) {
+                    throw new IllegalArgumentException("Shard map must start with a version line: " + line);
+                }
+                version = Long.parseLong(params[1]);
+                continue;
+            }
+            if (params.length != 3) {
+                throw new IllegalArgumentException("Shard line needs a lowest key, a name and replicas: " + line);
+            }
+            int start = Integer.parseInt(params[0]);
+            if (!starts.isEmpty() && start <= starts.get(starts.size() - 1)) {
+                throw new IllegalArgumentException("Shards must be listed in increasing key order: " + line);
+            }
+            starts.add(start);
+            fields.add(params);
+        }
+        if (starts.isEmpty() || starts.get(0) != Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("The first shard must start at " + Integer.MIN_VALUE);
+        }
+        int[] startArray = new int[starts.size()];
+        Shard[] shards = new Shard[starts.size()];
+        for (int i = 0; i < shards.length; i++) {
+            startArray[i] = starts.get(i);
+            int to = i + 1 < shards.length ? starts.get(i + 1) - 1 : Integer.MAX_VALUE;
+            String[] params = fields.get(i);
+            shards[i] = new Shard(params[1], startArray[i], to, Arrays.asList(params[2].split(",")));
+        }
+        return new ShardMap(version, startArray, shards);
+    }
+
+    /**
+     * Reads a map from its file
+     * @param file Path of the shard map file
+     * @return ShardMap read
+     * @throws IOException if the file can't be read
+     */
+    public static ShardMap load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the map to its file. The file is replaced in one rename, so a reader never sees half a map
+     * @param file Path of the shard map file
+     * @throws IOException if the file can't be written
+     */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param key int Student ID
+     * @return int index of the shard that owns the key
+     */
+    public int indexFor(int key) {
+        int found = Arrays.binarySearch(starts, key);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * @param key int Student ID
+     * @return Shard that owns the key
+     */
+    public Shard shardFor(int key) {
+        return shards[indexFor(key)];
+    }
+
+    /**
+     * @param index int shard index
+     * @return Shard at the index, in key order
+     */
+    public Shard shard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * @return int number of shards
+     */
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Splits the range holding a key in two. The new shard takes the keys from the split point to the end of the
+     * range. Moving the records is up to the caller
+     * @param at int lowest key of the new shard
+     * @param name String name of the new shard
+     * @param replicas List of the new shard's replicas' RMI host:port
+     * @return ShardMap with the split, one version on
+     * @throws IllegalArgumentException if a shard already starts at the key or the name is taken
+     */
+    public ShardMap split(int at, String name, List<String> replicas) {
+        int index = indexFor(at);
+        if (starts[index] == at) {
+            throw new IllegalArgumentException("Shard " + shards[index].name + " already starts at " + at);
+        }
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                throw new IllegalArgumentException("Shard name " + name + " is already in use");
+            }
+        }
+        Shard old = shards[index];
+        int[] newStarts = new int[starts.length + 1];
+        Shard[] newShards = new Shard[shards.length + 1];
+        System.arraycopy(starts, 0, newStarts, 0, index + 1);
+        System.arraycopy(shards, 0, newShards, 0, index + 1);
+        newStarts[index + 1] = at;
+        newShards[index] = new Shard(old.name, old.from, at - 1, old.replicas);
+        newShards[index + 1] = new Shard(name, at, old.to, replicas);
+        System.arraycopy(starts, index + 1, newStarts, index + 2, starts.length - index - 1);
+        System.arraycopy(shards, index + 1, newShards, index + 2, shards.length - index - 1);
+        return new ShardMap(version + 1, newStarts, newShards);
+    }
+
+    /**
+     * @return String text form of the map, as written to the shard map file
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("version " + version + "\n");
+        for (Shard shard : shards) {
+            out.append(shard.from).append(' ').append(shard.name).append(' ')
+                    .append(String.join(",", shard.replicas)).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * One shard: a replica group and the key range it owns
+     */
+    public static class Shard {
+        final String name;
+        final int from;
+        final int to;
+        final List<String> replicas;
+
+        /**
+         * Constructor for a shard
+         * @param name String shard name
+         * @param from int lowest key, inclusive
+         * @param to int highest key, inclusive
+         * @param replicas List of the replicas' RMI host:port
+         */
+        Shard(String name, int from, int to, List<String> replicas) {
+            if (replicas.isEmpty()) {
+                throw new IllegalArgumentException("Shard " + name + " needs at least one replica");
+            }
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        }
+
+        /**
+         * @param key int Student ID
+         * @return boolean true if the key is in this shard's range
+         */
+        boolean owns(int key) {
+            return key >= from && key <= to;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + from + ", " + to + "] " + replicas;
+        }
+    }
+}
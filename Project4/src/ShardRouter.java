@@ -0,0 +1,550 @@
+
+/**
+ * Routing layer in front of a sharded GPA service. Each shard is its own replica group with its own Coordinator and
+ * replicated log, so shards commit independently and write throughput grows with the number of shards.
+ * The router is a src.GPARepo itself. Each key goes to the shard that owns it in the ShardMap. Bulk calls are split
+ * by shard and sent to all of them at once, and their results are put back in the caller's order. Any replica of a
+ * shard can take a call, so the router spreads calls over them and moves on to the next one if a replica is down.
+ * A hot range can be split onto a new replica group while the router is serving. Calls for the range being moved
+ * wait until it has been copied to the new shard, and every other key is served as usual.
+ * Run it standalone to put it in front of unchanged clients: it binds as GPAService on its own RMI registry, along
+ * with a src.ShardAdmin for splits. It can also be used in-process as a client library.
+ * Splits are only safe through a single router, since a router that missed a split would still send the moved
+ * range to its old shard.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ShardRouter extends UnicastRemoteObject implements src.GPARepo, src.ShardAdmin {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get("ShardRouter");
+
+    // Keys copied per bulk call while a range moves to a new shard
+    static final int MOVE_CHUNK = Integer.getInteger("gpa.router.moveChunk", 4096);
+
+    private volatile ShardMap map;
+    private final Path mapFile;
+    private final ConcurrentHashMap<String, src.GPARepo> stubs = new ConcurrentHashMap<>();
+    private final ExecutorService fanOut = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "ShardRouter-FanOut");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Calls hold the read lock while they're at a shard, so a split can wait out the ones already in flight. The
+    // range being moved, guarded by splitLock, holds back new calls for it until the move is done
+    private final ReentrantReadWriteLock inFlight = new ReentrantReadWriteLock();
+    private final Object splitLock = new Object();
+    private long[] moving = null;
+
+    /**
+     * Constructor for a router over a shard map
+     * @param map ShardMap to route by
+     * @param mapFile Path the map is saved to after a split. Null to keep splits in memory only
+     * @throws RemoteException if the router can't be exported
+     */
+    public ShardRouter(ShardMap map, Path mapFile) throws RemoteException {
+        this.map = map;
+        this.mapFile = mapFile;
+    }
+
+    /**
+     * Main method. Serves the router or sends it an admin command:
+     *   java ShardRouter <port> <shard map file>                        serve on an RMI registry at port
+     *   java ShardRouter split <host> <port> <key> <name> <replicas>     split a shard at key onto a new replica group
+     *   java ShardRouter map <host> <port>                               print the router's shard map
+     * @param args String[] command line
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length == 2) {
+                int port = Integer.parseInt(args[0]);
+                Path mapFile = Paths.get(args[1]);
+                ShardRouter router = new ShardRouter(ShardMap.load(mapFile), mapFile);
+                LocateRegistry.createRegistry(port);
+                Naming.rebind("rmi://localhost:" + port + "/GPAService", router);
+                Naming.rebind("rmi://localhost:" + port + "/ShardAdmin", router);
+                LOG.info("Shard router bound in registry on port {} with map:\n{}", port, router.map);
+            } else if (args.length == 6 && args[0].equalsIgnoreCase("split")) {
+                System.out.println(admin(args[1], args[2]).split(Integer.parseInt(args[3]), args[4], args[5]));
+            } else if (args.length == 3 && args[0].equalsIgnoreCase("map")) {
+                System.out.print(admin(args[1], args[2]).shardMap());
+            } else {
+                System.out.println("Invalid arguments");
+                System.out.println("To serve use java ShardRouter <port> <shard map file>");
+                System.out.println("To split use java ShardRouter split <host> <port> <key> <name> <replicas>");
+                System.out.println("To print the map use java ShardRouter map <host> <port>");
+                System.exit(1);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Ports and keys must be ints");
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid shard map: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException | NotBoundException e) {
+            LOG.error("Shard router error: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static src.ShardAdmin admin(String host, String port)
+            throws RemoteException, NotBoundException, MalformedURLException {
+        return (src.ShardAdmin) Naming.lookup("rmi://" + host + ":" + port + "/ShardAdmin");
+    }
+
+    @Override
+    public String put(int key, float val) throws RemoteException {
+        ShardMap current = enter(key, key);
+        try {
+            return onShard(current.shardFor(key), repo -> repo.put(key, val));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public String get(int key) throws RemoteException {
+        ShardMap current = enter(key, key);
+        try {
+            return onShard(current.shardFor(key), repo -> repo.get(key));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public String delete(int key) throws RemoteException {
+        ShardMap current = enter(key, key);
+        try {
+            return onShard(current.shardFor(key), repo -> repo.delete(key));
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public String[] putAll(int[] keys, float[] vals) throws RemoteException {
+        if (keys.length != vals.length) {
+            throw new IllegalArgumentException("putAll needs one value per key. Got " + keys.length + " keys and " +
+                    vals.length + " values");
+        }
+        return bulk(keys, vals, (repo, shardKeys, shardVals) -> repo.putAll(shardKeys, shardVals));
+    }
+
+    @Override
+    public String[] getAll(int[] keys) throws RemoteException {
+        return bulk(keys, new float[keys.length], (repo, shardKeys, shardVals) -> repo.getAll(shardKeys));
+    }
+
+    @Override
+    public String[] deleteAll(int[] keys) throws RemoteException {
+        return bulk(keys, new float[keys.length], (repo, shardKeys, shardVals) -> repo.deleteAll(shardKeys));
+    }
+
+    @Override
+    public int[] keysInRange(int from, int to) throws RemoteException {
+        ShardMap current = enter(from, to);
+        try {
+            List<int[]> parts = new ArrayList<>();
+            int total = 0;
+            for (int i = current.indexFor(from); i < current.size() && current.shard(i).from <= to; i++) {
+                ShardMap.Shard shard = current.shard(i);
+                int[] part = onShard(shard, repo -> repo.keysInRange(Math.max(from, shard.from),
+                        Math.min(to, shard.to)));
+                parts.add(part);
+                total += part.length;
+            }
+            // Shards are in key order, so their keys only need to be joined
+            int[] keys = new int[total];
+            int filled = 0;
+            for (int[] part : parts) {
+                System.arraycopy(part, 0, keys, filled, part.length);
+                filled += part.length;
+            }
+            return keys;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public src.GPAPage gpaRange(float min, float max, long after, int limit) throws RemoteException {
+        return merge(repo -> repo.gpaRange(min, max, after, limit), false, after, limit);
+    }
+
+    @Override
+    public src.GPAPage topGPAs(long after, int limit) throws RemoteException {
+        return merge(repo -> repo.topGPAs(after, limit), true, after, limit);
+    }
+
+    /**
+     * Asks every shard for a page from the same cursor, all at once, and merges them into one page. A cursor is a
+     * place in GPA order, the same on every shard, so the merged page's cursor works on all of them for the next one
+     * @param call ShardCall for a page
+     * @param descending boolean true if the pages are in descending GPA order
+     * @param after long cursor the page was asked for with
+     * @param limit int most records to return
+     * @return src.GPAPage merged page
+     * @throws RemoteException if a shard can't be reached
+     */
+    private src.GPAPage merge(ShardCall<src.GPAPage> call, boolean descending, long after, int limit)
+            throws RemoteException {
+        ShardMap current = enter(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        try {
+            List<Future<src.GPAPage>> results = new ArrayList<>();
+            for (int s = 0; s < current.size(); s++) {
+                ShardMap.Shard shard = current.shard(s);
+                results.add(fanOut.submit(() -> onShard(shard, call)));
+            }
+            boolean more = false;
+            long[] entries = new long[0];
+            for (Future<src.GPAPage> result : results) {
+                src.GPAPage page = result.get();
+                more |= page.more;
+                int filled = entries.length;
+                entries = Arrays.copyOf(entries, filled + page.size());
+                for (int i = 0; i < page.size(); i++) {
+                    entries[filled + i] = GPAIndex.entry(page.vals[i], page.keys[i]);
+                }
+            }
+            Arrays.sort(entries);
+            int n = Math.min(Math.max(limit, 0), entries.length);
+            more |= n < entries.length;
+            int[] keys = new int[n];
+            float[] vals = new float[n];
+            for (int i = 0; i < n; i++) {
+                long entry = entries[descending ? entries.length - 1 - i : i];
+                keys[i] = GPAIndex.key(entry);
+                vals[i] = GPAIndex.val(entry);
+            }
+            long next = n == 0 ? after : GPAIndex.entry(vals[n - 1], keys[n - 1]);
+            return new src.GPAPage(keys, vals, next, more);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Shard call failed", e.getCause());
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Subscribes a near-cache on every shard, each time on the first reachable replica in the shard's list, so a
+     * renewal lands on the replica that holds the subscription. The listener is passed along, so the shards push
+     * invalidations straight to the client
+     * @param listener src.GPACacheListener exported by the client
+     * @param leaseMillis long how long the subscriptions last without another call
+     * @return long combination of the shards' subscription IDs. Changes when any of them does or the shards change
+     * @throws RemoteException if no replica of some shard can be reached
+     */
+    @Override
+    public long subscribe(src.GPACacheListener listener, long leaseMillis) throws RemoteException {
+        ShardMap current = enter(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        try {
+            long id = current.size();
+            for (int s = 0; s < current.size(); s++) {
+                ShardMap.Shard shard = current.shard(s);
+                RemoteException failure = null;
+                long shardID = 0;
+                for (String replica : shard.replicas) {
+                    try {
+                        shardID = stub(replica).subscribe(listener, leaseMillis);
+                        failure = null;
+                        break;
+                    } catch (RemoteException e) {
+                        stubs.remove(replica);
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    throw new RemoteException("No replica of shard " + shard.name + " is reachable", failure);
+                }
+                id = id * 31 + shardID + shard.from;
+            }
+            return id;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public String shardMap() {
+        return map.toString();
+    }
+
+    /**
+     * Splits the shard holding a key onto a new replica group. New calls for the range being moved wait, the calls
+     * already at the old shard finish, and then every record in the range is copied to the new shard. Only then does
+     * the new map take effect, so no write to the range is lost. The old copies are deleted afterwards
+     * @param at int lowest key of the new shard
+     * @param name String name of the new shard
+     * @param replicas String comma separated RMI host:port of the new shard's replicas, already running
+     * @return String report of the split
+     */
+    @Override
+    public synchronized String split(int at, String name, String replicas) {
+        ShardMap current = map;
+        ShardMap next;
+        try {
+            next = current.split(at, name, Arrays.asList(replicas.split(",")));
+        } catch (IllegalArgumentException e) {
+            return "Split refused: " + e.getMessage();
+        }
+        ShardMap.Shard source = current.shardFor(at);
+        ShardMap.Shard target = next.shardFor(at);
+        LOG.info("Splitting {} at {} onto {}", source, at, target);
+
+        synchronized (splitLock) {
+            moving = new long[] {at, source.to};
+        }
+        inFlight.writeLock().lock();
+        inFlight.writeLock().unlock();
+        int[] keys;
+        try {
+            keys = onShard(source, repo -> repo.keysInRange(at, source.to));
+            for (int from = 0; from < keys.length; from += MOVE_CHUNK) {
+                int[] chunk = Arrays.copyOfRange(keys, from, Math.min(keys.length, from + MOVE_CHUNK));
+                String[] values = onShard(source, repo -> repo.getAll(chunk));
+                float[] vals = new float[chunk.length];
+                for (int i = 0; i < chunk.length; i++) {
+                    vals[i] = value(values[i]);
+                }
+                for (String response : onShard(target, repo -> repo.putAll(chunk, vals))) {
+                    if (!response.startsWith("Successfully")) {
+                        throw new IOException("New shard refused a record: " + response);
+                    }
+                }
+            }
+            if (mapFile != null) {
+                next.save(mapFile);
+            }
+            map = next;
+        } catch (IOException e) {
+            LOG.error("Split at {} failed: {}", at, e.getMessage());
+            return "Split failed, shard map unchanged: " + e.getMessage();
+        } finally {
+            synchronized (splitLock) {
+                moving = null;
+                splitLock.notifyAll();
+            }
+        }
+
+        // The new shard owns the range now, so the old copies are only taking up space
+        String cleanup = "";
+        try {
+            for (int from = 0; from < keys.length; from += MOVE_CHUNK) {
+                int[] chunk = Arrays.copyOfRange(keys, from, Math.min(keys.length, from + MOVE_CHUNK));
+                onShard(source, repo -> repo.deleteAll(chunk));
+            }
+        } catch (RemoteException e) {
+            cleanup = ". Couldn't delete the moved records from " + source.name + ": " + e.getMessage();
+        }
+        String report = "Split " + source.name + " at " + at + ". Moved " + keys.length + " records to " + name +
+                ". Shard map version " + next.version + cleanup;
+        LOG.info(report);
+        return report;
+    }
+
+    /**
+     * Sends a bulk call to every shard that owns some of the keys, all at once, and puts the results back in order
+     * @param keys int[] Student IDs
+     * @param vals float[] GPA for each key. Ignored by calls that don't take values
+     * @param call BulkCall to make on each shard with its share of the keys
+     * @return String[] result for each key
+     * @throws RemoteException if a shard can't be reached
+     */
+    private String[] bulk(int[] keys, float[] vals, BulkCall call) throws RemoteException {
+        if (keys.length == 0) {
+            return new String[0];
+        }
+        int low = Integer.MAX_VALUE;
+        int high = Integer.MIN_VALUE;
+        for (int key : keys) {
+            low = Math.min(low, key);
+            high = Math.max(high, key);
+        }
+        ShardMap current = enter(low, high);
+        try {
+            if (current.indexFor(low) == current.indexFor(high)) {
+                return onShard(current.shardFor(low), repo -> call.call(repo, keys, vals));
+            }
+            int[] shardOf = new int[keys.length];
+            int[] counts = new int[current.size()];
+            for (int i = 0; i < keys.length; i++) {
+                shardOf[i] = current.indexFor(keys[i]);
+                counts[shardOf[i]] += 1;
+            }
+            // Where in the caller's arrays each shard's keys came from
+            int[][] positions = new int[current.size()][];
+            int[] filled = new int[current.size()];
+            for (int s = 0; s < counts.length; s++) {
+                positions[s] = new int[counts[s]];
+            }
+            for (int i = 0; i < keys.length; i++) {
+                positions[shardOf[i]][filled[shardOf[i]]++] = i;
+            }
+
+            List<Future<String[]>> results = new ArrayList<>();
+            List<int[]> sent = new ArrayList<>();
+            for (int s = 0; s < counts.length; s++) {
+                if (counts[s] == 0) {
+                    continue;
+                }
+                int[] shardKeys = new int[counts[s]];
+                float[] shardVals = new float[counts[s]];
+                for (int i = 0; i < counts[s]; i++) {
+                    shardKeys[i] = keys[positions[s][i]];
+                    shardVals[i] = vals[positions[s][i]];
+                }
+                ShardMap.Shard shard = current.shard(s);
+                results.add(fanOut.submit(() -> onShard(shard, repo -> call.call(repo, shardKeys, shardVals))));
+                sent.add(positions[s]);
+            }
+            String[] responses = new String[keys.length];
+            for (int r = 0; r < results.size(); r++) {
+                String[] shardResponses = results.get(r).get();
+                int[] from = sent.get(r);
+                for (int i = 0; i < from.length; i++) {
+                    responses[from[i]] = shardResponses[i];
+                }
+            }
+            return responses;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Shard call failed", e.getCause());
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Makes a call on one of a shard's replicas, starting from a random one and trying the next on a RemoteException.
+     * Every GPARepo call gives the same result when repeated, so retrying on another replica is safe
+     * @param shard ShardMap.Shard to call
+     * @param call ShardCall to make
+     * @return T result of the call
+     * @throws RemoteException if no replica of the shard can be reached
+     */
+    private <T> T onShard(ShardMap.Shard shard, ShardCall<T> call) throws RemoteException {
+        List<String> replicas = shard.replicas;
+        int first = ThreadLocalRandom.current().nextInt(replicas.size());
+        RemoteException failure = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            String replica = replicas.get((first + i) % replicas.size());
+            try {
+                return call.call(stub(replica));
+            } catch (RemoteException e) {
+                stubs.remove(replica);
+                failure = e;
+            }
+        }
+        throw new RemoteException("No replica of shard " + shard.name + " is reachable", failure);
+    }
+
+    private src.GPARepo stub(String replica) throws RemoteException {
+        src.GPARepo stub = stubs.get(replica);
+        if (stub == null) {
+            try {
+                stub = (src.GPARepo) Naming.lookup("rmi://" + replica + "/GPAService");
+            } catch (NotBoundException | MalformedURLException e) {
+                throw new RemoteException("No GPA server at " + replica, e);
+            }
+            stubs.put(replica, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * Waits until no key from low to high is being moved by a split, then holds the read lock for the call
+     * @param low int lowest key the call touches
+     * @param high int highest key the call touches
+     * @return ShardMap to route the call by
+     * @throws RemoteException if interrupted while waiting
+     */
+    private ShardMap enter(int low, int high) throws RemoteException {
+        while (true) {
+            inFlight.readLock().lock();
+            long[] range;
+            synchronized (splitLock) {
+                range = moving;
+                if (range == null || high < range[0] || low > range[1]) {
+                    return map;
+                }
+            }
+            inFlight.readLock().unlock();
+            synchronized (splitLock) {
+                try {
+                    while (moving == range) {
+                        splitLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted while waiting for a shard split");
+                }
+            }
+        }
+    }
+
+    private void exit() {
+        inFlight.readLock().unlock();
+    }
+
+    /**
+     * Parses the value out of a get response
+     * @param response String "Key: k Value is: v"
+     * @return float value
+     * @throws IOException if the response isn't a found key
+     */
+    private static float value(String response) throws IOException {
+        int at = response.lastIndexOf("Value is: ");
+        if (!response.startsWith("Key: ") || at < 0) {
+            throw new IOException("Unexpected response while moving records: " + response);
+        }
+        return Float.parseFloat(response.substring(at + "Value is: ".length()));
+    }
+
+
+    /**
+     * A call on one replica of a shard
+     */
+    private interface ShardCall<T> {
+        T call(src.GPARepo repo) throws RemoteException;
+    }
+
+    /**
+     * A bulk call on one shard with its share of the keys
+     */
+    private interface BulkCall {
+        String[] call(src.GPARepo repo, int[] keys, float[] vals) throws RemoteException;
+    }
+}
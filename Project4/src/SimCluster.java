@@ -0,0 +1,512 @@
+/**
+ * Runs a whole cluster, a Coordinator and its PAXOSGPAServers, in one JVM over a SimNetwork, drives it with client
+ * threads and checks the results. Used for performance regression runs and to check the protocol under faults.
+ * Run with java SimCluster [name=value ...]:
+ *   servers=3            replicas
+ *   threads=64           client threads, each with one operation in flight
+ *   keys=10000           Student IDs, 1 to keys. Each key is written by one client thread only
+ *   reads=0.5            fraction of operations that are gets
+ *   deletes=0.05         fraction of operations that are deletes. The rest are puts
+ *   duration=30          seconds of load
+ *   seed=42              seed of the network faults, crash schedule and workload
+ *   minLatency=20        shortest message delay in microseconds
+ *   maxLatency=200       longest message delay in microseconds
+ *   cutRate=0            probability a message is lost and cuts its link
+ *   crashEvery=0         milliseconds between crashes, 0 for none. Each crash takes down one node, the
+ *                        coordinator or a replica, picked by the seed
+ *   downtime=500         milliseconds a crashed node stays down before it is restarted
+ *   reconfigureEvery=0   milliseconds between membership changes, 0 for none. Each change removes one replica,
+ *                        picked by the seed, from the acceptors and adds it back reconfigureEvery later
+ *   dir=sim-<seed>       directory of the replicas' write-ahead logs, emptied first
+ *   verbose=false        keep the nodes' logging on stdout
+ * Every value read must be the last write to its key that the client saw succeed, or a write after it that failed
+ * in a way that leaves it unknown whether it was applied. Once the load stops and the replicas have caught up, all
+ * of them must hold the same map and every key must hold such a value. The run exits with status 1 otherwise.
+ * Unless given on the command line, the write-ahead log doesn't fsync and the leases and timeouts are shortened, so
+ * the run measures the protocol rather than the disk.
+ * The seed fixes each client's sequence of operations, the crash and membership plans, drawn up front as offsets
+ * from the start of the load, and the SimNetwork's latencies and cuts. It doesn't fix the interleaving. Clients,
+ * nodes and the network run on real threads against the wall clock, so a failing seed reruns the same workload
+ * under the same faults but may take a few runs to fail the same way.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+public class SimCluster {
+    private static final int MAX_REPORTED = 10;
+
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    private final int numServers;
+    private final int threads;
+    private final int numKeys;
+    private final double readRatio;
+    private final double deleteRatio;
+    private final int durationSeconds;
+    private final long seed;
+    private final long crashEveryMillis;
+    private final long downtimeMillis;
+    private final long reconfigureEveryMillis;
+    private final Path dir;
+    private final boolean verbose;
+
+    private final SimNetwork network;
+    private final PAXOSGPAServer[] replicas;
+    private volatile int down = -1;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger crashes = new AtomicInteger();
+    private final LongAdder reconfigurations = new LongAdder();
+    private final List<String> violations = new ArrayList<>();
+    // Per client thread and owned key: the last value a write was seen to apply, NaN for absent, and the values of
+    // later writes whose outcome is unknown. Each row is only touched by its thread until the threads are joined
+    private final float[][] confirmed;
+    private final float[][][] maybe;
+    private final int[][] numMaybe;
+    private final PrintStream out = System.out;
+
+    /**
+     * Constructor that reads the settings and builds the network
+     * @param args String[] name=value settings
+     */
+    public SimCluster(String[] args) {
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Simulation settings must be name=value. Got: " + arg);
+            }
+            settings.put(pair[0].toLowerCase(), pair[1]);
+        }
+        numServers = Integer.parseInt(setting("servers", "3"));
+        threads = Integer.parseInt(setting("threads", "64"));
+        numKeys = Integer.parseInt(setting("keys", "10000"));
+        readRatio = Double.parseDouble(setting("reads", "0.5"));
+        deleteRatio = Double.parseDouble(setting("deletes", "0.05"));
+        durationSeconds = Integer.parseInt(setting("duration", "30"));
+        seed = Long.parseLong(setting("seed", "42"));
+        crashEveryMillis = Long.parseLong(setting("crashevery", "0"));
+        downtimeMillis = Long.parseLong(setting("downtime", "500"));
+        reconfigureEveryMillis = Long.parseLong(setting("reconfigureevery", "0"));
+        dir = Paths.get(setting("dir", "sim-" + seed));
+        verbose = Boolean.parseBoolean(setting("verbose", "false"));
+        network = new SimNetwork(seed, Long.parseLong(setting("minlatency", "20")),
+                Long.parseLong(setting("maxlatency", "200")), Double.parseDouble(setting("cutrate", "0")));
+        replicas = new PAXOSGPAServer[numServers];
+        confirmed = new float[threads][];
+        maybe = new float[threads][][];
+        numMaybe = new int[threads][];
+    }
+
+    /**
+     * Runs a simulation and exits with status 1 if the results broke linearizability or the replicas diverged
+     * @param args String[] name=value settings
+     */
+    public static void main(String[] args) {
+        // Before any server class is loaded, since they read these once
+        defaultProperty("gpa.wal.sync", "false");
+        defaultProperty("gpa.leaseMillis", "200");
+        defaultProperty("gpa.peer.failoverMillis", "1000");
+        defaultProperty("gpa.request.timeoutMillis", "2000");
+        defaultProperty("gpa.snapshot.interval", "2000");
+        try {
+            System.exit(new SimCluster(args).run() ? 0 : 1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("IOException while setting up the simulation: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Simulation interrupted");
+        }
+        System.exit(2);
+    }
+
+    /**
+     * Starts the cluster, runs the load with the crash schedule, then checks the replicas
+     * @return boolean true if every check passed
+     * @throws IOException if the write-ahead log directory can't be set up
+     * @throws InterruptedException if interrupted while waiting for the load
+     */
+    public boolean run() throws IOException, InterruptedException {
+        out.println("Simulating " + settings + " with " + (Threads.virtual() ? "virtual" : "platform") + " threads");
+        if (!verbose) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        deleteDirectory(dir);
+        network.setCoordinator(newCoordinator());
+        for (int i = 0; i < numServers; i++) {
+            startReplica(i);
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Thread> clients = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int client = t;
+            Thread thread = Threads.factory("SimClient-" + t).newThread(() -> runClient(client, end));
+            thread.start();
+            clients.add(thread);
+        }
+        Thread faults = crashEveryMillis > 0 ? Threads.start("SimFaults", () -> injectCrashes(start)) : null;
+        Thread changes = reconfigureEveryMillis > 0 ?
+                Threads.start("SimMembers", () -> changeMembers(start)) : null;
+        for (Thread client : clients) {
+            client.join();
+        }
+        if (faults != null) {
+            faults.join();
+        }
+        if (changes != null) {
+            changes.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        boolean agreed = checkReplicas();
+
+        long ops = reads.sum() + writes.sum();
+        out.println(String.format("%d operations in %.1f s: %.0f ops/s, %.2f million ops/min", ops, seconds,
+                ops / seconds, ops / seconds * 60 / 1e6));
+        out.println("  reads " + reads.sum() + ", writes " + writes.sum() + ", writes with unknown outcome " +
+                unknown.sum() + ", failed reads " + errors.sum());
+        out.println("  crashes " + crashes.get() + ", links cut " + network.cuts.sum() + ", messages delivered " +
+                network.delivered.sum() + ", dropped in flight " + network.dropped.sum() +
+                ", membership changes " + reconfigurations.sum());
+        synchronized (violations) {
+            for (String violation : violations.subList(0, Math.min(MAX_REPORTED, violations.size()))) {
+                out.println("  VIOLATION " + violation);
+            }
+            out.println(violations.isEmpty() && agreed ? "PASS" : "FAIL: " + violations.size() + " violations" +
+                    (agreed ? "" : ", replicas diverged") + ". Rerun with seed=" + seed + " for the same faults");
+            return violations.isEmpty() && agreed;
+        }
+    }
+
+    /**
+     * Client thread loop. Sends operations on the thread's own keys to random live replicas and checks every reply
+     * against what it has seen succeed
+     * @param client int index of the thread. It owns the keys equal to it mod threads
+     * @param end long System.nanoTime() to stop at
+     */
+    private void runClient(int client, long end) {
+        SplittableRandom random = new SplittableRandom(seed * 31 + client);
+        int owned = Math.max(1, (numKeys - client + threads - 1) / threads);
+        float[] confirmed = new float[owned];
+        float[][] maybe = new float[owned][];
+        int[] numMaybe = new int[owned];
+        Arrays.fill(confirmed, Float.NaN);
+        this.confirmed[client] = confirmed;
+        this.maybe[client] = maybe;
+        this.numMaybe[client] = numMaybe;
+        int nextValue = 1;
+        while (System.nanoTime() < end) {
+            int slot = random.nextInt(owned);
+            int key = client + 1 + slot * threads;
+            int pick = random.nextInt(numServers);
+            PAXOSGPAServer replica = replicas[pick == down ? (pick + 1) % numServers : pick];
+            double op = random.nextDouble();
+            try {
+                if (op < readRatio) {
+                    String response = replica.get(key);
+                    float seen;
+                    if (response.startsWith("Key: ")) {
+                        seen = Float.parseFloat(response.substring(response.lastIndexOf(' ') + 1));
+                    } else if (response.startsWith("Key not found")) {
+                        seen = Float.NaN;
+                    } else {
+                        errors.increment();
+                        continue;
+                    }
+                    reads.increment();
+                    if (!possible(seen, confirmed[slot], maybe[slot], numMaybe[slot])) {
+                        violation("Read of key " + key + " returned " + seen + " but the last write seen to apply " +
+                                "was " + confirmed[slot]);
+                    }
+                } else {
+                    boolean delete = op < readRatio + deleteRatio;
+                    float val = delete ? Float.NaN : nextValue++;
+                    String response = delete ? replica.delete(key) : replica.put(key, val);
+                    writes.increment();
+                    if (response.startsWith(delete ? "Successfully removed" : "Successfully put")) {
+                        confirmed[slot] = val;
+                        numMaybe[slot] = 0;
+                    } else {
+                        unknown.increment();
+                        if (maybe[slot] == null || numMaybe[slot] == maybe[slot].length) {
+                            maybe[slot] = Arrays.copyOf(maybe[slot] == null ? new float[0] : maybe[slot],
+                                    numMaybe[slot] * 2 + 2);
+                        }
+                        maybe[slot][numMaybe[slot]++] = val;
+                    }
+                }
+            } catch (RemoteException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Crash schedule. Takes down one node at a time, the coordinator or a replica, and restarts it after downtime,
+     * at the times crashPlan drew
+     * @param start long System.nanoTime() the load started at
+     */
+    private void injectCrashes(long start) {
+        try {
+            for (Planned crash : crashPlan()) {
+                sleepUntil(start, crash.atMillis);
+                crashes.incrementAndGet();
+                if (crash.node == numServers) {
+                    network.crashCoordinator();
+                    sleepUntil(start, crash.atMillis + downtimeMillis);
+                    network.setCoordinator(newCoordinator());
+                } else {
+                    down = crash.node;
+                    replicas[crash.node].stop();
+                    sleepUntil(start, crash.atMillis + downtimeMillis);
+                    startReplica(crash.node);
+                    down = -1;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (IOException e) {
+            violation("Couldn't restart a replica: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Draws the crashes from the seed alone. A crash comes from crashEveryMillis / 2 to crashEveryMillis * 1.5 after
+     * the last node came back up, and its node is a replica index or numServers for the coordinator
+     * @return List of the crashes that start before the load stops, in order
+     */
+    private List<Planned> crashPlan() {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Planned> plan = new ArrayList<>();
+        long at = crashEveryMillis / 2 + random.nextLong(crashEveryMillis + 1);
+        while (at < TimeUnit.SECONDS.toMillis(durationSeconds)) {
+            plan.add(new Planned(at, random.nextInt(numServers + 1)));
+            at += downtimeMillis + crashEveryMillis / 2 + random.nextLong(crashEveryMillis + 1);
+        }
+        return plan;
+    }
+
+    /**
+     * Membership schedule. Takes one replica out of the acceptors and puts it back reconfigureEvery later, through a
+     * replica that isn't down, at the times membershipPlan drew. It keeps serving as a learner in between. Whatever
+     * the schedule, every replica is an acceptor again before the load stops
+     * @param start long System.nanoTime() the load started at
+     */
+    private void changeMembers(long start) {
+        try {
+            for (Planned change : membershipPlan()) {
+                sleepUntil(start, change.atMillis);
+                int member = change.node;
+                String removed = admin(member).removeAcceptor(member);
+                sleepUntil(start, change.atMillis + reconfigureEveryMillis);
+                String added = admin(member).addAcceptor(member);
+                for (int retry = 0; retry < 5 && !added.startsWith("acceptors"); retry++) {
+                    // A crash can hold up the coordinator or the remaining acceptors for longer than a request waits
+                    Thread.sleep(downtimeMillis);
+                    added = admin(member).addAcceptor(member);
+                }
+                for (String result : new String[] {removed, added}) {
+                    if (result.startsWith("acceptors")) {
+                        reconfigurations.increment();
+                    }
+                }
+                if (!added.startsWith("acceptors")) {
+                    violation("Couldn't add replica " + member + " back to the acceptors: " + added);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RemoteException e) {
+            violation("Membership change failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Draws the membership changes from the seed alone. A replica is removed at reconfigureEveryMillis,
+     * 3 * reconfigureEveryMillis and so on, and added back reconfigureEveryMillis after each removal
+     * @return List of the removals that start before the load stops, in order
+     */
+    private List<Planned> membershipPlan() {
+        SplittableRandom random = new SplittableRandom(seed * 17);
+        List<Planned> plan = new ArrayList<>();
+        for (long at = reconfigureEveryMillis; at < TimeUnit.SECONDS.toMillis(durationSeconds);
+                at += 2 * reconfigureEveryMillis) {
+            plan.add(new Planned(at, random.nextInt(numServers)));
+        }
+        return plan;
+    }
+
+    /**
+     * Sleeps until a planned time, or not at all if the schedule is running late, so one late step doesn't shift
+     * the ones after it
+     * @param start long System.nanoTime() the load started at
+     * @param atMillis long milliseconds after start to wake at
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    private static void sleepUntil(long start, long atMillis) throws InterruptedException {
+        long wait = start + TimeUnit.MILLISECONDS.toNanos(atMillis) - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * @param member int replica being moved in or out of the acceptors
+     * @return PAXOSGPAServer another replica that isn't down to send the change through
+     */
+    private PAXOSGPAServer admin(int member) {
+        int through = (member + 1) % numServers;
+        return through == down ? replicas[(through + 1) % numServers] : replicas[through];
+    }
+
+    /**
+     * Waits for the replicas to apply the same last slot, then compares their maps with each other and with what
+     * the clients saw
+     * @return boolean true if the replicas hold the same map
+     * @throws InterruptedException if interrupted while waiting for the replicas
+     */
+    private boolean checkReplicas() throws InterruptedException {
+        // A last write through every replica makes sure each has learned everything chosen before it
+        for (PAXOSGPAServer replica : replicas) {
+            try {
+                replica.put(numKeys + 1, 0f);
+            } catch (RemoteException e) {
+                // Checked by the comparison below
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        long last = -1;
+        while (System.nanoTime() < deadline) {
+            last = replicas[0].executedSlot();
+            boolean same = true;
+            for (PAXOSGPAServer replica : replicas) {
+                same &= replica.executedSlot() == last;
+            }
+            if (same) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        List<Map<Integer, Float>> maps = new ArrayList<>();
+        for (PAXOSGPAServer replica : replicas) {
+            Map<Integer, Float> map = new HashMap<>();
+            replica.copyMap().forEach(map::put);
+            maps.add(map);
+        }
+        boolean agreed = true;
+        for (int i = 1; i < maps.size(); i++) {
+            if (!maps.get(i).equals(maps.get(0))) {
+                agreed = false;
+                violation("Replica " + i + " differs from replica 0 at slot " + last + ": " + maps.get(i).size() +
+                        " records against " + maps.get(0).size());
+            }
+        }
+        for (int client = 0; client < threads; client++) {
+            for (int slot = 0; slot < confirmed[client].length; slot++) {
+                int key = client + 1 + slot * threads;
+                Float held = maps.get(0).get(key);
+                if (!possible(held == null ? Float.NaN : held, confirmed[client][slot], maybe[client][slot],
+                        numMaybe[client][slot])) {
+                    violation("Key " + key + " ended as " + held + " but the last write seen to apply was " +
+                            confirmed[client][slot]);
+                }
+            }
+        }
+        return agreed;
+    }
+
+    /**
+     * @param seen float value read, NaN for absent
+     * @param confirmed float last value seen to apply
+     * @param maybe float[] values of later writes with unknown outcome
+     * @param numMaybe int number of them
+     * @return boolean true if a linearizable read could have returned the value
+     */
+    private static boolean possible(float seen, float confirmed, float[] maybe, int numMaybe) {
+        if (Float.floatToIntBits(seen) == Float.floatToIntBits(confirmed)) {
+            return true;
+        }
+        for (int i = 0; i < numMaybe; i++) {
+            if (Float.floatToIntBits(seen) == Float.floatToIntBits(maybe[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Coordinator newCoordinator() {
+        Coordinator coordinator = new Coordinator();
+        coordinator.clusterSize = numServers;
+        return coordinator;
+    }
+
+    private void startReplica(int i) throws IOException {
+        PAXOSGPAServer replica = new PAXOSGPAServer(network.connector("replica-" + i), i,
+                dir.resolve("replica-" + i));
+        replicas[i] = replica;
+        Threads.start("SimReplica-" + i, replica);
+    }
+
+    private void violation(String violation) {
+        synchronized (violations) {
+            violations.add(violation);
+        }
+    }
+
+    private String setting(String name, String defaultValue) {
+        return settings.getOrDefault(name, defaultValue);
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * A crash or membership change drawn from the seed: when it starts and which node it hits
+     */
+    private static final class Planned {
+        final long atMillis;
+        final int node;
+
+        Planned(long atMillis, int node) {
+            this.atMillis = atMillis;
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Simulated in-memory network between a Coordinator and its PAXOSGPAServers, for running whole clusters in one JVM.
+ * Every message is still encoded and decoded with PaxosCodec, so nodes never share message objects, but it travels
+ * through a DelayQueue instead of a socket. One delivery thread hands each message to the coordinator or the
+ * server once it is due.
+ * Faults come from seeded random generators, one per direction of each link, drawn in the order that direction's
+ * messages are sent:
+ *  - every message is delayed by a latency from minLatencyMicros to maxLatencyMicros
+ *  - each link stays first in, first out like the TCP connection it stands in for, but messages on different links
+ *    overtake each other whenever their latencies say so
+ *  - with probability cutRate a message is lost and its link is cut, as if the connection had reset. Messages
+ *    still in flight on a cut link are dropped, and the server reconnects
+ * The coordinator can be crashed and replaced with crashCoordinator and setCoordinator.
+ * A generator is seeded from the seed, the server's name and how many times that server has connected before, so
+ * with one seed the nth message on a server's nth connection always gets the same latency and cut decision, however
+ * the servers' reconnects race. The network is not a deterministic scheduler though. Messages are due on the wall
+ * clock, and the nodes run on real threads and clocks, so how messages on different links interleave with each
+ * other and with the nodes' timers varies from run to run. A seed that fails replays the same faults, not the same
+ * execution, and may need a few runs to fail again.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SimNetwork {
+    private static final Log LOG = Log.get("SimNetwork");
+
+    private final long seed;
+    private final long minLatencyNanos;
+    private final long maxLatencyNanos;
+    private final double cutRate;
+
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger nextLink = new AtomicInteger();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    // Number of links each server has opened so far, by name
+    private final ConcurrentHashMap<String, AtomicInteger> connections = new ConcurrentHashMap<>();
+    private volatile Coordinator coordinator = null;
+
+    final LongAdder delivered = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder cuts = new LongAdder();
+
+    /**
+     * Constructor for a network with no coordinator yet
+     * @param seed long seed of the latencies and cuts
+     * @param minLatencyMicros long shortest delay of a message
+     * @param maxLatencyMicros long longest delay of a message
+     * @param cutRate double probability that a message is lost and cuts its link
+     */
+    public SimNetwork(long seed, long minLatencyMicros, long maxLatencyMicros, double cutRate) {
+        if (minLatencyMicros < 0 || maxLatencyMicros < minLatencyMicros) {
+            throw new IllegalArgumentException("Latencies must satisfy 0 <= min <= max");
+        }
+        this.seed = seed;
+        this.minLatencyNanos = TimeUnit.MICROSECONDS.toNanos(minLatencyMicros);
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        this.cutRate = cutRate;
+        Threads.start("SimNetwork", this::deliver);
+    }
+
+    /**
+     * Puts a coordinator on the network. Servers connect to it from then on
+     * @param coordinator Coordinator to serve
+     */
+    public void setCoordinator(Coordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Crashes the coordinator: every link to it is cut and servers can't connect until setCoordinator is called
+     */
+    public void crashCoordinator() {
+        coordinator = null;
+        for (Link link : links) {
+            link.cut();
+        }
+    }
+
+    /**
+     * @param name String name of the server, for the coordinator's log
+     * @return PaxosLink.Connector a server uses to reach the coordinator over this network
+     */
+    public PaxosLink.Connector connector(String name) {
+        return () -> connect(name);
+    }
+
+    /**
+     * Opens a link from a server to the current coordinator and adds it to the coordinator's servers
+     * @param name String name of the server
+     * @return Link server end of the link
+     * @throws IOException if there is no coordinator
+     */
+    private Link connect(String name) throws IOException {
+        Coordinator coord = coordinator;
+        if (coord == null) {
+            throw new IOException("No coordinator on the network");
+        }
+        int id = nextLink.incrementAndGet();
+        int connection = connections.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+        long linkSeed = (seed * 0x9E3779B97F4A7C15L + name.hashCode()) * 0xBF58476D1CE4E5B9L + connection;
+        Link link = new Link(id, new SimConnection(coord, name + " (link " + id + ")"), linkSeed);
+        link.coordinatorEnd.link = link;
+        links.add(link);
+        coord.addServer(link.coordinatorEnd);
+        return link;
+    }
+
+    /**
+     * Delivery thread loop. Takes each message once it is due and hands it to its receiver unless its link was cut
+     */
+    private void deliver() {
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = deliveries.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Link link = delivery.link;
+            if (link.isCut()) {
+                dropped.increment();
+                continue;
+            }
+            if (delivery.cuts) {
+                cuts.increment();
+                link.cut();
+                continue;
+            }
+            delivery.frame.position(Integer.BYTES);
+            PaxosMessage message;
+            try {
+                message = PaxosCodec.decode(delivery.frame);
+            } catch (ProtocolException e) {
+                LOG.error("Malformed frame on link {}: {}", link.id, e.getMessage());
+                link.cut();
+                continue;
+            }
+            delivered.increment();
+            if (delivery.toServer) {
+                link.inbound.add(message);
+            } else {
+                link.coordinatorEnd.coord.framesIn.increment();
+                link.coordinatorEnd.dispatch(message);
+            }
+        }
+    }
+
+    /**
+     * A message in flight, due at a point in time. Ties are broken by send order, so a link stays first in, first out
+     */
+    private static final class Delivery implements Delayed {
+        final Link link;
+        final ByteBuffer frame;
+        final boolean toServer;
+        final boolean cuts;
+        final long dueAt;
+        final long order;
+
+        Delivery(Link link, ByteBuffer frame, boolean toServer, boolean cuts, long dueAt, long order) {
+            this.link = link;
+            this.frame = frame;
+            this.toServer = toServer;
+            this.cuts = cuts;
+            this.dueAt = dueAt;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Delivery that = (Delivery) other;
+            int byTime = Long.compare(dueAt - that.dueAt, 0);
+            return byTime != 0 ? byTime : Long.compare(order, that.order);
+        }
+    }
+
+    /**
+     * The server end of a link. Frames sent in each direction are scheduled with that direction's random generator
+     */
+    private final class Link implements PaxosLink {
+        final int id;
+        final SimConnection coordinatorEnd;
+        final LinkedBlockingQueue<PaxosMessage> inbound = new LinkedBlockingQueue<>();
+        // Wakes a server blocked in receive() once the link is cut
+        private final PaxosMessage cutMarker = new PaxosMessage(PaxosMessage.IGNORED, 0, 0, 0);
+        // Kept apart so the coordinator's and the server's sends don't shift each other's draws
+        private final SplittableRandom randomToServer;
+        private final SplittableRandom randomToCoordinator;
+        private volatile boolean cut = false;
+        // Last due time in each direction, guarded by this
+        private long lastToServer = 0;
+        private long lastToCoordinator = 0;
+
+        Link(int id, SimConnection coordinatorEnd, long linkSeed) {
+            this.id = id;
+            this.coordinatorEnd = coordinatorEnd;
+            this.randomToServer = new SplittableRandom(linkSeed);
+            this.randomToCoordinator = randomToServer.split();
+        }
+
+        /**
+         * Schedules a frame with the next latency and cut decision of its direction on this link
+         * @param frame ByteBuffer whole frame, length prefix included, owned by the delivery
+         * @param toServer boolean true if the coordinator sent it
+         */
+        synchronized void schedule(ByteBuffer frame, boolean toServer) {
+            SplittableRandom random = toServer ? randomToServer : randomToCoordinator;
+            long latency = minLatencyNanos + (maxLatencyNanos > minLatencyNanos ?
+                    random.nextLong(maxLatencyNanos - minLatencyNanos + 1) : 0);
+            boolean cuts = cutRate > 0 && random.nextDouble() < cutRate;
+            long dueAt = System.nanoTime() + latency;
+            if (toServer) {
+                dueAt = Math.max(dueAt, lastToServer);
+                lastToServer = dueAt;
+            } else {
+                dueAt = Math.max(dueAt, lastToCoordinator);
+                lastToCoordinator = dueAt;
+            }
+            deliveries.add(new Delivery(this, frame, toServer, cuts, dueAt, sequence.incrementAndGet()));
+        }
+
+        boolean isCut() {
+            return cut;
+        }
+
+        void cut() {
+            if (!cut) {
+                cut = true;
+                inbound.add(cutMarker);
+                links.remove(this);
+                coordinatorEnd.coord.closed(coordinatorEnd);
+            }
+        }
+
+        @Override
+        public void send(PaxosMessage message) throws IOException {
+            if (cut) {
+                throw new IOException("Link " + id + " was cut");
+            }
+            schedule(PaxosCodec.encode(message), false);
+        }
+
+        @Override
+        public PaxosMessage receive() throws IOException {
+            try {
+                PaxosMessage message = inbound.take();
+                if (message == cutMarker) {
+                    inbound.add(cutMarker);
+                    throw new IOException("Link " + id + " was cut");
+                }
+                return message;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while receiving on link " + id);
+            }
+        }
+
+        @Override
+        public void close() {
+            cut();
+        }
+    }
+
+    /**
+     * The coordinator end of a link
+     */
+    private static final class SimConnection extends ServerConnection {
+        Link link;
+
+        SimConnection(Coordinator coord, String name) {
+            super(coord, name);
+        }
+
+        @Override
+        void writeFrame(ByteBuffer frame) {
+            if (link.isCut()) {
+                return;
+            }
+            coord.framesOut.increment();
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame.duplicate()).flip();
+            link.schedule(copy, true);
+        }
+
+        @Override
+        boolean isClosed() {
+            return link.isCut();
+        }
+
+        @Override
+        void close() {
+            link.cut();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+
+/**
+ * Snapshot files of the GPAStore for the PAXOSGPAServer, kept next to the write-ahead log segments.
+ * Each file holds every record of the store as it was once a given slot had been applied:
+ *   int magic, long slot, int number of records, then int key, float val for each record, then int CRC32C
+ * A snapshot is written to a temporary file and renamed into place once it is fsynced, so a crash never leaves a
+ * partial snapshot under a real name. Loading falls back to an older snapshot if the newest doesn't check out.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+public class SnapshotStore {
+    private static final Log LOG = Log.get("Snapshot");
+
+    private static final int MAGIC = 0x47504153; // "GPAS"
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int RECORD_SIZE = Integer.BYTES + Float.BYTES;
+
+    private final Path dir;
+
+    /**
+     * Constructor for the snapshots in a directory
+     * @param dir Path of the directory, shared with the write-ahead log
+     */
+    public SnapshotStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Writes a durable snapshot of a store
+     * @param slot long highest slot applied to the store
+     * @param store GPAStore to write. Must not change while it is written
+     * @throws IOException if the snapshot can't be written
+     */
+    public void write(long slot, GPAStore store) throws IOException {
+        Path temp = dir.resolve(name(slot) + ".tmp");
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            buf.putInt(MAGIC).putLong(slot).putInt(store.size());
+            IOException[] failure = new IOException[1];
+            store.forEach((key, val) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                if (buf.remaining() < RECORD_SIZE) {
+                    try {
+                        drain(channel, buf, crc);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                        return;
+                    }
+                }
+                buf.putInt(key).putFloat(val);
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            drain(channel, buf, crc);
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(name(slot)), StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory. The snapshot data itself is already fsynced
+        }
+    }
+
+    /**
+     * Loads the newest snapshot that checks out into a store
+     * @param into GPAStore to fill. Left empty if there is no usable snapshot
+     * @return long slot of the loaded snapshot, or 0 if there was none
+     * @throws IOException if the directory can't be read
+     */
+    public long loadLatest(GPAStore into) throws IOException {
+        List<Path> snapshots = snapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path path = snapshots.get(i);
+            into.clear();
+            try {
+                long slot = load(path, into);
+                LOG.info("Loaded {} records at slot {} from {}", into.size(), slot, path.getFileName());
+                return slot;
+            } catch (IOException e) {
+                LOG.warn("Skipping {}: {}", path.getFileName(), e.getMessage());
+            }
+        }
+        into.clear();
+        return 0;
+    }
+
+    /**
+     * Deletes every snapshot older than a slot, and any temporary file a crash left behind
+     * @param slot long slot of the newest durable snapshot
+     * @throws IOException if the directory can't be read
+     */
+    public void deleteBefore(long slot) throws IOException {
+        for (Path path : snapshots()) {
+            if (slot(path) < slot) {
+                Files.deleteIfExists(path);
+            }
+        }
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX + ".tmp")) {
+            for (Path temp : temps) {
+                if (!temp.getFileName().toString().equals(name(slot) + ".tmp")) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+    }
+
+    private long load(Path path, GPAStore into) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE + Integer.BYTES || buf.getInt() != MAGIC) {
+            throw new IOException("not a snapshot file");
+        }
+        long slot = buf.getLong();
+        int count = buf.getInt();
+        if (count < 0 || data.length != HEADER_SIZE + (long) count * RECORD_SIZE + Integer.BYTES) {
+            throw new IOException("truncated snapshot");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length - Integer.BYTES);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - Integer.BYTES, Integer.BYTES).getInt()) {
+            throw new IOException("checksum mismatch");
+        }
+        for (int i = 0; i < count; i++) {
+            into.put(buf.getInt(), buf.getFloat());
+        }
+        return slot;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private List<Path> snapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                snapshots.add(file);
+            }
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    private static String name(long slot) {
+        return String.format("%s%020d%s", PREFIX, slot, SUFFIX);
+    }
+
+    private static long slot(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Thread factory for the servers, coordinator and clients. On a JVM with virtual threads (Java 21 and later) every
+ * thread made here is virtual, so threads that spend their time blocked on a socket or parked on a future cost a
+ * few hundred bytes instead of a stack each. The classes are built for Java 17, so virtual threads are reached
+ * through reflection, and older JVMs or gpa.virtualThreads=false get daemon platform threads instead.
+ * Code run on these threads waits with java.util.concurrent locks and futures rather than monitors, since blocking
+ * inside synchronized pins a virtual thread to its carrier.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+public final class Threads {
+    // Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.factory(), or null without virtual threads
+    private static final Method[] VIRTUAL = virtualBuilder();
+
+    private Threads() {
+    }
+
+    /**
+     * @return boolean true if this JVM makes virtual threads
+     */
+    public static boolean virtual() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * @param name String name of every thread made
+     * @return ThreadFactory for virtual threads, or daemon platform threads without them
+     */
+    public static ThreadFactory factory(String name) {
+        if (VIRTUAL != null) {
+            try {
+                Object builder = VIRTUAL[1].invoke(VIRTUAL[0].invoke(null), name);
+                return (ThreadFactory) VIRTUAL[2].invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // Fall through to a platform thread
+            }
+        }
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts a task on a new thread from factory(name)
+     * @param name String thread name
+     * @param task Runnable to run
+     * @return Thread started
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = factory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static Method[] virtualBuilder() {
+        if (!Boolean.parseBoolean(System.getProperty("gpa.virtualThreads", "true"))) {
+            return null;
+        }
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            return new Method[] {Thread.class.getMethod("ofVirtual"), builder.getMethod("name", String.class),
+                    builder.getMethod("factory")};
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+
+/**
+ * Durable write-ahead log for the PAXOSGPAServer acceptor state.
+ * Promised ballots, accepted values and chosen batches are appended as PaxosCodec frames, each preceded by a CRC32C
+ * of the frame, to numbered segment files in the log directory. A new segment is started once the current one
+ * passes the segment size.
+ * Appends are made durable by a single flusher thread. Everything appended while the previous fsync was running is
+ * written and fsynced together as one group, so many concurrent accepts share one fsync. Callers that must not
+ * answer before their record is on disk wait on the future append() returns.
+ * On startup replay() reads every segment back in order. A torn or corrupt record at the tail, left by a crash in
+ * the middle of a write, is cut off so new records follow the last good one.
+ * After a snapshot, rollover() starts a new segment that opens with the acceptor state still needed, so every older
+ * segment can be deleted once the snapshot is durable.
+ * CS 6650 Scalable Distributed Systems
+ * by Rohan Subramaniam
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+public class WriteAheadLog implements Closeable {
+    private static final Log LOG = Log.get("WAL");
+
+    static final long SEGMENT_BYTES = Long.getLong("gpa.wal.segmentBytes", 64L * 1024 * 1024);
+    // Turning fsync off keeps the log but gives up durability across power loss. Only meant for testing
+    static final boolean SYNC = Boolean.parseBoolean(System.getProperty("gpa.wal.sync", "true"));
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private final Path dir;
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+
+    // Records waiting for the flusher, guarded by this
+    private List<Pending> queue = new ArrayList<>();
+    private boolean closed = false;
+    private final Thread flusher;
+    private ByteBuffer groupBuffer = ByteBuffer.allocate(64 * 1024);
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Constructor that opens the log directory, creating it if needed. Call replay() before appending
+     * @param dir Path of the log directory
+     * @throws IOException if the directory can't be created
+     */
+    public WriteAheadLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        flusher = new Thread(this::flushLoop, "WALFlusher");
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * Reads back every record in the log in the order it was appended, then opens the log for appending
+     * @param apply Consumer called with each record
+     * @throws IOException if a segment can't be read
+     */
+    public void replay(Consumer<PaxosMessage> apply) throws IOException {
+        List<Path> segments = segments();
+        long records = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            Path path = segments.get(s);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                long good = 0;
+                PaxosMessage record;
+                while ((record = readRecord(data)) != null) {
+                    apply.accept(record);
+                    good = data.position();
+                    records += 1;
+                }
+                if (good < channel.size()) {
+                    LOG.warn("Cutting off {} bytes of torn record at the end of {}", channel.size() - good,
+                            path.getFileName());
+                    channel.truncate(good);
+                    // Anything after a torn record was never acknowledged, so later segments are dropped with it
+                    for (Path later : segments.subList(s + 1, segments.size())) {
+                        Files.delete(later);
+                    }
+                    segments = segments.subList(0, s + 1);
+                    break;
+                }
+            }
+        }
+        LOG.info("Replayed {} records from {} segments in {}", records, segments.size(), dir);
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            segmentNumber = segmentNumber(last);
+            segment = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentSize = segment.size();
+        }
+        flusher.start();
+    }
+
+    /**
+     * Queues a record for the next group commit
+     * @param record PaxosMessage to log
+     * @return CompletableFuture completed once the record is on disk, or completed exceptionally if the write failed
+     */
+    public CompletableFuture<Void> append(PaxosMessage record) {
+        return append(new Pending(record));
+    }
+
+    private CompletableFuture<Void> append(Pending pending) {
+        synchronized (this) {
+            if (closed) {
+                pending.durable.completeExceptionally(new IOException("WAL is closed"));
+                return pending.durable;
+            }
+            queue.add(pending);
+            if (queue.size() == 1) {
+                notify();
+            }
+        }
+        return pending.durable;
+    }
+
+    /**
+     * Starts a new segment that opens with the given records. Records appended after this call land in the new
+     * segment or a later one
+     * @param carry List of records still needed once the older segments are deleted
+     * @return CompletableFuture completed with the number of the new segment once the carried records are on disk
+     */
+    public CompletableFuture<Long> rollover(List<PaxosMessage> carry) {
+        Pending roll = new Pending(null);
+        CompletableFuture<Void> last = roll.durable;
+        synchronized (this) {
+            append(roll);
+            for (PaxosMessage record : carry) {
+                last = append(new Pending(record));
+            }
+        }
+        return last.thenApply(done -> roll.segment);
+    }
+
+    /**
+     * Deletes every segment numbered below the given one
+     * @param number long first segment to keep
+     * @throws IOException if the directory can't be read or a segment can't be deleted
+     */
+    public void deleteSegmentsBefore(long number) throws IOException {
+        int deleted = 0;
+        for (Path path : segments()) {
+            if (segmentNumber(path) < number) {
+                Files.delete(path);
+                deleted += 1;
+            }
+        }
+        if (deleted > 0) {
+            LOG.info("Deleted {} segments covered by a snapshot in {}", deleted, dir);
+        }
+    }
+
+    /**
+     * Flushes anything still queued and closes the current segment
+     * @throws IOException if the segment can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (segment != null) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Flusher thread loop. Takes every record queued since the last group, writes them with one write and makes them
+     * durable with one fsync before completing their futures
+     */
+    private void flushLoop() {
+        while (true) {
+            List<Pending> group;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                group = queue;
+                queue = new ArrayList<>();
+            }
+            try {
+                writeGroup(group);
+                for (Pending pending : group) {
+                    pending.durable.complete(null);
+                }
+            } catch (IOException e) {
+                LOG.error("IOException while writing to {}: {}", dir, e.getMessage());
+                for (Pending pending : group) {
+                    pending.durable.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void writeGroup(List<Pending> group) throws IOException {
+        int start = 0;
+        for (int i = 0; i < group.size(); i++) {
+            if (group.get(i).record == null) {
+                write(group.subList(start, i));
+                roll();
+                group.get(i).segment = segmentNumber;
+                start = i + 1;
+            }
+        }
+        write(group.subList(start, group.size()));
+        if (SYNC) {
+            segment.force(false);
+        }
+    }
+
+    /**
+     * Writes records to the current segment with a single write, starting a new segment first if they won't fit
+     * @param records List of records to write
+     * @throws IOException if the segment can't be written
+     */
+    private void write(List<Pending> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        int size = 0;
+        for (Pending pending : records) {
+            size += Integer.BYTES + PaxosCodec.frameSize(pending.record);
+        }
+        if (segmentSize > 0 && segmentSize + size > SEGMENT_BYTES) {
+            roll();
+        }
+        if (groupBuffer.capacity() < size) {
+            groupBuffer = ByteBuffer.allocate(Math.max(size, groupBuffer.capacity() * 2));
+        }
+        groupBuffer.clear();
+        for (Pending pending : records) {
+            int crcAt = groupBuffer.position();
+            groupBuffer.putInt(0);
+            int frameAt = groupBuffer.position();
+            PaxosCodec.encode(pending.record, groupBuffer);
+            crc.reset();
+            crc.update(groupBuffer.array(), frameAt, groupBuffer.position() - frameAt);
+            groupBuffer.putInt(crcAt, (int) crc.getValue());
+            pending.segment = segmentNumber;
+        }
+        groupBuffer.flip();
+        while (groupBuffer.hasRemaining()) {
+            segment.write(groupBuffer);
+        }
+        segmentSize += size;
+    }
+
+    /**
+     * Closes the current segment and starts the next one. An empty segment is kept rather than rolled
+     * @throws IOException if a segment can't be closed or created
+     */
+    private void roll() throws IOException {
+        if (segmentSize == 0) {
+            return;
+        }
+        if (SYNC) {
+            segment.force(false);
+        }
+        segment.close();
+        openSegment(segmentNumber + 1);
+    }
+
+    /**
+     * Reads the next record from a segment
+     * @param data ByteBuffer of the segment, positioned at the next record
+     * @return PaxosMessage record, or null at the end of the segment or at a torn or corrupt record
+     */
+    private PaxosMessage readRecord(ByteBuffer data) {
+        int start = data.position();
+        if (data.remaining() < 2 * Integer.BYTES) {
+            return null;
+        }
+        int expected = data.getInt(start);
+        int length = data.getInt(start + Integer.BYTES);
+        if (length < 0 || length > data.remaining() - 2 * Integer.BYTES) {
+            return null;
+        }
+        ByteBuffer frame = data.duplicate();
+        frame.position(start + Integer.BYTES).limit(start + 2 * Integer.BYTES + length);
+        crc.reset();
+        crc.update(frame.duplicate());
+        if ((int) crc.getValue() != expected) {
+            return null;
+        }
+        frame.position(start + 2 * Integer.BYTES);
+        try {
+            PaxosMessage record = PaxosCodec.decode(frame.slice());
+            data.position(start + 2 * Integer.BYTES + length);
+            return record;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        segmentNumber = number;
+        segment = FileChannel.open(dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = 0;
+        if (SYNC) {
+            // Make the new file's directory entry durable too
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // Not every platform can open a directory. The segment data itself is still fsynced
+            }
+        }
+    }
+
+    /**
+     * @return List of the segment files in the order they were written
+     * @throws IOException if the directory can't be listed
+     */
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * A record waiting for the flusher and the future its caller is waiting on. A null record marks a rollover
+     */
+    private static class Pending {
+        final PaxosMessage record;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+        // Segment the record was written to. Set before durable is completed
+        long segment;
+
+        Pending(PaxosMessage record) {
+            this.record = record;
+        }
+    }
+}